@@ -1,12 +1,18 @@
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Client side model for poll system
  * receives notifications from view and server
+ * <P>
+ * A vote is sent when it changes and resent every second until the server
+ * acknowledges it. After that only a keepalive is sent, at the interval the
+ * server gave in its acknowledgement. A server that never acknowledges
+ * therefore keeps getting the vote every second.
  *
  * @author  Paul Zenie
  */
@@ -18,9 +24,18 @@ public class ClientModel implements ViewListener, ModelListener
 	private ScheduledExecutorService pool;
 	private ViewListener viewListener;
 	private ModelListener modelListener;
-	private ScheduledFuture<?> timeout;
-	private long timeoutNum;
+	private TimingWheel timeouts;
+	private ServerTimeout timeout;
     private long timestamp;
+	private String question;
+	private String[] options;
+
+	// Current vote and whether the server has acknowledged it
+	private int option;
+	private long voteTimestamp;
+	private boolean acked;
+	private int keepAliveMillis;
+	private long lastSent;
 
 // Exported constructors.
 
@@ -30,7 +45,18 @@ public class ClientModel implements ViewListener, ModelListener
 	public ClientModel()
 		{
 		pool = Executors.newScheduledThreadPool (1);
+		timeouts = new TimingWheel (pool, 100, 64);
+		timeout = new ServerTimeout();
             timestamp = 0;
+		// Start with no vote, which registers the client with the server
+		voteTimestamp = System.currentTimeMillis();
+		pool.scheduleAtFixedRate (new Runnable()
+		{
+			public void run()
+			{
+				resendOrKeepAlive();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
 		}
 
 // Exported operations.
@@ -58,76 +84,173 @@ public class ClientModel implements ViewListener, ModelListener
 
 
 	/**
-	 * Sends vote to server
-	 * @param agree 1 if agree vote else 0
-	 * @param disagree 1 if disagree vote else 0
+	 * Sends vote to server, and keeps resending it until it is acknowledged
+	 * @param option the option voted for, 1 for the first option, or 0 for
+	 *     no vote
      * @param listener used server side to keep track of clients
      * @param timestamp time that the vote message was sent at
 	 */
 	public void vote
-    (int agree, int disagree, ModelListener listener, long timestamp){
+    (final int option, ModelListener listener, final long timestamp){
+		// Called on the Swing thread, which must not wait for the model
+		// lock while setPoll() waits for the Swing thread
 		pool.execute(new Runnable() {
 			@Override
 			public void run() {
-				try
-				{
-					viewListener.vote(agree, disagree, null, timestamp);
-				}
-				catch (IOException e)
-				{
-					// Shouldn't happen
+				synchronized (ClientModel.this) {
+					ClientModel.this.option = option;
+					voteTimestamp = timestamp;
+					acked = false;
+					sendVote();
 				}
 			}
 		});
 	}
 
+	/**
+	 * Sends a keepalive to the server
+	 * @param timestamp time that the keepalive was sent at
+	 */
+	public synchronized void keepAlive(long timestamp)
+	{
+		if (viewListener != null) {
+			try
+			{
+				viewListener.keepAlive(timestamp);
+				lastSent = timestamp;
+			}
+			catch (IOException e)
+			{
+				// Shouldn't happen
+			}
+		}
+	}
+
+	/**
+	 * Sends the current vote to the server
+	 */
+	private synchronized void sendVote()
+	{
+		if (viewListener != null) {
+			try
+			{
+				viewListener.vote(option, null, voteTimestamp);
+				lastSent = System.currentTimeMillis();
+			}
+			catch (IOException e)
+			{
+				// Shouldn't happen
+			}
+		}
+	}
+
+	/**
+	 * Called every second: resends a vote the server has not acknowledged,
+	 * otherwise sends a keepalive when one is due
+	 */
+	private synchronized void resendOrKeepAlive()
+	{
+		long now = System.currentTimeMillis();
+		if (!acked) {
+			sendVote();
+		}
+		else if (keepAliveMillis > 0 && now - lastSent >= keepAliveMillis) {
+			keepAlive(now);
+		}
+	}
+
 
 // Exported operations from interface ModelListener.
 
 	/**
-	 * Sends poll question to gui
+	 * Sends poll to gui if it changed
      * starts timer to make sure server still connected
-	 * @param question the poll question to send
+	 * @param question the poll question to send, or null if disconnected
+	 * @param options the options to choose from
      * @param timestamp time the message was sent at
 	 */
-	public synchronized void setPoll(String question, long timestamp){
-		if(modelListener != null) {
-			try {
-				if (timeout != null) {
-					timeout.cancel(false);
-				}
-				++ timeoutNum;
-				timeout = pool.schedule (
-						new Runnable()
-						{
-					 		private long num = timeoutNum;
-					 		public void run()
-					 		{
-                                //if no message in 3 seconds assume server down
-						 		disconnect(num);
-					 		}
-				 		}, 3, TimeUnit.SECONDS);
-                if(timestamp > this.timestamp)
-                {
-                    this.timestamp = timestamp;
-                    modelListener.setPoll(question, timestamp);
-                }
-				modelListener.setPoll(question, timestamp);
-			}
-			catch (IOException e) {
-				// Shouldn't happen
-			}
+	public void setPoll
+		(String question, String[] options, long timestamp){
+		ModelListener listener;
+		synchronized (this) {
+			if (modelListener == null) return;
+			//if no message in 3 seconds assume server down
+			timeouts.refresh (timeout, 3000);
+			// Ignore messages with out-of-date time stamps
+			if (question != null && timestamp <= this.timestamp) return;
+			this.timestamp = timestamp;
+			// The server repeats the poll every second; only tell the
+			// view when the poll actually changes
+			if (Objects.equals (question, this.question) &&
+				Arrays.equals (options, this.options)) return;
+			this.question = question;
+			this.options = options;
+			listener = modelListener;
+		}
+		// The view waits for the Swing thread, which may be voting; so it
+		// is told without holding the lock
+		try {
+			listener.setPoll(question, options, timestamp);
+		}
+		catch (IOException e) {
+			// Shouldn't happen
+		}
+	}
+
+	/**
+	 * Records the server's acknowledgement of a vote
+	 * @param timestamp timestamp of the vote acknowledged, or 0 if the server
+	 *     needs the vote resent
+	 * @param keepAliveMillis how often to send a keepalive
+	 */
+	public synchronized void acknowledge(long timestamp, int keepAliveMillis)
+	{
+		this.keepAliveMillis = keepAliveMillis;
+		if (timestamp == voteTimestamp) {
+			acked = true;
+		}
+		else if (timestamp == 0) {
+			// server lost our vote (restart or timeout): send it again
+			acked = false;
+			sendVote();
 		}
 	}
 
     /**
      * Sets the client to starting state
-     * @param num the timeout num used to check if same as current timeout num
      */
-	private synchronized void disconnect (long num)
+	private void disconnect ()
 	{
-		// If the timeout was already canceled, do nothing.
-		if (num != timeoutNum) return;
-		setPoll(null, 0);
+		ModelListener listener;
+		synchronized (this) {
+			// If a poll refreshed the timeout meanwhile, do nothing.
+			if (timeouts.isScheduled (timeout) || modelListener == null)
+				return;
+			timeouts.refresh (timeout, 3000);
+			if (question == null && options == null) return;
+			question = null;
+			options = null;
+			listener = modelListener;
+		}
+		try {
+			listener.setPoll(null, null, 0);
+		}
+		catch (IOException e) {
+			// Shouldn't happen
+		}
+	}
+
+// Hidden helper classes.
+
+	/**
+	 * Class ServerTimeout disconnects the client when the server has been
+	 * silent for too long.
+	 */
+	private class ServerTimeout extends TimingWheel.Timeout
+	{
+		protected void expire()
+		{
+			disconnect();
+		}
 	}
 }
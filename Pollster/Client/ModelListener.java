@@ -13,10 +13,24 @@ public interface ModelListener
      * Sends the poll to the clients
      *
      * @param question the poll question to send
+     * @param options the options to choose from
      * @param timestamp the time the message was sent at
      * @exception  IOException
      *     Thrown if an I/O error occurred.
      */
-    void setPoll(String question, long timestamp) throws IOException;
+    void setPoll(String question, String[] options, long timestamp)
+            throws IOException;
+
+    /**
+     * Acknowledges a vote received by the server
+     *
+     * @param timestamp the timestamp of the vote acknowledged, or 0 if the
+     *     server does not have the client's vote and needs it resent
+     * @param keepAliveMillis how often the client should send a keepalive
+     *     while its vote does not change
+     * @exception  IOException
+     *     Thrown if an I/O error occurred.
+     */
+    void acknowledge(long timestamp, int keepAliveMillis) throws IOException;
 
 }
\ No newline at end of file
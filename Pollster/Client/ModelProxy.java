@@ -1,11 +1,19 @@
 import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
  * Network proxy for the model object in the poll system
  * The model proxy resides in the client and communicates with the server.
+ * It takes part in one of the server's polls, named by its poll ID, and
+ * ignores messages about any other.
  *
  * @author  Alan Kaminsky
  * @Modified Paul Zenie
@@ -19,19 +27,46 @@ public class ModelProxy implements ViewListener
 	private DatagramSocket mailbox;
 	private InetSocketAddress serverAddress;
 	private ModelListener modelListener;
+	private int joinedPollId;
+
+	// Session ID the server gave this client, 0 until the first ack.
+	private volatile int session;
+
+	// Poll last received in full, guarded by this model proxy.
+	private boolean havePoll;
+	private int pollId;
+	private int pollVersion;
+	private String question;
+	private String[] options;
 
 // Exported constructors.
 
 	/**
-	 * Construct a new model proxy.
+	 * Construct a new model proxy for poll 0.
 	 *
 	 * @param  mailbox        Mailbox.
 	 * @param  serverAddress  Server address.
 	 */
 	public ModelProxy(DatagramSocket mailbox, InetSocketAddress serverAddress)
+	{
+		this (mailbox, serverAddress, 0);
+	}
+
+	/**
+	 * Construct a new model proxy.
+	 *
+	 * @param  mailbox        Mailbox.
+	 * @param  serverAddress  Server address.
+	 * @param  pollId         ID of the poll to take part in.
+	 */
+	public ModelProxy
+		(DatagramSocket mailbox,
+		 InetSocketAddress serverAddress,
+		 int pollId)
 	{
 		this.mailbox = mailbox;
 		this.serverAddress = serverAddress;
+		this.joinedPollId = pollId;
 	}
 
 // Exported operations.
@@ -44,27 +79,57 @@ public class ModelProxy implements ViewListener
 	public void setListener(ModelListener listener)
 	{
 		modelListener = listener;
-		new ReaderThread() .start();
+		new ReaderThread (mailbox) .start();
+	}
+
+	/**
+	 * Also receive poll messages sent to a multicast group. Votes still go
+	 * to the server by unicast. Call after {@link #setListener(ModelListener)
+	 * setListener()}.
+	 *
+	 * @param  group  multicast group address and port
+	 * @param  iface  interface to join the group on
+	 * @exception  IOException
+	 *     Thrown if the group could not be joined.
+	 */
+	public void joinGroup(InetSocketAddress group, NetworkInterface iface)
+		throws IOException
+	{
+		DatagramChannel channel = DatagramChannel.open
+			(group.getAddress() instanceof Inet6Address
+				? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+		try
+		{
+			channel.setOption (StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind (new InetSocketAddress (group.getPort()));
+			channel.join (group.getAddress(), iface);
+		}
+		catch (IOException exc)
+		{
+			channel.close();
+			throw exc;
+		}
+		new ReaderThread (channel.socket()) .start();
 	}
 
 
     /**
      * Sends the vote to the server
-     * @param agree 1 if agree vote else 0
-     * @param disagree 1 if disagree vote else 0
+     * @param option the option voted for, 1 for the first option, or 0 for
+     *     no vote
      * @param listener used server side to keep track of clients
      * @param timestamp the time the message was sent at
      * @throws IOException
      */
-    public void vote
-    (int agree, int disagree, ModelListener listener, long timestamp)
+    public void vote(int option, ModelListener listener, long timestamp)
             throws IOException{
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream out = new DataOutputStream (baos);
         out.writeByte ('V');
-        out.write(agree);
-        out.write(disagree);
+        out.writeInt(joinedPollId);
+        out.write(option);
         out.writeLong(timestamp);
+        out.writeInt(session);
         out.flush();
         byte[] buf = baos.toByteArray();
         DatagramPacket packet =
@@ -73,6 +138,76 @@ public class ModelProxy implements ViewListener
     }
 
 
+    /**
+     * Sends a keepalive to the server
+     * @param timestamp the time the message was sent at
+     * @throws IOException
+     */
+    public void keepAlive(long timestamp) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate (17);
+        buf.put ((byte) 'K');
+        buf.putInt (joinedPollId);
+        buf.putLong (timestamp);
+        buf.putInt (session);
+        mailbox.send (new DatagramPacket
+                (buf.array(), buf.capacity(), serverAddress));
+    }
+
+// Hidden operations.
+
+	/**
+	 * Record a poll message received in full.
+	 *
+	 * @param  id        poll ID
+	 * @param  version   poll version
+	 * @param  question  poll question
+	 * @param  options   poll options
+	 */
+	private synchronized void pollReceived
+		(int id, int version, String question, String[] options)
+	{
+		havePoll = true;
+		pollId = id;
+		pollVersion = version;
+		this.question = question;
+		this.options = options;
+	}
+
+	/**
+	 * Look up the question for the poll version named in a heartbeat.
+	 *
+	 * @param  id       poll ID
+	 * @param  version  poll version
+	 * @return the question, or null if that version was never received
+	 */
+	private synchronized String questionFor(int id, int version)
+	{
+		return havePoll && id == pollId && version == pollVersion
+			? question : null;
+	}
+
+	/**
+	 * Ask the server to send the whole poll again.
+	 *
+	 * @param  id  poll ID named in the heartbeat
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	private void requestPoll(int id) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate (13);
+		buf.put ((byte) 'Q');
+		buf.putInt (id);
+		synchronized (this)
+		{
+			buf.putInt (havePoll && id == pollId ? pollVersion : 0);
+		}
+		buf.putInt (session);
+		mailbox.send (new DatagramPacket
+			(buf.array(), buf.capacity(), serverAddress));
+	}
+
 // Hidden helper classes.
 
 	/**
@@ -83,34 +218,88 @@ public class ModelProxy implements ViewListener
 	 */
 	private class ReaderThread extends Thread
     {
+		private DatagramSocket mailbox;
+
+		/**
+		 * Construct a new reader thread.
+		 *
+		 * @param  mailbox  Mailbox to receive from.
+		 */
+		public ReaderThread(DatagramSocket mailbox)
+		{
+			this.mailbox = mailbox;
+		}
+
         /**
          * Reads and process' messages from the server
          */
 		public void run()
         {
-			byte[] buf = new byte [128];
+			byte[] buf = new byte [65536];
 			DatagramPacket packet = new DatagramPacket (buf, buf.length);
-			ByteArrayInputStream bais;
-			DataInputStream in;
-			byte b;
+			ByteBuffer buffer = ByteBuffer.wrap (buf);
+			PollDecoder decoder = new PollDecoder();
 			String question;
-            long timestamp;
+			String[] options;
 			try
             {
 				for (;;)
                 {
+					packet.setLength (buf.length);
 					mailbox.receive (packet);
-					bais = new ByteArrayInputStream
-						(buf, 0, packet.getLength());
-					in = new DataInputStream (bais);
-					b = in.readByte();
-					switch (b)
+					buffer.limit (packet.getLength()) .position (0);
+					decoder.wrap (buffer);
+					switch (decoder.type())
                     {
 						case 'P':
-							question = in.readUTF();
-                            timestamp = in.readLong();
-							if(question != null && !question.isEmpty()) {
-								modelListener.setPoll(question, timestamp);
+							if (!decoder.isPoll()) {
+								System.err.println ("Bad message");
+								break;
+							}
+							// Another poll on the same multicast group
+							if (decoder.pollId() != joinedPollId) break;
+							question = decoder.question();
+							options = decoder.options();
+							if (question == null || options == null) {
+								System.err.println ("Bad message");
+							}
+							else if (!question.isEmpty()) {
+								pollReceived (decoder.pollId(), decoder.version(),
+									question, options);
+								modelListener.setPoll
+									(question, options, decoder.timestamp());
+							}
+							break;
+						case 'A':
+							if (!decoder.isAck()) {
+								System.err.println ("Bad message");
+								break;
+							}
+							// Adopt a new session after a server restart
+							if (decoder.session() != 0) {
+								session = decoder.session();
+							}
+							modelListener.acknowledge
+								(decoder.ackTimestamp(), decoder.keepAliveMillis());
+							break;
+						case 'H':
+							if (!decoder.isHeartbeat()) {
+								System.err.println ("Bad message");
+								break;
+							}
+							if (decoder.pollId() != joinedPollId) break;
+							// Unchanged poll: nothing to decode
+							synchronized (ModelProxy.this) {
+								question = questionFor
+									(decoder.pollId(), decoder.version());
+								options = ModelProxy.this.options;
+							}
+							if (question != null) {
+								modelListener.setPoll
+									(question, options, decoder.timestamp());
+							}
+							else {
+								requestPoll (decoder.pollId());
 							}
 							break;
 						default:
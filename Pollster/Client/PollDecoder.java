@@ -0,0 +1,276 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Class PollDecoder is a flyweight that reads a message from the server in
+ * place, without copying it out of the receive buffer.
+ * <P>
+ * A poll message ('P') carries the whole poll; a heartbeat ('H') only names
+ * the current version of it:
+ * <PRE>
+ *     byte   'P'                 byte   'H'
+ *     int    poll ID             int    poll ID
+ *     int    version             int    version
+ *     long   timestamp           long   timestamp
+ *     UTF    question
+ *     ubyte  number of options
+ *     UTF    each option
+ * </PRE>
+ * An acknowledgement ('A') confirms a vote: a long vote timestamp, the int
+ * keepalive interval in milliseconds, then the int session ID the server
+ * has given this client.
+ * <P>
+ * Each string is an unsigned short length followed by modified UTF-8. The
+ * question and options are only turned into new Strings when their bytes
+ * differ from the previous poll message, so repeats of an unchanged poll
+ * produce no garbage.
+ *
+ * @author  Paul Zenie
+ */
+public class PollDecoder
+{
+
+// Hidden data members.
+
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+
+	// Raw bytes and decoded text of the last poll seen.
+	private byte[] pollBytes = new byte [64];
+	private int pollLength = -1;
+	private String question;
+	private String[] options;
+	private char[] chars = new char [64];
+
+// Exported operations.
+
+	/**
+	 * Wrap this decoder around the message between the buffer's position
+	 * and limit. The buffer's position and limit are not changed.
+	 *
+	 * @param  buffer  buffer holding one received datagram
+	 * @return this decoder
+	 */
+	public PollDecoder wrap(ByteBuffer buffer)
+	{
+		this.buffer = buffer;
+		this.offset = buffer.position();
+		this.length = buffer.remaining();
+		return this;
+	}
+
+	/**
+	 * @return the message type byte, or 0 if the message is empty
+	 */
+	public byte type()
+	{
+		return length > 0 ? buffer.get (offset) : 0;
+	}
+
+	/**
+	 * @return true if the wrapped message is a well formed poll message
+	 */
+	public boolean isPoll()
+	{
+		return length >= 20 && buffer.get (offset) == 'P' && pollEnd() > 0;
+	}
+
+	/**
+	 * @return true if the wrapped message is a well formed heartbeat
+	 */
+	public boolean isHeartbeat()
+	{
+		return length >= 17 && buffer.get (offset) == 'H';
+	}
+
+	/**
+	 * @return true if the wrapped message is a well formed acknowledgement
+	 */
+	public boolean isAck()
+	{
+		return length >= 13 && buffer.get (offset) == 'A';
+	}
+
+	/**
+	 * @return the vote timestamp field of an acknowledgement
+	 */
+	public long ackTimestamp()
+	{
+		return buffer.getLong (offset + 1);
+	}
+
+	/**
+	 * @return the keepalive interval field of an acknowledgement
+	 */
+	public int keepAliveMillis()
+	{
+		return buffer.getInt (offset + 9);
+	}
+
+	/**
+	 * @return the session ID field of an acknowledgement, or 0 if it does
+	 *         not carry one
+	 */
+	public int session()
+	{
+		return length >= 17 ? buffer.getInt (offset + 13) : 0;
+	}
+
+	/**
+	 * @return the poll ID field of a poll message or heartbeat
+	 */
+	public int pollId()
+	{
+		return buffer.getInt (offset + 1);
+	}
+
+	/**
+	 * @return the version field of a poll message or heartbeat
+	 */
+	public int version()
+	{
+		return buffer.getInt (offset + 5);
+	}
+
+	/**
+	 * Returns the question of a poll message. If the poll is the same as
+	 * the previous poll message the same String is returned.
+	 *
+	 * @return the question, or null if it is not valid modified UTF-8
+	 */
+	public String question()
+	{
+		return decodePoll() ? question : null;
+	}
+
+	/**
+	 * Returns the options of a poll message. If the poll is the same as the
+	 * previous poll message the same array is returned; it must not be
+	 * changed.
+	 *
+	 * @return the options, or null if one is not valid modified UTF-8
+	 */
+	public String[] options()
+	{
+		return decodePoll() ? options : null;
+	}
+
+	/**
+	 * @return the timestamp field of a poll message or heartbeat
+	 */
+	public long timestamp()
+	{
+		return buffer.getLong (offset + 9);
+	}
+
+// Hidden operations.
+
+	/**
+	 * Check that the strings of a poll message lie within the message.
+	 *
+	 * @return the offset just past the last option, or -1 if the message is
+	 *         cut short
+	 */
+	private int pollEnd()
+	{
+		int p = 17;
+		if (p + 2 > length) return -1;
+		p += 2 + (buffer.getShort (offset + p) & 0xFFFF);
+		if (p + 1 > length) return -1;
+		int n = buffer.get (offset + p) & 0xFF;
+		p += 1;
+		for (int i = 0; i < n; ++ i)
+		{
+			if (p + 2 > length) return -1;
+			p += 2 + (buffer.getShort (offset + p) & 0xFFFF);
+		}
+		return p <= length ? p : -1;
+	}
+
+	/**
+	 * Decode the question and options of a poll message, unless they are
+	 * the same bytes as last time.
+	 *
+	 * @return true if the question and options are valid
+	 */
+	private boolean decodePoll()
+	{
+		int len = pollEnd() - 17;
+		if (len == pollLength && samePoll (len)) return true;
+		int p = offset + 17;
+		int n = buffer.getShort (p) & 0xFFFF;
+		String q = decode (p + 2, n);
+		if (q == null) return false;
+		p += 2 + n;
+		String[] opts = new String [buffer.get (p) & 0xFF];
+		p += 1;
+		for (int i = 0; i < opts.length; ++ i)
+		{
+			n = buffer.getShort (p) & 0xFFFF;
+			opts[i] = decode (p + 2, n);
+			if (opts[i] == null) return false;
+			p += 2 + n;
+		}
+		if (pollBytes.length < len) pollBytes = new byte [len];
+		for (int i = 0; i < len; ++ i)
+			pollBytes[i] = buffer.get (offset + 17 + i);
+		pollLength = len;
+		question = q;
+		options = opts;
+		return true;
+	}
+
+	/**
+	 * @param  len  length of the encoded question and options in the buffer
+	 * @return true if they equal the last ones decoded
+	 */
+	private boolean samePoll(int len)
+	{
+		for (int i = 0; i < len; ++ i)
+			if (pollBytes[i] != buffer.get (offset + 17 + i)) return false;
+		return true;
+	}
+
+	/**
+	 * Decode a modified UTF-8 string in the buffer.
+	 *
+	 * @param  at   index of the first byte of the string
+	 * @param  len  length of the encoded string in the buffer
+	 * @return the string, or null if it is malformed
+	 */
+	private String decode(int at, int len)
+	{
+		if (chars.length < len) chars = new char [len];
+		int p = at;
+		int end = p + len;
+		int n = 0;
+		while (p < end)
+		{
+			int c = buffer.get (p) & 0xFF;
+			if (c < 0x80)
+			{
+				chars[n++] = (char) c;
+				p += 1;
+			}
+			else if ((c & 0xE0) == 0xC0 && p + 1 < end)
+			{
+				chars[n++] = (char)
+					(((c & 0x1F) << 6) | (buffer.get (p + 1) & 0x3F));
+				p += 2;
+			}
+			else if ((c & 0xF0) == 0xE0 && p + 2 < end)
+			{
+				chars[n++] = (char)
+					(((c & 0x0F) << 12) | ((buffer.get (p + 1) & 0x3F) << 6) |
+					 (buffer.get (p + 2) & 0x3F));
+				p += 3;
+			}
+			else
+			{
+				return null;
+			}
+		}
+		return new String (chars, 0, n);
+	}
+
+}
@@ -1,11 +1,22 @@
+import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.Enumeration;
 
 /**
  * Client main program for the poll system.
  *
  * Usage: java Responder pollsterhost pollsterport responderhost responderport
+ *     [-poll id] [-multicast group port [-interface name]]
+ * <P>
+ * <TT>-poll</TT> names the poll to take part in (default 0).
+ * <P>
+ * With <TT>-multicast</TT> the responder also joins the given multicast
+ * group to receive poll questions, on the named interface or else the
+ * interface of the responder address.
  *
  * @author  Paul Zenie
  */
@@ -23,7 +34,7 @@ public class Responder
             throws Exception
     {
         // Parse command line arguments.
-        if (args.length != 4) usage();
+        if (args.length < 4) usage();
         String serverhost = args[0];
         int serverport = 0;
         try {
@@ -45,6 +56,56 @@ public class Responder
             System.exit(1);
         }
 
+        InetSocketAddress group = null;
+        String ifaceName = null;
+        int pollId = 0;
+        for (int i = 4; i < args.length; ++ i)
+        {
+            if (args[i].equals("-poll") && i + 1 < args.length)
+            {
+                try {
+                    pollId = Integer.parseInt(args[++ i]);
+                }
+                catch (NumberFormatException e)
+                {
+                    pollId = -1;
+                }
+                if (pollId < 0)
+                {
+                    System.err.println("ERROR: Poll must be a number, " +
+                            "0 or more.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-multicast") && i + 2 < args.length)
+            {
+                String grouphost = args[++ i];
+                try {
+                    group = new InetSocketAddress
+                            (grouphost, Integer.parseInt(args[++ i]));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    group = null;
+                }
+                if (group == null || group.isUnresolved() ||
+                        !group.getAddress().isMulticastAddress())
+                {
+                    System.err.println("ERROR: " + grouphost +
+                            " is not a multicast address and port.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-interface") && i + 1 < args.length)
+            {
+                ifaceName = args[++ i];
+            }
+            else
+            {
+                usage();
+            }
+        }
+
         // Set up server mailbox address.
         InetSocketAddress serverAddress = null;
         try {
@@ -71,11 +132,55 @@ public class Responder
         // create classes and set listeners
         ResponderUI view = ResponderUI.create();
         ClientModel model = new ClientModel();
-        ModelProxy proxy = new ModelProxy(mailbox, serverAddress);
+        ModelProxy proxy = new ModelProxy(mailbox, serverAddress, pollId);
         model.setListener(proxy);
         model.setModelListener(view);
         proxy.setListener(model);
         view.setListener(model);
+        if (group != null)
+        {
+            try {
+                proxy.joinGroup(group, multicastInterface
+                        (ifaceName, InetAddress.getByName(clienthost)));
+            }
+            catch (IOException e)
+            {
+                System.err.println("ERROR: Could not join multicast group " +
+                        group + ".");
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Find the interface to join the multicast group on.
+     * @param name interface name, or null to choose one
+     * @param address the responder address
+     * @return the named interface, else the interface with the responder
+     *     address, else the first interface that is up and supports multicast
+     * @throws IOException if no suitable interface exists
+     */
+    private static NetworkInterface multicastInterface
+    (String name, InetAddress address)
+            throws IOException
+    {
+        NetworkInterface iface = name != null
+                ? NetworkInterface.getByName(name)
+                : NetworkInterface.getByInetAddress(address);
+        if (iface == null && name == null)
+        {
+            Enumeration<NetworkInterface> all =
+                    NetworkInterface.getNetworkInterfaces();
+            while (iface == null && all.hasMoreElements())
+            {
+                NetworkInterface candidate = all.nextElement();
+                if (candidate.isUp() && candidate.supportsMulticast())
+                    iface = candidate;
+            }
+        }
+        if (iface == null)
+            throw new IOException("No multicast interface");
+        return iface;
     }
 
     /**
@@ -84,7 +189,8 @@ public class Responder
     private static void usage()
     {
         System.err.println ("Usage: java Responder <pollsterhost> " +
-                "<pollsterport> <responderhost> <responderport>");
+                "<pollsterport> <responderhost> <responderport> " +
+                "[-poll <id>] [-multicast <group> <port> [-interface <name>]]");
         System.exit (1);
     }
 
@@ -1,6 +1,9 @@
 import javax.swing.*;
+import java.awt.Dimension;
+import java.awt.GridLayout;
 import java.awt.event.*;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Enumeration;
 
 /**
@@ -13,12 +16,17 @@ import java.util.Enumeration;
 public class ResponderUI implements ModelListener
 {
 	private static final int GAP = 10;
+	private static final int MAX_COLUMNS = 4;
+	private static final int MAX_OPTIONS_HEIGHT = 300;
 
 	private JFrame frame;
 	private JTextField questionField;
 	private ButtonGroup buttons;
-	private JToggleButton agreeButton;
-	private JToggleButton disagreeButton;
+	private JPanel optionPanel;
+	private JScrollPane optionPane;
+	private JToggleButton[] optionButtons = new JToggleButton[0];
+	private String[] options;
+	private ActionListener voteListener;
 	private ViewListener viewListener;
 
 	/**
@@ -38,30 +46,21 @@ public class ResponderUI implements ModelListener
 		p1.add (questionField);
 		p1.add (Box.createVerticalStrut (GAP));
 
-		JPanel p2 = new JPanel();
-		p2.setLayout (new BoxLayout (p2, BoxLayout.X_AXIS));
-		p1.add (p2);
-
+		// one button per option, rebuilt whenever the options change
+		optionPanel = new JPanel();
+		optionPane = new JScrollPane (optionPanel);
+		optionPane.setBorder (BorderFactory.createEmptyBorder());
+		p1.add (optionPane);
 		buttons = new ButtonGroup();
-		agreeButton = new JToggleButton ("Agree", false);
-		agreeButton.setEnabled(false); // buttons start off as disabled
-		buttons.add (agreeButton);
-		p2.add (agreeButton);
-
-		disagreeButton = new JToggleButton ("Disagree", false);
-		disagreeButton.setEnabled(false); // start button off as disabled
-		buttons.add (disagreeButton);
-		p2.add (disagreeButton);
-
-        // Send current vote selection of responder to pollster every second.
-        Timer timer = new Timer (1000, new ActionListener()
+
+        // Send the vote selection of responder to pollster when it changes.
+        voteListener = new ActionListener()
         {
             public void actionPerformed (ActionEvent e)
             {
                 vote();
             }
-        });
-        timer.start();
+        };
 
         // Exit program when window closed
         frame.addWindowListener (new WindowAdapter()
@@ -81,22 +80,20 @@ public class ResponderUI implements ModelListener
 	 * Sets the question text.
 	 * enables buttons and clears selection
 	 * @param question poll question
+	 * @param options options to choose from
      * @param timestamp what time the poll was sent out
 	 */
-	public void setPoll(String question, long timestamp)
+	public void setPoll(String question, String[] options, long timestamp)
 	{
 		onSwingThreadDo(new Runnable() {
 			@Override
 			public void run() {
                 if(question != null) {
-                    // If it is a new question enable buttons and reset vote
-                    if(!question.equals(questionField.getText())) {
-                        Enumeration<AbstractButton> enumeration
-                                = buttons.getElements();
-                        while (enumeration.hasMoreElements()) {
-                            enumeration.nextElement().setEnabled(true);
-                        }
-                        buttons.clearSelection();
+                    // If it is a new poll enable buttons and reset vote
+                    if(!question.equals(questionField.getText()) ||
+                            !Arrays.equals(options, ResponderUI.this.options)) {
+                        showOptions(options);
+                        vote();
                     }
                     questionField.setText(question);
                 }
@@ -115,6 +112,49 @@ public class ResponderUI implements ModelListener
 		});
 	}
 
+	/**
+	 * Replaces the option buttons, all enabled and none selected. Called on
+	 * the Swing thread.
+	 * @param options options to choose from
+	 */
+	private void showOptions(String[] options)
+	{
+		this.options = options;
+		for (JToggleButton button : optionButtons) {
+			buttons.remove(button);
+		}
+		optionPanel.removeAll();
+		optionPanel.setLayout(new GridLayout
+			(0, Math.max(1, Math.min(options.length, MAX_COLUMNS)),
+			 GAP/2, GAP/2));
+		optionButtons = new JToggleButton[options.length];
+		for (int i = 0; i < options.length; ++ i) {
+			optionButtons[i] = new JToggleButton(options[i], false);
+			optionButtons[i].addActionListener(voteListener);
+			buttons.add(optionButtons[i]);
+			optionPanel.add(optionButtons[i]);
+		}
+		// scroll rather than grow past a few dozen options
+		optionPane.setPreferredSize(null);
+		Dimension d = optionPane.getPreferredSize();
+		if (d.height > MAX_OPTIONS_HEIGHT) {
+			d.height = MAX_OPTIONS_HEIGHT;
+			d.width += optionPane.getVerticalScrollBar()
+				.getPreferredSize().width;
+			optionPane.setPreferredSize(d);
+		}
+		frame.pack();
+	}
+
+	/**
+	 * Acknowledgements are handled by the model, so the view ignores them.
+	 * @param timestamp timestamp of the vote acknowledged
+	 * @param keepAliveMillis keepalive interval
+	 */
+	public void acknowledge(long timestamp, int keepAliveMillis)
+	{
+	}
+
 	// viewlistener methods
 
 	/**
@@ -122,13 +162,17 @@ public class ResponderUI implements ModelListener
 	 */
 	public void vote()
 	{
+		int option = 0;
+		for (int i = 0; i < optionButtons.length; ++ i) {
+			if (optionButtons[i].isSelected()) {
+				option = i + 1;
+			}
+		}
 		try
 		{
 			if (viewListener != null)
 				viewListener.vote
-                        (Boolean.compare(agreeButton.isSelected(), false),
-                        Boolean.compare(disagreeButton.isSelected(), false),
-                        null, System.currentTimeMillis());
+                        (option, null, System.currentTimeMillis());
 		}
 		catch (IOException exc)
 		{
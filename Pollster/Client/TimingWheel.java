@@ -0,0 +1,196 @@
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class TimingWheel provides a hashed timing wheel for timeouts that are
+ * refreshed far more often than they expire, such as server liveness.
+ * <P>
+ * Each {@link Timeout Timeout} is linked directly into one bucket of the
+ * wheel, so refreshing or cancelling a timeout is O(1) and allocates
+ * nothing. The wheel advances one bucket per tick on the given executor and
+ * expires the timeouts whose deadline has passed.
+ *
+ * @author  Paul Zenie
+ */
+public class TimingWheel
+{
+
+// Hidden data members.
+
+	private Timeout[] buckets;
+	private int mask;
+	private long tickNanos;
+	private long startNanos;
+	private long currentTick;
+
+// Exported constructors.
+
+	/**
+	 * Construct a new timing wheel and start it ticking on the given
+	 * executor.
+	 *
+	 * @param  executor    executor that runs the ticks
+	 * @param  tickMillis  tick length in milliseconds
+	 * @param  wheelSize   number of buckets, rounded up to a power of 2
+	 */
+	public TimingWheel
+		(ScheduledExecutorService executor,
+		 long tickMillis,
+		 int wheelSize)
+	{
+		int size = Integer.highestOneBit (Math.max (wheelSize - 1, 1)) << 1;
+		buckets = new Timeout [size];
+		mask = size - 1;
+		tickNanos = TimeUnit.MILLISECONDS.toNanos (tickMillis);
+		startNanos = System.nanoTime();
+		executor.scheduleAtFixedRate (new Runnable()
+		{
+			public void run()
+			{
+				tick();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+// Exported operations.
+
+	/**
+	 * Schedule a timeout to expire after the given delay, replacing any
+	 * deadline it already had.
+	 *
+	 * @param  timeout      the timeout
+	 * @param  delayMillis  delay in milliseconds
+	 */
+	public synchronized void refresh(Timeout timeout, long delayMillis)
+	{
+		if (timeout.scheduled) unlink (timeout);
+		long ticks = (TimeUnit.MILLISECONDS.toNanos (delayMillis) +
+				tickNanos - 1) / tickNanos;
+		timeout.deadline = currentTick + Math.max (ticks, 1);
+		link (timeout);
+	}
+
+	/**
+	 * Cancel a timeout. Does nothing if it is not scheduled.
+	 *
+	 * @param  timeout  the timeout
+	 */
+	public synchronized void cancel(Timeout timeout)
+	{
+		if (timeout.scheduled) unlink (timeout);
+	}
+
+	/**
+	 * @param  timeout  the timeout
+	 * @return true if the timeout is scheduled and has not expired
+	 */
+	public synchronized boolean isScheduled(Timeout timeout)
+	{
+		return timeout.scheduled;
+	}
+
+// Hidden operations.
+
+	/**
+	 * Advance the wheel to the current time and expire every timeout whose
+	 * deadline has passed. The expire methods are called without holding
+	 * the wheel's lock.
+	 */
+	private void tick()
+	{
+		Timeout expired = null;
+		synchronized (this)
+		{
+			long now = (System.nanoTime() - startNanos) / tickNanos;
+			// Catch up at most one full turn; later buckets repeat.
+			long from = Math.max (currentTick + 1, now - mask);
+			for (long t = from; t <= now; ++ t)
+			{
+				Timeout timeout = buckets[(int) t & mask];
+				while (timeout != null)
+				{
+					Timeout next = timeout.next;
+					if (timeout.deadline <= now)
+					{
+						unlink (timeout);
+						timeout.nextExpired = expired;
+						expired = timeout;
+					}
+					timeout = next;
+				}
+			}
+			currentTick = Math.max (currentTick, now);
+		}
+		while (expired != null)
+		{
+			Timeout timeout = expired;
+			expired = timeout.nextExpired;
+			timeout.nextExpired = null;
+			try
+			{
+				timeout.expire();
+			}
+			catch (Throwable exc)
+			{
+				exc.printStackTrace (System.err);
+			}
+		}
+	}
+
+	/**
+	 * Link a timeout into the bucket for its deadline.
+	 *
+	 * @param  timeout  the timeout
+	 */
+	private void link(Timeout timeout)
+	{
+		int i = (int) timeout.deadline & mask;
+		timeout.prev = null;
+		timeout.next = buckets[i];
+		if (buckets[i] != null) buckets[i].prev = timeout;
+		buckets[i] = timeout;
+		timeout.scheduled = true;
+	}
+
+	/**
+	 * Unlink a timeout from its bucket.
+	 *
+	 * @param  timeout  the timeout
+	 */
+	private void unlink(Timeout timeout)
+	{
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			buckets[(int) timeout.deadline & mask] = timeout.next;
+		if (timeout.next != null) timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.scheduled = false;
+	}
+
+// Exported helper classes.
+
+	/**
+	 * Class Timeout is an entry in a timing wheel. Subclasses say what
+	 * happens when the timeout expires. A timeout object is reused for
+	 * every refresh, so it belongs to one wheel at a time.
+	 */
+	public static abstract class Timeout
+	{
+		private Timeout prev;
+		private Timeout next;
+		private Timeout nextExpired;
+		private long deadline;
+		private boolean scheduled;
+
+		/**
+		 * Called on the wheel's executor when the timeout expires. A refresh
+		 * racing with the expiry may already have rescheduled the timeout,
+		 * so implementations should check {@link TimingWheel#isScheduled
+		 * isScheduled()} under their own lock.
+		 */
+		protected abstract void expire();
+	}
+
+}
@@ -11,14 +11,23 @@ public interface ViewListener
 
     /**
      * updates votes on server when client vote changes
-     * @param agree 1 if agree vote else 0
-     * @param disagree 1 if disagree vote else 0
+     * @param option the option voted for, 1 for the first option, or 0 for
+     *     no vote
      * @param listener Used in the server program to keep track of clients
      * @param  timestamp the time the message was sent at
      * @exception IOException
      *      Thrown if an I/O error occurred.
      */
-    void vote(int agree, int disagree, ModelListener listener, long timestamp)
+    void vote(int option, ModelListener listener, long timestamp)
             throws IOException;
 
+    /**
+     * tells the server the client is still there when its vote has not
+     * changed
+     * @param  timestamp the time the message was sent at
+     * @exception IOException
+     *      Thrown if an I/O error occurred.
+     */
+    void keepAlive(long timestamp) throws IOException;
+
 }
\ No newline at end of file
@@ -0,0 +1,377 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class BroadcastScheduler sends the current poll to every client
+ * once per second without sending it all in one burst.
+ * <P>
+ * The clients are divided into <I>slices</I> &times; <I>senders</I> parts.
+ * The slices are spread evenly across the one second interval, and within
+ * a slice each of the sender threads sends one part. Each part has its own
+ * {@link PollFrame}, so the parts never share a buffer.
+ * <P>
+ * Every question and set of options gets a new version of the scheduler's
+ * poll. A part sends the full poll message the first tick after the version
+ * changes, and only a short heartbeat naming the current version after
+ * that. A client that missed the full message asks for it again (see
+ * {@link #currentPoll()}).
+ * <P>
+ * Versions start at a random number, so clients of a restarted server see
+ * a version they do not have and ask for the poll again. Many schedulers,
+ * one per poll, may share one executor; a scheduler only has tasks on it
+ * while it has a poll to send.
+ * <P>
+ * The scheduler counts the datagrams it sends and the ones that could not
+ * be sent, and measures how long the sends of one tick took altogether.
+ *
+ * @author  Paul Zenie
+ */
+public class BroadcastScheduler
+{
+
+// Hidden constants.
+
+    private static final long TICK_MILLIS = 1000;
+
+// Hidden data members.
+
+    private Audience audience;
+    private int parts;
+    private ScheduledExecutorService executor;
+    private boolean ownsExecutor;
+    private int senders;
+    private int slices;
+    private PartTask[] partTasks;
+    private ScheduledFuture<?>[] tasks;
+    private boolean closed;
+    private int pollId;
+    private int lastVersion;
+    private volatile Announcement poll;
+
+    private LongAdder sent;
+    private LongAdder dropped;
+    private AtomicLong tickNanos;
+    private volatile long lastTickNanos;
+
+// Exported constructors.
+
+    /**
+     * Construct a new broadcast scheduler with a random poll ID and its
+     * own sender threads.
+     *
+     * @param  audience  the clients to send to
+     * @param  senders   number of sender threads
+     * @param  slices    number of slices per one second tick
+     */
+    public BroadcastScheduler(Audience audience, int senders, int slices)
+    {
+        this (audience, ThreadLocalRandom.current().nextInt(),
+              Executors.newScheduledThreadPool (senders), senders, slices);
+        ownsExecutor = true;
+    }
+
+    /**
+     * Construct a new broadcast scheduler for one poll that sends on a
+     * shared executor. The executor is left running by {@link #shutdown()}.
+     *
+     * @param  audience  the clients to send to
+     * @param  pollId    poll ID
+     * @param  executor  executor to send on
+     * @param  senders   number of parts sent at the same time
+     * @param  slices    number of slices per one second tick
+     */
+    public BroadcastScheduler
+        (Audience audience,
+         int pollId,
+         ScheduledExecutorService executor,
+         int senders,
+         int slices)
+    {
+        if (senders < 1)
+            throw new IllegalArgumentException
+                ("BroadcastScheduler(): senders = " + senders + " illegal");
+        if (slices < 1 || slices > TICK_MILLIS)
+            throw new IllegalArgumentException
+                ("BroadcastScheduler(): slices = " + slices + " illegal");
+        this.audience = audience;
+        this.parts = senders * slices;
+        this.pollId = pollId;
+        // random so that clients of a restarted server notice the change
+        this.lastVersion = ThreadLocalRandom.current().nextInt();
+        sent = new LongAdder();
+        dropped = new LongAdder();
+        tickNanos = new AtomicLong();
+        this.executor = executor;
+        this.senders = senders;
+        this.slices = slices;
+    }
+
+// Exported operations.
+
+    /**
+     * Set the question and options to broadcast as a new version of the
+     * poll. The next tick starts sending it.
+     *
+     * @param  question  poll question, or null to stop broadcasting
+     * @param  options   poll options
+     *
+     * @exception  IllegalArgumentException
+     *     Thrown if the poll does not fit in a datagram.
+     */
+    public synchronized void setPoll(String question, String[] options)
+    {
+        if (question != null) PollFrame.encodedLength (question, options);
+        poll = question == null ? null :
+                new Announcement (pollId, ++ lastVersion, question, options);
+        if (question != null && tasks == null && ! closed)
+            start();
+        else if (question == null)
+            stop();
+    }
+
+    /**
+     * @return the poll ID
+     */
+    public int getPollId()
+    {
+        return pollId;
+    }
+
+    /**
+     * @return the poll being broadcast, or null if none
+     */
+    public Announcement currentPoll()
+    {
+        return poll;
+    }
+
+    /**
+     * @return the number of poll messages sent
+     */
+    public long getSent()
+    {
+        return sent.sum();
+    }
+
+    /**
+     * @return the number of poll messages that could not be sent
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the time in nanoseconds the sends of the last complete tick
+     *         took, added up over all sender threads
+     */
+    public long getLastTickNanos()
+    {
+        return lastTickNanos;
+    }
+
+    /**
+     * Stop broadcasting.
+     */
+    public void shutdown()
+    {
+        synchronized (this)
+        {
+            closed = true;
+            stop();
+        }
+        if (ownsExecutor) executor.shutdown();
+    }
+
+// Hidden operations.
+
+    /**
+     * Schedule the part tasks, the first tick after a second. Must be
+     * called while holding this scheduler's monitor.
+     */
+    private void start()
+    {
+        if (partTasks == null)
+        {
+            partTasks = new PartTask [parts];
+            for (int i = 0; i < parts; ++ i)
+                partTasks[i] = new PartTask (i);
+        }
+        tasks = new ScheduledFuture<?> [parts];
+        for (int s = 0; s < slices; ++ s)
+        {
+            long delay = TICK_MILLIS + s * TICK_MILLIS / slices;
+            for (int k = 0; k < senders; ++ k)
+            {
+                tasks[s * senders + k] = executor.scheduleAtFixedRate
+                    (partTasks[s * senders + k],
+                     delay, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Cancel the part tasks, if they are scheduled. Must be called while
+     * holding this scheduler's monitor.
+     */
+    private void stop()
+    {
+        if (tasks == null) return;
+        for (ScheduledFuture<?> task : tasks)
+            task.cancel (false);
+        tasks = null;
+    }
+
+// Exported helper classes.
+
+    /**
+     * Class Announcement is one version of the broadcast poll.
+     */
+    public static class Announcement
+    {
+        private int pollId;
+        private int version;
+        private String question;
+        private String[] options;
+
+        /**
+         * Construct a new announcement.
+         *
+         * @param  pollId    poll ID
+         * @param  version   poll version
+         * @param  question  poll question
+         * @param  options   poll options
+         */
+        public Announcement
+            (int pollId,
+             int version,
+             String question,
+             String[] options)
+        {
+            this.pollId = pollId;
+            this.version = version;
+            this.question = question;
+            this.options = options.clone();
+        }
+
+        /**
+         * @return the poll ID
+         */
+        public int getPollId()
+        {
+            return pollId;
+        }
+
+        /**
+         * @return the poll version
+         */
+        public int getVersion()
+        {
+            return version;
+        }
+
+        /**
+         * @return the poll question
+         */
+        public String getQuestion()
+        {
+            return question;
+        }
+
+        /**
+         * @return the poll options; the array must not be changed
+         */
+        public String[] getOptions()
+        {
+            return options;
+        }
+    }
+
+// Exported helper interfaces.
+
+    /**
+     * Interface Audience is implemented by the object that knows the
+     * clients and can split them into parts.
+     */
+    public interface Audience
+    {
+        /**
+         * Send a poll message to every client in one part.
+         *
+         * @param  part       which part, 0 to parts-1
+         * @param  parts      total number of parts
+         * @param  frame      encoded poll or heartbeat message
+         * @param  poll       the poll, for clients that are not sent the
+         *                    encoded message
+         * @param  timestamp  time the message was sent at
+         * @param  sent       incremented for each message sent
+         * @param  dropped    incremented for each message not sent
+         */
+        void sendPart
+            (int part,
+             int parts,
+             ByteBuffer frame,
+             Announcement poll,
+             long timestamp,
+             LongAdder sent,
+             LongAdder dropped);
+    }
+
+// Hidden helper classes.
+
+    /**
+     * Class PartTask sends the poll message to one part of the clients
+     * every tick.
+     */
+    private class PartTask implements Runnable
+    {
+        private int part;
+        private PollFrame frame = new PollFrame();
+        private int sentVersion;
+
+        /**
+         * @param  part  which part this task sends to
+         */
+        public PartTask(int part)
+        {
+            this.part = part;
+        }
+
+        public void run()
+        {
+            Announcement a = poll;
+            if (a == null) return;
+            if (part == 0) lastTickNanos = tickNanos.getAndSet (0);
+            long start = System.nanoTime();
+            long timestamp = System.currentTimeMillis();
+            ByteBuffer message;
+            if (a.version != sentVersion)
+            {
+                message = frame.encode
+                    (a.pollId, a.version, a.question, a.options, timestamp);
+                sentVersion = a.version;
+            }
+            else
+            {
+                message = frame.heartbeat (a.pollId, a.version, timestamp);
+            }
+            try
+            {
+                audience.sendPart (part, parts, message,
+                        a, timestamp, sent, dropped);
+            }
+            catch (Throwable exc)
+            {
+                exc.printStackTrace (System.err);
+            }
+            tickNanos.addAndGet (System.nanoTime() - start);
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class IngestEngine receives vote messages from clients in the poll system
+ * using a number of receiver threads, each draining a datagram channel and
+ * decoding messages on its own thread. Each receiver thread queues the
+ * decoded messages on an {@link IngestQueue} of its own, whose applier
+ * thread hands them to the polls.
+ * <P>
+ * Each source is held to a steady rate of messages before anything is
+ * decoded (see {@link RateLimiter}), and the messages over it, and those
+ * that are not well formed, are only counted.
+ * <P>
+ * Where the platform supports SO_REUSEPORT every receiver thread gets its
+ * own channel bound to the pollster address, so the kernel spreads clients
+ * across the threads. Otherwise all receiver threads share one channel.
+ *
+ * @author  Paul Zenie
+ */
+public class IngestEngine
+{
+
+// Hidden data members.
+
+    private DatagramChannel[] channels;
+    private ReaderThread[] readers;
+    private IngestQueue[] queues;
+    private PollRegistry registry;
+
+// Exported constructors.
+
+    /**
+     * Construct a new ingest engine with queues of the default capacity
+     * that coalesce messages from each client when full.
+     *
+     * @param  address   Pollster address to bind to.
+     * @param  threads   Number of receiver threads (at least 1).
+     * @param  registry  Polls to hand messages to.
+     * @exception  IOException
+     *     Thrown if a channel could not be opened or bound.
+     */
+    public IngestEngine
+        (InetSocketAddress address,
+         int threads,
+         PollRegistry registry)
+        throws IOException
+    {
+        this (address, threads, registry, IngestQueue.DEFAULT_CAPACITY,
+              IngestQueue.COALESCE);
+    }
+
+    /**
+     * Construct a new ingest engine. The channels are opened and bound
+     * immediately; the receiver threads are started by {@link #start()}.
+     *
+     * @param  address   Pollster address to bind to.
+     * @param  threads   Number of receiver threads (at least 1).
+     * @param  registry  Polls to hand messages to.
+     * @param  capacity  Capacity of each receiver thread's queue.
+     * @param  policy    Drop policy of the queues (see {@link IngestQueue}).
+     * @exception  IOException
+     *     Thrown if a channel could not be opened or bound.
+     */
+    public IngestEngine
+        (InetSocketAddress address,
+         int threads,
+         PollRegistry registry,
+         int capacity,
+         int policy)
+        throws IOException
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException
+                ("IngestEngine(): threads = " + threads + " illegal");
+        this.registry = registry;
+
+        // Open one channel per thread if the port can be shared, else one.
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = threads > 1 && first.supportedOptions()
+                .contains(StandardSocketOptions.SO_REUSEPORT);
+        channels = new DatagramChannel [reusePort ? threads : 1];
+        channels[0] = first;
+        for (int i = 1; i < channels.length; ++ i)
+            channels[i] = DatagramChannel.open();
+        try
+        {
+            for (DatagramChannel channel : channels)
+            {
+                if (reusePort)
+                    channel.setOption
+                        (StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind (address);
+            }
+        }
+        catch (IOException exc)
+        {
+            close();
+            throw exc;
+        }
+
+        readers = new ReaderThread [threads];
+        queues = new IngestQueue [threads];
+        for (int i = 0; i < threads; ++ i)
+        {
+            DatagramChannel channel = channels[i % channels.length];
+            queues[i] = new IngestQueue
+                (capacity, policy, registry, channel.socket());
+            readers[i] = new ReaderThread (channel, queues[i]);
+            readers[i].setName ("IngestEngine-" + i);
+        }
+    }
+
+// Exported operations.
+
+    /**
+     * Start the receiver threads and their queues' applier threads.
+     */
+    public void start()
+    {
+        for (int i = 0; i < readers.length; ++ i)
+        {
+            queues[i].start ("IngestQueue-" + i);
+            readers[i].start();
+        }
+    }
+
+    /**
+     * Limit the messages taken from each source, so one client or a flood
+     * from spoofed addresses cannot crowd out the rest. Must be called
+     * before the engine is started.
+     *
+     * @param  perSecond  steady number of messages per second per source
+     * @param  burst      number of messages taken at once per source
+     */
+    public void setSourceLimit(int perSecond, int burst)
+    {
+        for (ReaderThread reader : readers)
+            reader.sources = new RateLimiter
+                (perSecond, burst, RateLimiter.SOURCE_BUCKETS);
+    }
+
+    /**
+     * Set the most messages each queue hands to the polls at once (see
+     * {@link IngestQueue#setBatchSize(int)}). Must be called before the
+     * engine is started.
+     *
+     * @param  batchSize  batch size
+     */
+    public void setBatchSize(int batchSize)
+    {
+        for (IngestQueue queue : queues)
+            queue.setBatchSize (batchSize);
+    }
+
+    /**
+     * @return the number of messages rejected because their source sent
+     *         too many
+     */
+    public long getRateLimited()
+    {
+        long count = 0L;
+        for (ReaderThread reader : readers)
+            count += reader.sources.getRejected();
+        return count;
+    }
+
+    /**
+     * @return the number of messages that were not well formed
+     */
+    public long getMalformed()
+    {
+        long count = 0L;
+        for (ReaderThread reader : readers)
+            count += reader.malformed.sum();
+        return count;
+    }
+
+    /**
+     * @return the number of messages waiting in the queues
+     */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (IngestQueue queue : queues)
+            depth += queue.getDepth();
+        return depth;
+    }
+
+    /**
+     * @return the most messages any one queue has held at once
+     */
+    public int getMaxQueueDepth()
+    {
+        int depth = 0;
+        for (IngestQueue queue : queues)
+            depth = Math.max (depth, queue.getMaxDepth());
+        return depth;
+    }
+
+    /**
+     * @return the number of messages dropped because a queue was full
+     */
+    public long getDropped()
+    {
+        long count = 0L;
+        for (IngestQueue queue : queues)
+            count += queue.getDropped();
+        return count;
+    }
+
+    /**
+     * @return the number of messages replaced by a later message from the
+     *         same client because a queue was full
+     */
+    public long getCoalesced()
+    {
+        long count = 0L;
+        for (IngestQueue queue : queues)
+            count += queue.getCoalesced();
+        return count;
+    }
+
+    /**
+     * Returns the mailbox used to send messages to clients.
+     *
+     * @return  Datagram socket bound to the pollster address.
+     */
+    public DatagramSocket getMailbox()
+    {
+        return channels[0].socket();
+    }
+
+    /**
+     * Close all channels, which stops the receiver threads, and stop the
+     * queues.
+     */
+    public void close()
+    {
+        if (queues != null)
+            for (IngestQueue queue : queues)
+                if (queue != null) queue.close();
+        for (DatagramChannel channel : channels)
+        {
+            try
+            {
+                if (channel != null) channel.close();
+            }
+            catch (IOException exc)
+            {
+                // Shouldn't happen
+            }
+        }
+    }
+
+// Hidden helper classes.
+
+    /**
+     * Class ReaderThread drains one datagram channel and hands each message
+     * within its source's rate to its ingest queue, which decodes it and
+     * queues it if it is for an existing poll.
+     */
+    private class ReaderThread extends Thread
+    {
+        private DatagramChannel channel;
+        private IngestQueue queue;
+        private RateLimiter sources = new RateLimiter
+            (RateLimiter.SOURCE_RATE, RateLimiter.SOURCE_BURST,
+             RateLimiter.SOURCE_BUCKETS);
+        private LongAdder malformed = new LongAdder();
+
+        /**
+         * Construct a new reader thread.
+         *
+         * @param  channel  Channel to receive from.
+         * @param  queue    Queue to hand decoded messages to.
+         */
+        public ReaderThread(DatagramChannel channel, IngestQueue queue)
+        {
+            this.channel = channel;
+            this.queue = queue;
+        }
+
+        /**
+         * Run this reader thread.
+         */
+        public void run()
+        {
+            ByteBuffer buf = ByteBuffer.allocateDirect (128);
+            InetSocketAddress address;
+            try
+            {
+                for (;;)
+                {
+                    buf.clear();
+                    address = (InetSocketAddress) channel.receive (buf);
+                    if (! sources.tryAcquire (RateLimiter.sourceKey
+                            (address.getAddress(), address.getPort())))
+                        continue; // counted by the limiter
+                    buf.flip();
+                    if (! queue.offer (buf, address))
+                        malformed.increment();
+                }
+            }
+            catch (ClosedChannelException exc)
+            {
+                // Engine closed
+            }
+            catch (IOException exc)
+            {
+                exc.printStackTrace (System.err);
+            }
+        }
+    }
+
+}
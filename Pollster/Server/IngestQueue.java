@@ -0,0 +1,480 @@
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class IngestQueue is a bounded queue between a receiver thread, which
+ * decodes client messages, and an applier thread of the queue's own, which
+ * hands them to the polls. A slow poll then fills the queue, where what
+ * happens is up to the queue's drop policy, instead of the socket buffer,
+ * where datagrams are lost without a trace.
+ * <P>
+ * The queue is a ring of parallel arrays with one producer, the receiver
+ * thread, and one consumer, the applier thread, and takes no locks. The
+ * applier takes everything waiting, up to a batch, off the ring at once
+ * and hands each poll its part of the batch in one call. When
+ * the ring is full a new message is handled by the policy:
+ * <UL>
+ * <LI>{@link #DROP_OLDEST} drops the oldest message in the ring to make
+ *     room;
+ * <LI>{@link #DROP_NEWEST} drops the new message;
+ * <LI>{@link #COALESCE} sets the new message aside, keeping only the
+ *     latest set-aside message from each client to each poll. A client's
+ *     later vote supersedes its earlier ones anyway. The applier takes up
+ *     to a quarter of each batch from the set-aside messages, so they are
+ *     applied even while the ring stays full.
+ * </UL>
+ * Poll requests are never set aside; they are dropped when the ring is
+ * full, and the client asks again after the next heartbeat.
+ * <P>
+ * A receiver thread hands each datagram it accepts to {@link
+ * #offer(ByteBuffer,SocketAddress)}, which decodes and checks it and
+ * queues it if it is for an existing poll.
+ *
+ * @author  Paul Zenie
+ */
+public class IngestQueue
+{
+
+// Exported constants.
+
+    /**
+     * Drop policy: drop the oldest queued message.
+     */
+    public static final int DROP_OLDEST = 0;
+
+    /**
+     * Drop policy: drop the new message.
+     */
+    public static final int DROP_NEWEST = 1;
+
+    /**
+     * Drop policy: keep only the latest message from each client.
+     */
+    public static final int COALESCE = 2;
+
+    /**
+     * Default number of messages the ring holds.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Default most messages the applier takes off the ring at once.
+     */
+    public static final int DEFAULT_BATCH = 256;
+
+// Hidden data members.
+
+    private PollRegistry registry;
+    private DatagramSocket mailbox;
+    private VoteDecoder decoder = new VoteDecoder();
+    private int policy;
+    private int mask;
+
+    // Ring of messages.
+    private byte[] types;
+    private int[] pollIds;
+    private byte[] options;
+    private long[] timestamps;
+    private int[] sessions;
+    private SocketAddress[] addresses;
+    private AtomicLong head = new AtomicLong();
+    private AtomicLong tail = new AtomicLong();
+
+    // Latest set-aside message from each client to each poll.
+    private ConcurrentHashMap<Key, Message> overflow =
+        new ConcurrentHashMap<>();
+
+    private volatile int maxDepth;
+    private LongAdder dropped = new LongAdder();
+    private LongAdder coalesced = new LongAdder();
+    private volatile boolean closed;
+    private int batchSize = DEFAULT_BATCH;
+    private Applier applier;
+
+// Exported constructors.
+
+    /**
+     * Construct a new ingest queue. Its applier thread is started by
+     * {@link #start(String)}.
+     *
+     * @param  capacity  most messages the ring holds, rounded up to a power
+     *                   of 2
+     * @param  policy    what to do with a message when the ring is full:
+     *                   {@link #DROP_OLDEST}, {@link #DROP_NEWEST} or
+     *                   {@link #COALESCE}
+     * @param  registry  polls to hand messages to
+     * @param  mailbox   mailbox to reply to clients through
+     */
+    public IngestQueue
+        (int capacity,
+         int policy,
+         PollRegistry registry,
+         DatagramSocket mailbox)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException
+                ("IngestQueue(): capacity = " + capacity + " illegal");
+        if (policy < DROP_OLDEST || policy > COALESCE)
+            throw new IllegalArgumentException
+                ("IngestQueue(): policy = " + policy + " illegal");
+        int size = Integer.highestOneBit (Math.max (capacity - 1, 1)) << 1;
+        this.policy = policy;
+        this.registry = registry;
+        this.mailbox = mailbox;
+        mask = size - 1;
+        types = new byte [size];
+        pollIds = new int [size];
+        options = new byte [size];
+        timestamps = new long [size];
+        sessions = new int [size];
+        addresses = new SocketAddress [size];
+        applier = new Applier();
+    }
+
+// Exported operations.
+
+    /**
+     * Parse the name of a drop policy.
+     *
+     * @param  name  "oldest", "newest" or "coalesce"
+     * @return the policy, or -1 if there is no such policy
+     */
+    public static int parsePolicy(String name)
+    {
+        switch (name)
+        {
+            case "oldest": return DROP_OLDEST;
+            case "newest": return DROP_NEWEST;
+            case "coalesce": return COALESCE;
+            default: return -1;
+        }
+    }
+
+    /**
+     * Set the most messages the applier thread takes off the ring and hands
+     * to the polls at once. A bigger batch costs fewer lock acquisitions per
+     * message; a message may wait for the rest of its batch to be applied.
+     * Must be called before the applier thread is started.
+     *
+     * @param  batchSize  batch size
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 1)
+            throw new IllegalArgumentException
+                ("IngestQueue.setBatchSize(): batchSize = " + batchSize +
+                 " illegal");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Start the applier thread.
+     *
+     * @param  name  thread name
+     */
+    public void start(String name)
+    {
+        applier.setName (name);
+        applier.start();
+    }
+
+    /**
+     * Stop the applier thread. Messages still queued are dropped.
+     */
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark (applier);
+    }
+
+    /**
+     * Decode a received message and queue it, if it is well formed and for
+     * an existing poll. Only the receiver thread may call this.
+     *
+     * @param  message  the datagram, between its position and limit, which
+     *                  are not changed
+     * @param  address  client address
+     * @return false if the message was not well formed, true otherwise
+     */
+    public boolean offer(ByteBuffer message, SocketAddress address)
+    {
+        decoder.wrap (message);
+        byte type = decoder.type();
+        int option = 0;
+        long timestamp = 0L;
+        switch (type)
+        {
+            case 'V':
+                if (! decoder.isVote()) return false;
+                option = decoder.option();
+                timestamp = decoder.timestamp();
+                break;
+            case 'Q':
+                if (! decoder.isPollRequest()) return false;
+                break;
+            case 'K':
+                if (! decoder.isKeepAlive()) return false;
+                timestamp = decoder.keepAliveTimestamp();
+                break;
+            default:
+                return false;
+        }
+        int pollId = decoder.pollId();
+        if (registry.get (pollId) == null) return true; // no such poll
+        offer (type, pollId, option, timestamp, decoder.session(), address);
+        return true;
+    }
+
+    /**
+     * Queue a decoded message. Only the receiver thread may call this.
+     *
+     * @param  type       message type, 'V', 'Q' or 'K'
+     * @param  pollId     poll ID
+     * @param  option     option voted for, or 0
+     * @param  timestamp  time the vote or keepalive was sent
+     * @param  session    session ID sent by the client, or 0
+     * @param  address    client address
+     * @return true if the message was queued, false if it was dropped
+     */
+    public boolean offer
+        (byte type,
+         int pollId,
+         int option,
+         long timestamp,
+         int session,
+         SocketAddress address)
+    {
+        long t = tail.get();
+        long h = head.get();
+        if (t - h > mask)
+        {
+            if (policy == COALESCE && type != 'Q')
+            {
+                Message old = overflow.put (new Key (pollId, address),
+                    new Message
+                        (type, pollId, option, timestamp, session, address));
+                if (old != null) coalesced.increment();
+                LockSupport.unpark (applier);
+                return true;
+            }
+            if (policy != DROP_OLDEST)
+            {
+                dropped.increment();
+                return false;
+            }
+            // The applier may take the oldest message first; either way
+            // there is room now, but only our own drop counts.
+            if (head.compareAndSet (h, h + 1)) dropped.increment();
+        }
+        int i = (int) t & mask;
+        types[i] = type;
+        pollIds[i] = pollId;
+        options[i] = (byte) option;
+        timestamps[i] = timestamp;
+        sessions[i] = session;
+        addresses[i] = address;
+        tail.set (t + 1);
+        int depth = (int) (t + 1 - head.get());
+        if (depth > maxDepth) maxDepth = depth;
+        if (depth == 1) LockSupport.unpark (applier);
+        return true;
+    }
+
+    /**
+     * @return the number of messages in the ring
+     */
+    public int getDepth()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return the most messages the ring has held at once
+     */
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * @return the number of messages dropped because the ring was full
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of set-aside messages replaced by a later message
+     *         from the same client
+     */
+    public long getCoalesced()
+    {
+        return coalesced.sum();
+    }
+
+// Hidden operations.
+
+    /**
+     * Hand a batch of messages to their polls, each poll getting all of its
+     * messages at once.
+     *
+     * @param  batch   messages
+     * @param  client  view proxy to reply through
+     */
+    private void apply(VoteBatch batch, ViewProxy client)
+    {
+        for (int i = 0; i < batch.size(); ++ i)
+        {
+            if (batch.type (i) == 0) continue;
+            int pollId = batch.pollId (i);
+            PollsterModel poll = registry.get (pollId);
+            if (poll != null)
+            {
+                poll.applyBatch (batch, pollId, client);
+            }
+            else
+            {
+                // no such poll any more
+                for (int j = i; j < batch.size(); ++ j)
+                    if (batch.pollId (j) == pollId) batch.done (j);
+            }
+        }
+        batch.clear();
+    }
+
+// Hidden helper classes.
+
+    /**
+     * Class Key identifies a client of one poll among the set-aside
+     * messages.
+     */
+    private static class Key
+    {
+        private int pollId;
+        private SocketAddress address;
+
+        public Key(int pollId, SocketAddress address)
+        {
+            this.pollId = pollId;
+            this.address = address;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (! (obj instanceof Key)) return false;
+            Key that = (Key) obj;
+            return pollId == that.pollId && address.equals (that.address);
+        }
+
+        public int hashCode()
+        {
+            return 31 * pollId + address.hashCode();
+        }
+    }
+
+    /**
+     * Class Message is a message set aside by the {@link #COALESCE} policy.
+     */
+    private static class Message
+    {
+        private byte type;
+        private int pollId;
+        private int option;
+        private long timestamp;
+        private int session;
+        private SocketAddress address;
+
+        public Message
+            (byte type,
+             int pollId,
+             int option,
+             long timestamp,
+             int session,
+             SocketAddress address)
+        {
+            this.type = type;
+            this.pollId = pollId;
+            this.option = option;
+            this.timestamp = timestamp;
+            this.session = session;
+            this.address = address;
+        }
+    }
+
+    /**
+     * Class Applier takes messages off the ring, and then set-aside
+     * messages, a batch at a time and hands them to the polls.
+     */
+    private class Applier extends Thread
+    {
+        /**
+         * Run this applier thread.
+         */
+        public void run()
+        {
+            ViewProxy client = new ViewProxy (mailbox, null);
+            VoteBatch batch = new VoteBatch (batchSize);
+            while (! closed)
+            {
+                long h = head.get();
+                long t = tail.get();
+                // Leave room for set-aside messages, so they are not
+                // starved by a ring that never empties
+                int room = batch.capacity();
+                if (! overflow.isEmpty())
+                    room -= Math.max (room / 4, 1);
+                if (h != t && room > 0)
+                {
+                    int n = (int) Math.min (t - h, room);
+                    for (long k = h; k < h + n; ++ k)
+                    {
+                        int i = (int) k & mask;
+                        batch.add (types[i], pollIds[i], options[i] & 0xFF,
+                                   timestamps[i], sessions[i], addresses[i]);
+                    }
+                    // Fails if the receiver dropped a message meanwhile, in
+                    // which case the fields read may belong to newer ones.
+                    if (! head.compareAndSet (h, h + n))
+                    {
+                        batch.clear();
+                        continue;
+                    }
+                }
+                drainOverflow (batch);
+                if (batch.size() == 0)
+                {
+                    LockSupport.park (this);
+                    continue;
+                }
+                apply (batch, client);
+            }
+        }
+
+        /**
+         * Fill the rest of a batch with set-aside messages.
+         */
+        private void drainOverflow(VoteBatch batch)
+        {
+            if (overflow.isEmpty()) return;
+            Iterator<Map.Entry<Key, Message>> it =
+                overflow.entrySet().iterator();
+            while (it.hasNext() && batch.size() < batch.capacity())
+            {
+                Map.Entry<Key, Message> entry = it.next();
+                Message m = entry.getValue();
+                if (! overflow.remove (entry.getKey(), m)) continue;
+                batch.add (m.type, m.pollId, m.option, m.timestamp,
+                           m.session, m.address);
+            }
+        }
+    }
+
+}
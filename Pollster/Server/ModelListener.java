@@ -12,11 +12,15 @@ public interface ModelListener
     /**
      * Sends the poll to the clients
      *
+     * @param pollId ID of the poll
+     * @param version version of the poll, changed whenever its question is
      * @param question the poll question to send
+     * @param options the options the clients choose from
      * @param timestamp the time the message was sent at
      * @exception  IOException
      *     Thrown if an I/O error occurred.
      */
-    void setPoll(String question, long timestamp) throws IOException;
+    void setPoll(int pollId, int version, String question, String[] options,
+            long timestamp) throws IOException;
 
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class MulticastAudience is the audience for a {@link BroadcastScheduler}
+ * when the poll question is delivered by IP multicast. Every client joins
+ * the same multicast group, so one message per tick reaches all of them no
+ * matter how many there are. Votes still come back by unicast.
+ *
+ * @author  Paul Zenie
+ */
+public class MulticastAudience implements BroadcastScheduler.Audience
+{
+
+// Hidden data members.
+
+    private DatagramChannel channel;
+    private InetSocketAddress group;
+
+// Exported constructors.
+
+    /**
+     * Construct a new multicast audience.
+     *
+     * @param  channel  channel to send from
+     * @param  group    multicast group address and port
+     * @param  iface    interface to send on, or null for the default
+     * @exception  IOException
+     *     Thrown if the outgoing interface could not be set.
+     */
+    public MulticastAudience
+        (DatagramChannel channel,
+         InetSocketAddress group,
+         NetworkInterface iface)
+        throws IOException
+    {
+        if (! group.getAddress().isMulticastAddress())
+            throw new IllegalArgumentException
+                ("MulticastAudience(): " + group + " is not multicast");
+        this.channel = channel;
+        this.group = group;
+        if (iface != null)
+            channel.setOption (StandardSocketOptions.IP_MULTICAST_IF, iface);
+        channel.setOption (StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    }
+
+// Exported operations.
+
+    /**
+     * Send the poll message to the group. Only part 0 sends; the group is
+     * one destination, so there is nothing to split.
+     *
+     * @param  part       which part, 0 to parts-1
+     * @param  parts      total number of parts
+     * @param  frame      encoded poll message
+     * @param  poll       the poll
+     * @param  timestamp  time the message was sent at
+     * @param  sent       incremented for each message sent
+     * @param  dropped    incremented for each message not sent
+     */
+    public void sendPart
+        (int part,
+         int parts,
+         ByteBuffer frame,
+         BroadcastScheduler.Announcement poll,
+         long timestamp,
+         LongAdder sent,
+         LongAdder dropped)
+    {
+        if (part != 0) return;
+        int start = frame.position();
+        try
+        {
+            if (channel.send (frame, group) > 0)
+                sent.increment();
+            else
+                dropped.increment();
+        }
+        catch (IOException exc)
+        {
+            dropped.increment();
+        }
+        frame.position (start);
+    }
+
+}
@@ -0,0 +1,485 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Class PollFrame holds encoded poll messages in direct buffers so that the
+ * same bytes can be sent to every client.
+ * <P>
+ * A poll message carries the whole poll; a heartbeat only says which
+ * version of the poll is current:
+ * <PRE>
+ *     byte   'P'                byte  'H'
+ *     int    poll ID            int   poll ID
+ *     int    version            int   version
+ *     long   timestamp          long  timestamp
+ *     UTF    question
+ *     ubyte  number of options
+ *     UTF    each option
+ * </PRE>
+ * The strings are written as by DataOutputStream.writeUTF(). The poll is
+ * only re-encoded when it changes; a new timestamp is written in place.
+ * A poll frame is not safe for use by multiple threads.
+ * <P>
+ * A {@link PollFrame.Decoder Decoder} reads these messages back, for a
+ * relay that follows a pollster.
+ *
+ * @author  Paul Zenie
+ */
+public class PollFrame
+{
+
+// Exported constants.
+
+    /**
+     * Length in bytes of a heartbeat message.
+     */
+    public static final int HEARTBEAT_LENGTH = 17;
+
+    /**
+     * Largest number of options a poll may have.
+     */
+    public static final int MAX_OPTIONS = 255;
+
+    /**
+     * Largest poll message that fits in one datagram.
+     */
+    public static final int MAX_LENGTH = 65507;
+
+// Hidden data members.
+
+    private ByteBuffer buffer;
+    private ByteBuffer heartbeat;
+    private int pollId;
+    private int version;
+    private String question;
+    private String[] options;
+
+// Exported constructors.
+
+    /**
+     * Construct a new, empty poll frame. Its buffers are allocated when
+     * first used, so a frame that never sends costs next to nothing.
+     */
+    public PollFrame()
+    {
+    }
+
+// Exported operations.
+
+    /**
+     * Encode a poll message into this frame.
+     *
+     * @param  pollId     poll ID
+     * @param  version    poll version, changed whenever the question is
+     * @param  question   poll question
+     * @param  options    poll options, at most {@link #MAX_OPTIONS}
+     * @param  timestamp  time the message is sent at
+     * @return the encoded message, positioned at its start
+     *
+     * @exception  IllegalArgumentException
+     *     Thrown if there are too many options or the message does not fit
+     *     in a datagram.
+     */
+    public ByteBuffer encode
+        (int pollId,
+         int version,
+         String question,
+         String[] options,
+         long timestamp)
+    {
+        if (this.question == null || pollId != this.pollId ||
+                version != this.version || ! question.equals (this.question)
+                || ! Arrays.equals (options, this.options))
+        {
+            int length = encodedLength (question, options);
+            if (buffer == null || buffer.capacity() < length)
+                buffer = ByteBuffer.allocateDirect (Math.max (length, 256));
+            buffer.clear();
+            buffer.put ((byte) 'P');
+            buffer.putInt (pollId);
+            buffer.putInt (version);
+            buffer.putLong (0L);
+            putUtf (question);
+            buffer.put ((byte) options.length);
+            for (String option : options)
+                putUtf (option);
+            buffer.flip();
+            this.pollId = pollId;
+            this.version = version;
+            this.question = question;
+            this.options = options.clone();
+        }
+        buffer.putLong (9, timestamp);
+        buffer.position (0);
+        return buffer;
+    }
+
+    /**
+     * Encode a heartbeat message into this frame.
+     *
+     * @param  pollId     poll ID
+     * @param  version    poll version
+     * @param  timestamp  time the message is sent at
+     * @return the encoded message, positioned at its start
+     */
+    public ByteBuffer heartbeat(int pollId, int version, long timestamp)
+    {
+        if (heartbeat == null)
+        {
+            heartbeat = ByteBuffer.allocateDirect (HEARTBEAT_LENGTH);
+            heartbeat.put (0, (byte) 'H');
+        }
+        heartbeat.putInt (1, pollId);
+        heartbeat.putInt (5, version);
+        heartbeat.putLong (9, timestamp);
+        heartbeat.position (0);
+        return heartbeat;
+    }
+
+    /**
+     * Returns the length of a poll message, checking that it can be sent.
+     *
+     * @param  question  poll question
+     * @param  options   poll options
+     * @return the length of the encoded poll message
+     *
+     * @exception  IllegalArgumentException
+     *     Thrown if there are too many options or the message does not fit
+     *     in a datagram.
+     */
+    public static int encodedLength(String question, String[] options)
+    {
+        if (options.length > MAX_OPTIONS)
+            throw new IllegalArgumentException
+                ("PollFrame.encodedLength(): " + options.length +
+                 " options, at most " + MAX_OPTIONS + " allowed");
+        int length = 18 + 2 + utfLength (question);
+        for (String option : options)
+            length += 2 + utfLength (option);
+        if (length > MAX_LENGTH)
+            throw new IllegalArgumentException
+                ("PollFrame.encodedLength(): poll too long");
+        return length;
+    }
+
+// Hidden operations.
+
+    /**
+     * @param  s  string
+     * @return the length of the string in modified UTF-8
+     */
+    private static int utfLength(String s)
+    {
+        int len = 0;
+        for (int i = 0; i < s.length(); ++ i)
+        {
+            char c = s.charAt (i);
+            if (c >= 0x0001 && c <= 0x007F) len += 1;
+            else if (c <= 0x07FF) len += 2;
+            else len += 3;
+        }
+        return len;
+    }
+
+    /**
+     * Put a string into the buffer in modified UTF-8, preceded by its
+     * length.
+     *
+     * @param  s  string
+     */
+    private void putUtf(String s)
+    {
+        buffer.putShort ((short) utfLength (s));
+        for (int i = 0; i < s.length(); ++ i)
+        {
+            char c = s.charAt (i);
+            if (c >= 0x0001 && c <= 0x007F)
+            {
+                buffer.put ((byte) c);
+            }
+            else if (c <= 0x07FF)
+            {
+                buffer.put ((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put ((byte) (0x80 | (c & 0x3F)));
+            }
+            else
+            {
+                buffer.put ((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put ((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put ((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+// Exported helper classes.
+
+    /**
+     * Class PollFrame.Decoder is a flyweight that reads a message from a
+     * pollster in place, without copying it out of the receive buffer: a
+     * poll message or heartbeat as laid out above, or an acknowledgement
+     * ('A') as sent by {@link ViewProxy#acknowledge(long,int)
+     * ViewProxy.acknowledge()}.
+     * <P>
+     * The question and options of a poll message are decoded at most once
+     * per message, and only turned into new Strings when their bytes differ
+     * from the previous poll message's, so repeats of an unchanged poll
+     * produce no garbage.
+     */
+    public static class Decoder
+    {
+        private ByteBuffer buffer;
+        private int offset;
+        private int length;
+
+        // Whether the wrapped poll message is decoded: 0 not yet, 1 valid,
+        // -1 not valid.
+        private int decoded;
+
+        // Raw bytes and decoded text of the last poll seen.
+        private byte[] pollBytes = new byte [64];
+        private int pollLength = -1;
+        private String question;
+        private String[] options;
+        private char[] chars = new char [64];
+
+        /**
+         * Wrap this decoder around the message between the buffer's
+         * position and limit. The buffer's position and limit are not
+         * changed.
+         *
+         * @param  buffer  buffer holding one received datagram
+         * @return this decoder
+         */
+        public Decoder wrap(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+            this.offset = buffer.position();
+            this.length = buffer.remaining();
+            this.decoded = 0;
+            return this;
+        }
+
+        /**
+         * @return the message type byte, or 0 if the message is empty
+         */
+        public byte type()
+        {
+            return length > 0 ? buffer.get (offset) : 0;
+        }
+
+        /**
+         * @return true if the wrapped message is a well formed poll message
+         */
+        public boolean isPoll()
+        {
+            return length >= HEARTBEAT_LENGTH + 3 &&
+                buffer.get (offset) == 'P' && pollEnd() > 0;
+        }
+
+        /**
+         * @return true if the wrapped message is a well formed heartbeat
+         */
+        public boolean isHeartbeat()
+        {
+            return length >= HEARTBEAT_LENGTH && buffer.get (offset) == 'H';
+        }
+
+        /**
+         * @return true if the wrapped message is a well formed
+         *         acknowledgement
+         */
+        public boolean isAck()
+        {
+            return length >= 13 && buffer.get (offset) == 'A';
+        }
+
+        /**
+         * @return the keepalive interval field of an acknowledgement
+         */
+        public int keepAliveMillis()
+        {
+            return buffer.getInt (offset + 9);
+        }
+
+        /**
+         * @return the session ID field of an acknowledgement, or 0 if it
+         *         does not carry one
+         */
+        public int session()
+        {
+            return length >= 17 ? buffer.getInt (offset + 13) : 0;
+        }
+
+        /**
+         * @return the poll ID field of a poll message or heartbeat
+         */
+        public int pollId()
+        {
+            return buffer.getInt (offset + 1);
+        }
+
+        /**
+         * @return the version field of a poll message or heartbeat
+         */
+        public int version()
+        {
+            return buffer.getInt (offset + 5);
+        }
+
+        /**
+         * @return the timestamp field of a poll message or heartbeat
+         */
+        public long timestamp()
+        {
+            return buffer.getLong (offset + 9);
+        }
+
+        /**
+         * Returns the question of a poll message. If the poll is the same
+         * as the previous poll message the same String is returned.
+         *
+         * @return the question, or null if it is not valid modified UTF-8
+         */
+        public String question()
+        {
+            return decodePoll() ? question : null;
+        }
+
+        /**
+         * Returns the options of a poll message. If the poll is the same as
+         * the previous poll message the same array is returned; it must not
+         * be changed.
+         *
+         * @return the options, or null if one is not valid modified UTF-8
+         */
+        public String[] options()
+        {
+            return decodePoll() ? options : null;
+        }
+
+        /**
+         * Check that the strings of a poll message lie within the message.
+         *
+         * @return the offset just past the last option, or -1 if the
+         *         message is cut short
+         */
+        private int pollEnd()
+        {
+            int p = HEARTBEAT_LENGTH;
+            if (p + 2 > length) return -1;
+            p += 2 + (buffer.getShort (offset + p) & 0xFFFF);
+            if (p + 1 > length) return -1;
+            int n = buffer.get (offset + p) & 0xFF;
+            p += 1;
+            for (int i = 0; i < n; ++ i)
+            {
+                if (p + 2 > length) return -1;
+                p += 2 + (buffer.getShort (offset + p) & 0xFFFF);
+            }
+            return p <= length ? p : -1;
+        }
+
+        /**
+         * Decode the question and options of the wrapped poll message,
+         * unless that was done already or they are the same bytes as the
+         * last poll message's.
+         *
+         * @return true if the question and options are valid
+         */
+        private boolean decodePoll()
+        {
+            if (decoded == 0) decoded = decodeStrings() ? 1 : -1;
+            return decoded > 0;
+        }
+
+        /**
+         * Decode the question and options of the wrapped poll message.
+         *
+         * @return true if they are valid
+         */
+        private boolean decodeStrings()
+        {
+            int start = offset + HEARTBEAT_LENGTH;
+            int len = pollEnd() - HEARTBEAT_LENGTH;
+            if (len < 0) return false;
+            if (len == pollLength && samePoll (start, len)) return true;
+            int p = start;
+            int n = buffer.getShort (p) & 0xFFFF;
+            String q = decode (p + 2, n);
+            if (q == null) return false;
+            p += 2 + n;
+            String[] opts = new String [buffer.get (p) & 0xFF];
+            p += 1;
+            for (int i = 0; i < opts.length; ++ i)
+            {
+                n = buffer.getShort (p) & 0xFFFF;
+                opts[i] = decode (p + 2, n);
+                if (opts[i] == null) return false;
+                p += 2 + n;
+            }
+            if (pollBytes.length < len) pollBytes = new byte [len];
+            for (int i = 0; i < len; ++ i)
+                pollBytes[i] = buffer.get (start + i);
+            pollLength = len;
+            question = q;
+            options = opts;
+            return true;
+        }
+
+        /**
+         * @param  start  index of the encoded question and options
+         * @param  len    their length
+         * @return true if they equal the last ones decoded
+         */
+        private boolean samePoll(int start, int len)
+        {
+            for (int i = 0; i < len; ++ i)
+                if (pollBytes[i] != buffer.get (start + i)) return false;
+            return true;
+        }
+
+        /**
+         * Decode a modified UTF-8 string in the buffer.
+         *
+         * @param  at   index of the first byte of the string
+         * @param  len  length of the encoded string in the buffer
+         * @return the string, or null if it is malformed
+         */
+        private String decode(int at, int len)
+        {
+            if (chars.length < len) chars = new char [len];
+            int p = at;
+            int end = p + len;
+            int n = 0;
+            while (p < end)
+            {
+                int c = buffer.get (p) & 0xFF;
+                if (c < 0x80)
+                {
+                    chars[n++] = (char) c;
+                    p += 1;
+                }
+                else if ((c & 0xE0) == 0xC0 && p + 1 < end)
+                {
+                    chars[n++] = (char)
+                        (((c & 0x1F) << 6) | (buffer.get (p + 1) & 0x3F));
+                    p += 2;
+                }
+                else if ((c & 0xF0) == 0xE0 && p + 2 < end)
+                {
+                    chars[n++] = (char)
+                        (((c & 0x0F) << 12) |
+                         ((buffer.get (p + 1) & 0x3F) << 6) |
+                         (buffer.get (p + 2) & 0x3F));
+                    p += 3;
+                }
+                else
+                {
+                    return null;
+                }
+            }
+            return new String (chars, 0, n);
+        }
+    }
+
+}
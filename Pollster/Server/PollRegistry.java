@@ -0,0 +1,263 @@
+import java.net.DatagramSocket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Class PollRegistry holds the polls hosted by one pollster, keyed by poll
+ * ID. Each poll has its own {@link PollsterModel}, with its own responders,
+ * tally and {@link BroadcastScheduler}, while the receiver threads and the
+ * socket are shared by all of them.
+ * <P>
+ * The polls also share one executor, so a poll costs no threads of its
+ * own. A poll made with {@link #poll(int)} has one
+ * responder shard and allocates its message buffers only once it has a
+ * question, so thousands of quiet polls fit in one server.
+ *
+ * @author  Paul Zenie
+ */
+public class PollRegistry
+{
+
+// Hidden data members.
+
+    private ConcurrentHashMap<Integer, PollsterModel> polls;
+    private ScheduledExecutorService pool;
+    private DatagramSocket mailbox;
+    private BroadcastScheduler.Audience audience;
+    private int senders;
+    private int slices;
+    private int publishRate;
+    private int keepAliveMillis = 10000;
+    private int idleTtlMillis;
+    private RateLimiter admission;
+    private VoteJournal journal;
+    private int historyLength = TallyHistory.DEFAULT_CAPACITY;
+
+// Exported constructors.
+
+    /**
+     * Construct a new, empty poll registry.
+     *
+     * @param  senders      number of parts of each poll's clients sent to at
+     *                      the same time; the shared executor has one more
+     *                      thread than this
+     * @param  slices       number of slices per one second tick
+     * @param  publishRate  maximum number of tally updates per poll per
+     *                      second
+     */
+    public PollRegistry(int senders, int slices, int publishRate)
+    {
+        this.senders = senders;
+        this.slices = slices;
+        this.publishRate = publishRate;
+        polls = new ConcurrentHashMap<>();
+        // one thread more so a slow view never stops the broadcast
+        pool = Executors.newScheduledThreadPool (senders + 1);
+    }
+
+// Exported operations.
+
+    /**
+     * Set the mailbox every poll made from now on is sent to its clients
+     * through.
+     *
+     * @param  mailbox  Mailbox.
+     */
+    public void setMailbox(DatagramSocket mailbox)
+    {
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Send every poll made from now on to the given audience instead of to
+     * its own responders, for instance a multicast group.
+     *
+     * @param  audience  shared audience, or null for each poll's responders
+     */
+    public void setAudience(BroadcastScheduler.Audience audience)
+    {
+        this.audience = audience;
+    }
+
+    /**
+     * Set the keepalive interval of every poll made from now on.
+     *
+     * @param  millis  keepalive interval in milliseconds
+     */
+    public void setKeepAlive(int millis)
+    {
+        keepAliveMillis = millis;
+    }
+
+    /**
+     * Set how long a client of any poll made from now on may stay silent
+     * before it is evicted.
+     *
+     * @param  millis  time to live in milliseconds, or 0 for the default of
+     *                 three keepalive intervals
+     */
+    public void setIdleTtl(int millis)
+    {
+        idleTtlMillis = millis;
+    }
+
+    /**
+     * Limit how many new clients all polls made from now on let in per
+     * second, together.
+     *
+     * @param  perSecond  new clients per second, or 0 for no limit
+     */
+    public void setAdmissionLimit(int perSecond)
+    {
+        admission = perSecond > 0
+            ? new RateLimiter (perSecond, perSecond, 1)
+            : null;
+    }
+
+    /**
+     * Set how many per-second samples of its tally every poll made from now
+     * on keeps. A poll's history is made once it has a question, and takes
+     * {@link TallyHistory#bytes(int,int) 24 + 4 &times; options} bytes per
+     * sample outside the heap: at the default of 600 samples, 19 KB for a
+     * poll of two options and 626 KB for one of 255; at four hours, 14400
+     * samples, 461 KB and 15 MB.
+     *
+     * @param  samples  number of samples
+     */
+    public void setHistoryLength(int samples)
+    {
+        historyLength = samples;
+    }
+
+    /**
+     * Set the journal every poll, open now or made from now on, records its
+     * votes in.
+     *
+     * @param  journal  journal, or null for none
+     */
+    public synchronized void setJournal(VoteJournal journal)
+    {
+        this.journal = journal;
+        for (Integer pollId : polls.keySet())
+            polls.get (pollId).setJournal (journal, pollId);
+    }
+
+    /**
+     * @return the number of new clients refused by the admission limit
+     */
+    public long getAdmissionsRefused()
+    {
+        RateLimiter limit = admission;
+        return limit != null ? limit.getRejected() : 0L;
+    }
+
+    /**
+     * @return the number of clients evicted from the open polls for staying
+     *         silent
+     */
+    public long getEvicted()
+    {
+        long count = 0L;
+        for (PollsterModel model : polls.values())
+            count += model.getEvicted();
+        return count;
+    }
+
+    /**
+     * Look up a poll.
+     *
+     * @param  pollId  poll ID
+     * @return the poll's model, or null if there is no such poll
+     */
+    public PollsterModel get(int pollId)
+    {
+        return polls.get (pollId);
+    }
+
+    /**
+     * Look up a poll, making it with one responder shard if it does not
+     * exist yet.
+     *
+     * @param  pollId  poll ID
+     * @return the poll's model
+     */
+    public PollsterModel poll(int pollId)
+    {
+        PollsterModel model = polls.get (pollId);
+        return model != null ? model : create (pollId, 1);
+    }
+
+    /**
+     * Make a poll, unless it already exists.
+     *
+     * @param  pollId      poll ID
+     * @param  shardCount  number of responder shards, for a poll expected
+     *                     to get many votes at once
+     * @return the poll's model
+     */
+    public synchronized PollsterModel create(int pollId, int shardCount)
+    {
+        PollsterModel model = polls.get (pollId);
+        if (model == null)
+        {
+            model = new PollsterModel (shardCount, publishRate, pool);
+            model.setKeepAlive (keepAliveMillis);
+            model.setIdleTtl (idleTtlMillis);
+            model.setAdmission (admission);
+            model.setHistoryLength (historyLength);
+            if (journal != null) model.setJournal (journal, pollId);
+            model.setMailbox (mailbox);
+            // a shared audience is one destination, so one part is enough
+            model.setBroadcastScheduler (audience != null
+                ? new BroadcastScheduler (audience, pollId, pool, 1, 1)
+                : new BroadcastScheduler
+                    (model, pollId, pool, senders, slices));
+            polls.put (pollId, model);
+        }
+        return model;
+    }
+
+    /**
+     * Close a poll. Its clients stop getting the question and their votes
+     * are ignored from then on.
+     *
+     * @param  pollId  poll ID
+     * @return true if there was such a poll
+     */
+    public synchronized boolean remove(int pollId)
+    {
+        PollsterModel model = polls.remove (pollId);
+        if (model == null) return false;
+        model.shutdown();
+        if (journal != null)
+            journal.append ((byte) 'X', pollId, 0, 0, 0, 0L, 0, 0L);
+        return true;
+    }
+
+    /**
+     * @return the IDs of the open polls
+     */
+    public Set<Integer> pollIds()
+    {
+        return polls.keySet();
+    }
+
+    /**
+     * @return the executor the polls share
+     */
+    public ScheduledExecutorService getExecutor()
+    {
+        return pool;
+    }
+
+    /**
+     * @return the number of polls
+     */
+    public int size()
+    {
+        return polls.size();
+    }
+
+}
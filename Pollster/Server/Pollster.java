@@ -1,11 +1,69 @@
+import java.io.File;
+import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.net.NetworkInterface;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 
 /**
  * The server main program for the Poll System application.
  *
- * Usage: java DnsClient serverhost serverport clienthost clientport
+ * Usage: java Pollster pollsterhost pollsterport [-readers n] [-publish n]
+ *     [-senders n] [-slices n] [-multicast group port [-interface name]]
+ *     [-keepalive ms] [-ttl ms] [-queue n] [-drop oldest|newest|coalesce]
+ *     [-rate n] [-admit n] [-batch n] [-history n]
+ *     [-journal dir [-sync ms] [-snapshot ms]]
+ *     [-node id -gossip host:port [-peer host:port]... [-gossipms ms]]
+ * <P>
+ * With no options one {@link ServerReaderThread} receives all votes. With
+ * <TT>-readers</TT> an {@link IngestEngine} receives votes on <I>n</I>
+ * threads. <TT>-publish</TT> sets how many times per second the tally shown
+ * in the window may be updated (default 10). The poll question is sent to
+ * the clients every second by <TT>-senders</TT> threads (default 1), in
+ * <TT>-slices</TT> slices spread across the second (default 10). With
+ * <TT>-multicast</TT> the question is instead sent once per second to the
+ * given multicast group, on the named interface or else the interface of
+ * the pollster address. <TT>-keepalive</TT> sets how often clients whose vote
+ * has not changed must check in (default 10000 ms). <TT>-ttl</TT> sets how
+ * long a silent client is kept before it and its vote are dropped (default
+ * three keepalive intervals).
+ * <P>
+ * Each receiver thread queues the messages it decodes for an applier thread
+ * (see {@link IngestQueue}). <TT>-queue</TT> sets how many messages the
+ * queue holds (default 4096) and <TT>-drop</TT> what happens to a message
+ * when it is full: the oldest or newest message is dropped, or by default
+ * only the latest message from each client is kept. The applier takes up to
+ * <TT>-batch</TT> messages at once (default 256). Before that each
+ * source may send <TT>-rate</TT> messages per second (default 20) and the
+ * polls together let in <TT>-admit</TT> new clients per second (default
+ * 10000); messages over the limits are counted and dropped.
+ * <P>
+ * Each poll keeps a {@link TallyHistory} of its tally, sampled once a
+ * second, for the last <TT>-history</TT> seconds (default ten minutes).
+ * Each second kept costs a poll 24 bytes plus 4 per option, outside the
+ * heap: ten minutes of a two-option poll take 19 KB, and four hours
+ * (<TT>-history 14400</TT>) 461 KB; for 255 options, 626 KB and 15 MB.
+ * <P>
+ * With <TT>-journal</TT> every vote is recorded in a {@link VoteJournal} in
+ * the given directory, which is forced to the disk at least every
+ * <TT>-sync</TT> milliseconds (default 100). A {@link VoteSnapshot} of the
+ * polls is written there every <TT>-snapshot</TT> milliseconds (default
+ * 60000), and on startup the polls are restored from the latest snapshot
+ * and the journal after it.
+ * <P>
+ * Several pollsters, each with its own clients, can share their tallies:
+ * each is given a distinct <TT>-node</TT> ID, a <TT>-gossip</TT> address
+ * of its own and the gossip addresses of the others with <TT>-peer</TT>,
+ * and then exchanges tally counters with them every <TT>-gossipms</TT>
+ * milliseconds (default 1000; see {@link TallyGossip}). A
+ * {@link PollsterRelay} in front of a crowd of clients joins in the same
+ * way, naming this pollster's gossip address as its upstream.
+ * <P>
+ * One pollster hosts any number of polls, each with its own ID, question
+ * and tally; the window shows one poll at a time. Poll 0 always exists,
+ * and a poll is made when the window first sends a question for its ID.
  *
  * @author  Paul Zenie
  */
@@ -19,7 +77,7 @@ public class Pollster {
     public static void main(String[] args) throws Exception
     {
         //Parse command line arguments
-        if (args.length != 2) usage();
+        if (args.length < 2) usage();
         String pollsterhost = args[0];
         int pollsterport = 0;
         try {
@@ -30,24 +88,286 @@ public class Pollster {
             System.err.println("ERROR: Port must be an integer.");
             System.exit(1);
         }
+        int readers = 0;
+        int publishRate = 10;
+        int senders = 1;
+        int slices = 10;
+        InetSocketAddress group = null;
+        String ifaceName = null;
+        int keepAlive = 10000;
+        int ttl = 0;
+        int queueCapacity = IngestQueue.DEFAULT_CAPACITY;
+        int dropPolicy = IngestQueue.COALESCE;
+        int sourceRate = RateLimiter.SOURCE_RATE;
+        int admitRate = 10000;
+        int batchSize = IngestQueue.DEFAULT_BATCH;
+        int historyLength = TallyHistory.DEFAULT_CAPACITY;
+        File journalDir = null;
+        int syncMillis = VoteJournal.DEFAULT_FLUSH_MILLIS;
+        int snapshotMillis = VoteSnapshot.DEFAULT_PERIOD_MILLIS;
+        int nodeId = -1;
+        InetSocketAddress gossipAddress = null;
+        ArrayList<InetSocketAddress> peers = new ArrayList<>();
+        int gossipMillis = TallyGossip.DEFAULT_INTERVAL_MILLIS;
+        for (int i = 2; i < args.length; ++ i)
+        {
+            if (args[i].equals("-readers") && i + 1 < args.length)
+            {
+                readers = parseCount(args[++ i], "readers");
+            }
+            else if (args[i].equals("-publish") && i + 1 < args.length)
+            {
+                publishRate = parseCount(args[++ i], "publish");
+            }
+            else if (args[i].equals("-senders") && i + 1 < args.length)
+            {
+                senders = parseCount(args[++ i], "senders");
+            }
+            else if (args[i].equals("-slices") && i + 1 < args.length)
+            {
+                slices = Math.min(parseCount(args[++ i], "slices"), 1000);
+            }
+            else if (args[i].equals("-multicast") && i + 2 < args.length)
+            {
+                String grouphost = args[++ i];
+                group = new InetSocketAddress
+                        (grouphost, parseCount(args[++ i], "group port"));
+                if (group.isUnresolved() ||
+                        !group.getAddress().isMulticastAddress())
+                {
+                    System.err.println("ERROR: " + grouphost +
+                            " is not a multicast address.");
+                    System.exit(1);
+                }
+            }
+            else if (args[i].equals("-interface") && i + 1 < args.length)
+            {
+                ifaceName = args[++ i];
+            }
+            else if (args[i].equals("-keepalive") && i + 1 < args.length)
+            {
+                keepAlive = parseCount(args[++ i], "keepalive");
+            }
+            else if (args[i].equals("-ttl") && i + 1 < args.length)
+            {
+                ttl = parseCount(args[++ i], "ttl");
+            }
+            else if (args[i].equals("-queue") && i + 1 < args.length)
+            {
+                queueCapacity = parseCount(args[++ i], "queue");
+            }
+            else if (args[i].equals("-rate") && i + 1 < args.length)
+            {
+                sourceRate = parseCount(args[++ i], "rate");
+            }
+            else if (args[i].equals("-admit") && i + 1 < args.length)
+            {
+                admitRate = parseCount(args[++ i], "admit");
+            }
+            else if (args[i].equals("-batch") && i + 1 < args.length)
+            {
+                batchSize = parseCount(args[++ i], "batch");
+            }
+            else if (args[i].equals("-history") && i + 1 < args.length)
+            {
+                historyLength = parseCount(args[++ i], "history");
+            }
+            else if (args[i].equals("-journal") && i + 1 < args.length)
+            {
+                journalDir = new File(args[++ i]);
+            }
+            else if (args[i].equals("-sync") && i + 1 < args.length)
+            {
+                syncMillis = parseCount(args[++ i], "sync");
+            }
+            else if (args[i].equals("-snapshot") && i + 1 < args.length)
+            {
+                snapshotMillis = parseCount(args[++ i], "snapshot");
+            }
+            else if (args[i].equals("-node") && i + 1 < args.length)
+            {
+                nodeId = parseCount(args[++ i], "node");
+            }
+            else if (args[i].equals("-gossip") && i + 1 < args.length)
+            {
+                gossipAddress = parseAddress(args[++ i], "gossip");
+            }
+            else if (args[i].equals("-peer") && i + 1 < args.length)
+            {
+                peers.add(parseAddress(args[++ i], "peer"));
+            }
+            else if (args[i].equals("-gossipms") && i + 1 < args.length)
+            {
+                gossipMillis = parseCount(args[++ i], "gossipms");
+            }
+            else if (args[i].equals("-drop") && i + 1 < args.length)
+            {
+                dropPolicy = IngestQueue.parsePolicy(args[++ i]);
+                if (dropPolicy < 0)
+                {
+                    System.err.println("ERROR: drop must be oldest, newest" +
+                            " or coalesce.");
+                    System.exit(1);
+                }
+            }
+            else
+            {
+                usage();
+            }
+        }
+        if ((gossipAddress == null) != (nodeId < 0))
+        {
+            System.err.println("ERROR: -node and -gossip go together.");
+            System.exit(1);
+        }
         //Setup mailbox
+        PollRegistry registry = new PollRegistry(senders, slices, publishRate);
+        registry.setKeepAlive(keepAlive);
+        registry.setIdleTtl(ttl);
+        registry.setAdmissionLimit(admitRate);
+        registry.setHistoryLength(historyLength);
         DatagramSocket mailbox = null;
-        try {mailbox = new DatagramSocket(new InetSocketAddress
-                (pollsterhost, pollsterport));
+        ServerReaderThread reader = null;
+        IngestEngine engine = null;
+        try {
+            if (readers > 0)
+            {
+                engine = new IngestEngine(new InetSocketAddress
+                        (pollsterhost, pollsterport), readers, registry,
+                        queueCapacity, dropPolicy);
+                engine.setSourceLimit(sourceRate, 2 * sourceRate);
+                engine.setBatchSize(batchSize);
+                mailbox = engine.getMailbox();
+            }
+            else
+            {
+                // opened through a channel so poll frames can be sent
+                // straight from a direct buffer
+                mailbox = DatagramChannel.open().bind(new InetSocketAddress
+                        (pollsterhost, pollsterport)).socket();
+                reader = new ServerReaderThread(mailbox, registry,
+                        queueCapacity, dropPolicy);
+                reader.setSourceLimit(sourceRate, 2 * sourceRate);
+                reader.getQueue().setBatchSize(batchSize);
+            }
         }
-        catch (SocketException e)
+        catch (IOException e)
         {
             System.err.println("ERROR: Could not start socket," +
                     " try a different address/port.");
             System.exit(1);
         }
+        registry.setMailbox(mailbox);
+        if (group != null)
+        {
+            NetworkInterface iface = ifaceName != null
+                    ? NetworkInterface.getByName(ifaceName)
+                    : NetworkInterface.getByInetAddress
+                            (InetAddress.getByName(pollsterhost));
+            if (ifaceName != null && iface == null)
+            {
+                System.err.println("ERROR: No interface " + ifaceName + ".");
+                System.exit(1);
+            }
+            registry.setAudience
+                    (new MulticastAudience(mailbox.getChannel(), group, iface));
+        }
+        if (journalDir != null)
+        {
+            try {
+                VoteSnapshot.recover(journalDir, registry);
+                VoteJournal journal = new VoteJournal(journalDir, syncMillis,
+                        VoteJournal.DEFAULT_FLUSH_BYTES);
+                registry.setJournal(journal);
+                new VoteSnapshot(journalDir, registry, journal)
+                        .start(snapshotMillis);
+            }
+            catch (IOException e)
+            {
+                System.err.println("ERROR: Could not restore from journal" +
+                        " in " + journalDir + ".");
+                System.exit(1);
+            }
+        }
+        if (gossipAddress != null)
+        {
+            try {
+                new TallyGossip(nodeId, DatagramChannel.open()
+                        .bind(gossipAddress), registry,
+                        peers.toArray(new InetSocketAddress[peers.size()]))
+                        .start(gossipMillis);
+            }
+            catch (IOException e)
+            {
+                System.err.println("ERROR: Could not start gossip on " +
+                        gossipAddress + ".");
+                System.exit(1);
+            }
+        }
+        // the default poll may be busy, so it gets a shard per thread
+        registry.create(0, 2 * Runtime.getRuntime().availableProcessors());
         //create classes and set listeners
         PollsterUI view = PollsterUI.create();
-        PollsterModel model = new PollsterModel();
-        ServerReaderThread reader = new ServerReaderThread(mailbox, model);
-        view.setListener(model);
-        model.setListener(view);
-        reader.start();
+        view.setRegistry(registry);
+        if (engine != null) engine.start();
+        else reader.start();
+    }
+
+    /**
+     * Parse a positive count option, exiting with an error if it is not one.
+     *
+     * @param  arg   the option value
+     * @param  name  the option name for the error message
+     * @return the parsed count
+     */
+    private static int parseCount(String arg, String name)
+    {
+        int count = 0;
+        try {
+            count = Integer.parseInt(arg);
+        }
+        catch (NumberFormatException e)
+        {
+            count = 0;
+        }
+        if (count < 1)
+        {
+            System.err.println("ERROR: " + name +
+                    " must be a positive integer.");
+            System.exit(1);
+        }
+        return count;
+    }
+
+    /**
+     * Parse a host:port option, exiting with an error if it is not one.
+     *
+     * @param  arg   the option value
+     * @param  name  the option name for the error message
+     * @return the parsed address
+     */
+    private static InetSocketAddress parseAddress(String arg, String name)
+    {
+        int colon = arg.lastIndexOf(':');
+        InetSocketAddress address = null;
+        if (colon > 0)
+        {
+            try {
+                address = new InetSocketAddress(arg.substring(0, colon),
+                        Integer.parseInt(arg.substring(colon + 1)));
+            }
+            catch (IllegalArgumentException e)
+            {
+                address = null;
+            }
+        }
+        if (address == null || address.isUnresolved())
+        {
+            System.err.println("ERROR: " + name +
+                    " must be host:port.");
+            System.exit(1);
+        }
+        return address;
     }
 
     /**
@@ -55,7 +375,16 @@ public class Pollster {
      */
     private static void usage()
     {
-        System.err.println ("Usage: java Pollster <pollsterhost> <pollsterport>");
+        System.err.println ("Usage: java Pollster <pollsterhost> " +
+                "<pollsterport> [-readers <n>] [-publish <n>] " +
+                "[-senders <n>] [-slices <n>] " +
+                "[-multicast <group> <port> [-interface <name>]] " +
+                "[-keepalive <ms>] [-ttl <ms>] [-queue <n>] " +
+                "[-drop oldest|newest|coalesce] [-rate <n>] [-admit <n>] " +
+                "[-batch <n>] [-history <n>] " +
+                "[-journal <dir> [-sync <ms>] [-snapshot <ms>]] " +
+                "[-node <id> -gossip <host:port> [-peer <host:port>]... " +
+                "[-gossipms <ms>]]");
         System.exit (1);
     }
 }
@@ -1,35 +1,183 @@
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Objects;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The model object for the Pollster application.
  * The model object resides in the server.
  * The model object is responsible for keeping track of clients and their votes
  * The model object communicates between the view and client
+ * <P>
+ * A poll has up to 255 options. Responders are split into shards, each a
+ * {@link ResponderStore} with its own lock and its own partial tally, an
+ * array with one counter per option, so votes from clients in different
+ * shards never wait on each other and a vote costs the same however many
+ * options there are. The partial tallies are only added up when the tally
+ * is read.
+ * Tally changes are handed to a {@link TallyPublisher}, which sends the
+ * latest tally to the view at a limited rate on its own thread. The poll
+ * question is repeated to the clients by a {@link BroadcastScheduler}.
+ * <P>
+ * A client's session ID names its shard and slot, so a client that sends
+ * one is found without any lookup by address. The view proxy a vote comes
+ * with is only used to reply to it; receiver threads may reuse one proxy
+ * for every message.
+ * <P>
+ * Many models, one per poll, can share one executor (see
+ * {@link PollRegistry}).
+ * <P>
+ * Every vote is acknowledged, telling the client how often to send a
+ * keepalive while its vote stays the same. A client is evicted, and its
+ * vote with it, once it has been silent for the idle time to live, by
+ * default three keepalive intervals but never less than three seconds;
+ * clients are checked once a second.
+ * <P>
+ * Right after each check the tally is sampled into a {@link TallyHistory},
+ * which keeps the samples since the question was last set, up to a limit.
  *
  * @author  Paul Zenie
  */
-public class PollsterModel implements ViewListener, ModelListener
+public class PollsterModel
+    implements ViewListener, BroadcastScheduler.Audience
 {
 
-    private ViewListener viewListener = null;
-    private HashMap<ModelListener, ResponderStateModel> responderMap;
+    // Length of a tick of the clients' last-seen times.
+    private static final long TICK_MILLIS = 100L;
+
+    // Bits of a session ID holding the shard and slot; the rest hold the
+    // slot's generation.
+    private static final int SESSION_BITS = 24;
+
+    // Flags returned by apply().
+    private static final int CHANGED = 1;
+    private static final int ADDED = 2;
+    private static final int FULL = 4;
+    private static final int REFUSED = 8;
+    private static final int INVALID = 16;
+
+    // Result of applyIn() for a stale session in the wrong shard.
+    private static final long STALE = -1L;
+
+    // Working arrays for applyBatch() and sendPart(), one set per thread.
+    private static final ThreadLocal<Scratch> SCRATCH =
+        new ThreadLocal<Scratch>()
+        {
+            protected Scratch initialValue()
+            {
+                return new Scratch();
+            }
+        };
+
+    private volatile ViewListener viewListener = null;
+    private ResponderStore[] shards;
+    private int shardBits;
     private ScheduledExecutorService pool;
+    private boolean ownsPool;
+    private ScheduledFuture<?> sweeper;
+    private long startNanos = System.nanoTime();
+    private volatile DatagramSocket mailbox;
+    private TallyPublisher publisher;
+    private volatile BroadcastScheduler broadcaster;
+    private volatile int keepAliveMillis = 10000;
+    private volatile int idleTtlMillis;
+    private LongAdder evicted = new LongAdder();
+    private volatile RateLimiter admission;
+    private volatile int optionCount;
+    private volatile int[] remoteCounts;
+    private volatile int remoteResponders;
+    private volatile int historyLength = TallyHistory.DEFAULT_CAPACITY;
+    private volatile TallyHistory history;
+    private volatile boolean clearHistory;
+    private long lastChanges;
+    private int[] sampleCounts = new int[0];
 
 // Exported constructors.
 
     /**
-     * Construct a new Pollster model.
+     * Construct a new Pollster model with two shards per processor that
+     * publishes the tally at most 10 times per second.
      */
     public PollsterModel()
     {
-        responderMap = new HashMap<>();
-        pool = Executors.newScheduledThreadPool (1);
+        this(2 * Runtime.getRuntime().availableProcessors(), 10);
+    }
+
+    /**
+     * Construct a new Pollster model.
+     *
+     * @param  shardCount  number of responder shards, rounded up to a
+     *                     power of 2
+     * @param  publishRate maximum number of tally updates sent to the view
+     *                     per second
+     */
+    public PollsterModel(int shardCount, int publishRate)
+    {
+        this(shardCount, publishRate, null);
+    }
+
+    /**
+     * Construct a new Pollster model that shares an executor with other
+     * models. Its tally is published, and its clients checked for
+     * timeouts, on the executor.
+     *
+     * @param  shardCount  number of responder shards, rounded up to a
+     *                     power of 2
+     * @param  publishRate maximum number of tally updates sent to the view
+     *                     per second
+     * @param  pool        executor for publishing the tally, or null for
+     *                     one of the model's own
+     */
+    public PollsterModel
+        (int shardCount,
+         int publishRate,
+         ScheduledExecutorService pool)
+    {
+        int size = Integer.highestOneBit(Math.max(shardCount - 1, 1)) << 1;
+        shardBits = Integer.numberOfTrailingZeros(size);
+        shards = new ResponderStore[size];
+        for (int i = 0; i < size; ++ i)
+        {
+            // as many slots as a session ID can name
+            shards[i] = new ResponderStore
+                    ((1 << (SESSION_BITS - shardBits)) - 1,
+                     PollFrame.MAX_OPTIONS);
+        }
+        Runnable publish = new Runnable()
+        {
+            public void run()
+            {
+                CountVote();
+            }
+        };
+        ownsPool = pool == null;
+        if (ownsPool)
+        {
+            // a model on its own publishes on a thread of its own
+            this.pool = Executors.newScheduledThreadPool (1);
+            publisher = new TallyPublisher(publish, publishRate);
+        }
+        else
+        {
+            this.pool = pool;
+            publisher = new TallyPublisher(publish, publishRate, pool);
+        }
+        sweeper = this.pool.scheduleAtFixedRate(new Runnable()
+        {
+            public void run()
+            {
+                sweep();
+                sample();
+            }
+        }, 1L, 1L, TimeUnit.SECONDS);
     }
 
 // Exported operations.
@@ -44,26 +192,412 @@ public class PollsterModel implements ViewListener, ModelListener
         viewListener = listener;
     }
 
-    // model listener functions
+    /**
+     * Stop publishing the tally and broadcasting the poll. A model with an
+     * executor of its own also stops the executor.
+     */
+    public void shutdown()
+    {
+        publisher.shutdown();
+        sweeper.cancel(false);
+        if (broadcaster != null) {
+            broadcaster.shutdown();
+        }
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Set the interval at which clients send keepalives while their vote
+     * does not change. Clients learn it from the acknowledgement of their
+     * next vote.
+     *
+     * @param  millis  keepalive interval in milliseconds
+     */
+    public void setKeepAlive(int millis)
+    {
+        if (millis < 1)
+            throw new IllegalArgumentException
+                ("PollsterModel.setKeepAlive(): millis = " + millis +
+                 " illegal");
+        keepAliveMillis = millis;
+    }
+
+    /**
+     * Set how long a client may stay silent before it is evicted, along
+     * with its vote. It should be a few keepalive intervals, so a client is
+     * not evicted for one lost keepalive.
+     *
+     * @param  millis  time to live in milliseconds, or 0 for three
+     *                 keepalive intervals but never less than three seconds
+     */
+    public void setIdleTtl(int millis)
+    {
+        if (millis < 0)
+            throw new IllegalArgumentException
+                ("PollsterModel.setIdleTtl(): millis = " + millis +
+                 " illegal");
+        idleTtlMillis = millis;
+    }
+
+    /**
+     * @return how long a client may stay silent before it is evicted
+     */
+    private long timeoutMillis()
+    {
+        int ttl = idleTtlMillis;
+        return ttl > 0 ? ttl : Math.max(3000L, 3L * keepAliveMillis);
+    }
+
+    /**
+     * Limit how many new clients are let in per second. A new client that
+     * is refused gets no acknowledgement, so it sends its vote again a
+     * little later. One limiter may be shared by many models.
+     *
+     * @param  admission  rate limiter consulted with key 0 for each new
+     *                    client, or null for no limit
+     */
+    public void setAdmission(RateLimiter admission)
+    {
+        this.admission = admission;
+    }
+
+    /**
+     * Record every vote, move and eviction of the poll's clients in a
+     * journal from now on.
+     *
+     * @param  journal  journal, or null to stop recording
+     * @param  pollId   poll ID to record
+     */
+    public void setJournal(VoteJournal journal, int pollId)
+    {
+        if (journal != null) {
+            // tells a replay how to make the poll if no snapshot has it
+            journal.append((byte) 'N', pollId, shards.length, 0, 0, 0L, 0,
+                    0L);
+        }
+        for (int i = 0; i < shards.length; ++ i) {
+            synchronized (shards[i]) {
+                shards[i].setJournal (journal, pollId, i);
+            }
+        }
+    }
+
+    /**
+     * Set how many samples of the tally are kept, from the next time the
+     * question is set.
+     *
+     * @param  samples  number of samples, one a second
+     */
+    public void setHistoryLength(int samples)
+    {
+        if (samples < 1)
+            throw new IllegalArgumentException
+                ("PollsterModel.setHistoryLength(): samples = " + samples +
+                 " illegal");
+        historyLength = samples;
+    }
+
+    /**
+     * @return the samples of the tally since the question was last set, or
+     *         null if no sample has been taken yet
+     */
+    public TallyHistory getHistory()
+    {
+        return history;
+    }
+
+    /**
+     * @return the number of options of the current question, or 0 if
+     *         there is none
+     */
+    public int getOptionCount()
+    {
+        return optionCount;
+    }
+
+    /**
+     * Add up the votes of this server's own clients.
+     *
+     * @param  counts  gets the votes for each option, option 1 first
+     */
+    public void localCounts(int[] counts)
+    {
+        Arrays.fill(counts, 0);
+        for (ResponderStore shard : shards) {
+            for (int i = 0; i < counts.length; ++ i) {
+                counts[i] += shard.count(i + 1);
+            }
+        }
+    }
+
+    /**
+     * Set the votes other servers have for each option, which are added to
+     * this server's own in the tally (see {@link TallyGossip}).
+     *
+     * @param  counts  votes for each option, option 1 first, or null for
+     *                 none
+     */
+    public void setRemoteCounts(int[] counts)
+    {
+        remoteCounts = counts;
+        publisher.markDirty();
+    }
+
+    /**
+     * Set the number of clients other servers have in the poll, which are
+     * added to this server's own in the history (see {@link TallyGossip}).
+     *
+     * @param  count  number of clients
+     */
+    public void setRemoteResponders(int count)
+    {
+        remoteResponders = count;
+    }
+
+    /**
+     * @return the number of clients other servers have in the poll
+     */
+    public int getRemoteResponders()
+    {
+        return remoteResponders;
+    }
+
+    /**
+     * @return the number of responder shards
+     */
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * @return the poll being broadcast, or null if there is none
+     */
+    public BroadcastScheduler.Announcement getPoll()
+    {
+        BroadcastScheduler b = broadcaster;
+        return b != null ? b.currentPoll() : null;
+    }
+
+    /**
+     * Write the poll's clients and their votes to a snapshot. A shard is
+     * locked for one chunk of its slots at a time, like a sweep, so votes
+     * keep coming in meanwhile; the journal records written since the
+     * snapshot was begun bring it up to date on a restore.
+     *
+     * @param  out  snapshot
+     * @exception  IOException
+     *     Thrown if the snapshot could not be written.
+     */
+    public void writeSnapshot(DataOutput out) throws IOException
+    {
+        for (ResponderStore shard : shards) {
+            for (int chunk = 0; ; ++ chunk) {
+                synchronized (shard) {
+                    if (chunk >= shard.chunks()) {
+                        break;
+                    }
+                    out.writeBoolean(true);
+                    shard.writeChunk(chunk, out);
+                }
+            }
+            out.writeBoolean(false);
+        }
+    }
+
+    /**
+     * Read the poll's clients and their votes from a snapshot written by
+     * {@link #writeSnapshot(DataOutput) writeSnapshot()} for a poll with
+     * as many shards. Must be followed by any journal records and then
+     * {@link #endRestore()}, before the poll gets any messages.
+     *
+     * @param  in  snapshot
+     * @exception  IOException
+     *     Thrown if the snapshot could not be read or is not valid.
+     */
+    public void readSnapshot(DataInput in) throws IOException
+    {
+        int now = now();
+        for (ResponderStore shard : shards) {
+            synchronized (shard) {
+                while (in.readBoolean()) {
+                    shard.readChunk(in, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply one journal record to a poll being restored.
+     *
+     * @param  shard       responder shard
+     * @param  type        'V', 'M' or 'E'
+     * @param  slot        slot in the shard
+     * @param  generation  generation of the slot
+     * @param  key         packed address
+     * @param  option      option voted for
+     * @param  timestamp   time the vote was sent
+     */
+    public void replay
+        (int shard,
+         int type,
+         int slot,
+         int generation,
+         long key,
+         int option,
+         long timestamp)
+    {
+        if (shard < 0 || shard >= shards.length) {
+            return;
+        }
+        synchronized (shards[shard]) {
+            shards[shard].replay(type, slot, generation, key, option,
+                    timestamp, now());
+        }
+    }
+
+    /**
+     * Finish restoring the poll and publish its tally. Restored clients
+     * have a full idle time to live to be heard from again.
+     */
+    public void endRestore()
+    {
+        int now = now();
+        for (ResponderStore shard : shards) {
+            synchronized (shard) {
+                shard.endRestore(now);
+            }
+        }
+        publisher.markDirty();
+    }
+
+    /**
+     * @return the number of clients evicted for staying silent
+     */
+    public long getEvicted()
+    {
+        return evicted.sum();
+    }
+
+    /**
+     * @return the number of clients in the poll
+     */
+    public int getResponders()
+    {
+        int count = 0;
+        for (ResponderStore shard : shards) {
+            synchronized (shard) {
+                count += shard.size();
+            }
+        }
+        return count;
+    }
 
     /**
-     * Send the poll question
+     * Set the mailbox the poll is sent to the clients through.
+     *
+     * @param  mailbox  Mailbox.
+     */
+    public void setMailbox(DatagramSocket mailbox)
+    {
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Set the broadcast scheduler that repeats the poll question to the
+     * clients every second.
+     *
+     * @param  broadcaster  Broadcast scheduler.
+     */
+    public void setBroadcastScheduler(BroadcastScheduler broadcaster)
+    {
+        this.broadcaster = broadcaster;
+    }
+
+    // poll functions
+
+    /**
+     * Send the poll. The poll is handed to the broadcast scheduler, which
+     * repeats it every second from then on.
      *
      * @param  question poll question to send
+     * @param options the options the clients choose from
      * @param timestamp the time the message was sent
-     * @exception  IOException
-     *     Thrown if an I/O error occurred.
+     * @exception  IllegalArgumentException
+     *     Thrown if the poll does not fit in a datagram.
+     */
+    public void setPoll(String question, String[] options, long timestamp)
+    {
+        if (broadcaster != null) {
+            broadcaster.setPoll(question, options);
+        }
+        optionCount = question == null ? 0 : options.length;
+        if (question != null) {
+            // The next sample makes the history, or clears it
+            clearHistory = true;
+        }
+        publisher.markDirty();
+    }
+
+    /**
+     * Sends the encoded poll or heartbeat message to one part of the
+     * clients. Each shard
+     * contributes the same fraction of its clients to every part.
+     *
+     * @param  part       which part, 0 to parts-1
+     * @param  parts      total number of parts
+     * @param  frame      encoded poll or heartbeat message
+     * @param  poll       the poll
+     * @param  timestamp  time the message was sent at
+     * @param  sent       incremented for each message sent
+     * @param  dropped    incremented for each message not sent
      */
-    public synchronized void setPoll(String question, long timestamp)
+    public void sendPart
+        (int part,
+         int parts,
+         ByteBuffer frame,
+         BroadcastScheduler.Announcement poll,
+         long timestamp,
+         LongAdder sent,
+         LongAdder dropped)
     {
-        if(responderMap != null && responderMap.keySet().size() > 0) {
-            try {
-                // send question to all clients
-                for (ModelListener listener : responderMap.keySet()) {
-                    listener.setPoll(question, timestamp);
+        DatagramSocket socket = mailbox;
+        if (socket == null) {
+            return;
+        }
+        ViewProxy to = new ViewProxy(socket, null);
+        Scratch scratch = SCRATCH.get();
+        for (ResponderStore shard : shards) {
+            // Only the packed addresses are copied under the lock, so votes
+            // for the shard do not wait for the sends; each is unpacked as
+            // it is sent.
+            int n;
+            synchronized (shard) {
+                scratch.recipients(shard.partLength(part, parts));
+                n = shard.copyPart(part, parts, scratch.recipientKeys,
+                        scratch.recipients);
+            }
+            long[] recipientKeys = scratch.recipientKeys;
+            InetSocketAddress[] recipients = scratch.recipients;
+            for (int i = 0; i < n; ++ i) {
+                try {
+                    to.setClientAddress(recipientKeys[i] != 0L
+                            ? ResponderStore.unpack(recipientKeys[i])
+                            : recipients[i]);
+                    if (to.send(frame)) {
+                        sent.increment();
+                    } else {
+                        dropped.increment();
+                    }
                 }
-            } catch (IOException exc) {
-                // Shouldn't happen
+                catch (Exception exc)
+                {
+                    // One unreachable client does not stop the rest
+                    dropped.increment();
+                }
+                recipients[i] = null;
             }
         }
     }
@@ -71,134 +605,511 @@ public class PollsterModel implements ViewListener, ModelListener
     // View listener functions
 
     /**
-     * Deciphers the vote, adds client model to list if not already present
-     * then calls the vote function of the clients ResponderStateModel
-     * @param agree 1 if new vote was agree else 0
-     * @param disagree 1 if new vote was disagree else 0
-     * @param listener the client which sent the vote
+     * Adds the client if it is new, then records its vote and acknowledges
+     * it. Only clients on the network, which come with a view proxy, are
+     * counted. A vote for an option the poll does not have is dropped
+     * unacknowledged.
+     * @param option the option voted for, 1 for the first option, or 0 for
+     *     no vote
+     * @param listener the view proxy of the client which sent the vote
      * @param timestamp the time the vote was sent
      */
-    public synchronized void vote
-    (int agree, int disagree, ModelListener listener, long timestamp)
-    {
-        if(viewListener != null && listener != null) {
-            // check whether its an agree or disagree
-            String vote;
-            if (agree == 1) {
-                vote = "agree";
-            } else if (disagree == 1) {
-                vote = "disagree";
-            } else {
-                vote = "";
-            }
-            ResponderStateModel responder = responderMap.get(listener);
-            if(responder == null)
+    public void vote(int option, ModelListener listener, long timestamp)
+    {
+        if(listener instanceof ViewProxy) {
+            if(option < 0 || option > optionCount) {
+                return;
+            }
+            ViewProxy client = (ViewProxy) listener;
+            int flags = apply(client, option, timestamp, true);
+            if((flags & CHANGED) != 0)
             {
-                responder = new ResponderStateModel(vote, timestamp);
-                responderMap.put(listener, responder);
+                publisher.markDirty();
             }
-            responder.vote(vote, timestamp);
+            acknowledge(client, flags, timestamp);
         }
     }
 
     /**
-     * Counts all the votes from the responder state models
-     * sends the counts to the view to update the displayed values
+     * Keeps a client that has not changed its vote from timing out
+     * @param listener the view proxy of the client which sent the keepalive
+     * @param timestamp the time the keepalive was sent
      */
-    public synchronized void CountVote()
+    public void keepAlive(ModelListener listener, long timestamp)
     {
-        int agree = 0;
-        int disagree = 0;
-        for (ResponderStateModel responder: responderMap.values()) {
-            if(Objects.equals(responder.getVote(), "agree"))
+        if(listener instanceof ViewProxy) {
+            ViewProxy client = (ViewProxy) listener;
+            if(apply(client, 0, timestamp, false) == ADDED)
             {
-                agree++;
+                // The server does not know the client's vote, because the
+                // client timed out or was never heard from; ask for it again
+                acknowledge(client, ADDED, 0L);
             }
-            else if(Objects.equals(responder.getVote(), "disagree"))
-            {
-                disagree++;
+        }
+    }
+
+    /**
+     * Tallies are produced by the model, so it ignores them.
+     * @param counts the number of votes for each option
+     */
+    public void tally(int[] counts)
+    {
+    }
+
+    /**
+     * Sends the full current poll message to a client that asked for it
+     * because it missed the last change.
+     * @param listener the client which asked
+     */
+    public void requestPoll(ModelListener listener)
+    {
+        BroadcastScheduler.Announcement poll =
+                broadcaster != null ? broadcaster.currentPoll() : null;
+        if (poll == null) {
+            return;
+        }
+        try {
+            listener.setPoll(poll.getPollId(), poll.getVersion(),
+                    poll.getQuestion(), poll.getOptions(),
+                    System.currentTimeMillis());
+        } catch (IOException exc) {
+            // The client asks again after the next heartbeat
+        }
+    }
+
+    /**
+     * Applies a batch of messages from clients. Only the messages for the
+     * given poll ID are applied, and marked done; the rest are left for
+     * their own polls. The clients are sorted out by shard, each shard is
+     * locked once for all of its clients in the batch, and the tally is
+     * marked changed at most once, so a batch costs far fewer lock
+     * acquisitions than the same messages one by one. Acknowledgements and
+     * poll messages are sent after the locks are released.
+     * @param batch the messages, from one receiver thread
+     * @param pollId ID of this model's poll
+     * @param client view proxy to reply through; it is pointed at each
+     * message's sender in turn
+     */
+    public void applyBatch(VoteBatch batch, int pollId, ViewProxy client)
+    {
+        int n = batch.size();
+        Scratch scratch = SCRATCH.get().ensure(n);
+        int[] target = scratch.target;
+        long[] keys = scratch.keys;
+        long[] results = scratch.results;
+        int options = optionCount;
+        for (int i = 0; i < n; ++ i) {
+            target[i] = -1;
+            byte type = batch.type(i);
+            if (type == 0 || batch.pollId(i) != pollId) {
+                continue;
+            }
+            if (type == 'Q') {
+                results[i] = 0L;
+                continue;
             }
+            if (type == 'V' && batch.option(i) > options) {
+                // dropped unacknowledged, as vote() does
+                results[i] = (long) INVALID << 32;
+                continue;
+            }
+            InetSocketAddress address =
+                    (InetSocketAddress) batch.address(i);
+            keys[i] = ResponderStore.pack(address);
+            results[i] = 0L;
+            target[i] = batch.session(i) > 0
+                    ? sessionShard(batch.session(i))
+                    : addressShard(keys[i], address);
+        }
+        int now = now();
+        for (int i = 0; i < n; ++ i) {
+            int index = target[i];
+            if (index < 0) {
+                continue;
+            }
+            synchronized (shards[index]) {
+                for (int j = i; j < n; ++ j) {
+                    if (target[j] != index) {
+                        continue;
+                    }
+                    InetSocketAddress address =
+                            (InetSocketAddress) batch.address(j);
+                    long r = applyIn(index,
+                            results[j] == STALE ? 0 : batch.session(j),
+                            keys[j], address, batch.option(j),
+                            batch.timestamp(j), batch.type(j) == 'V', now);
+                    results[j] = r;
+                    // a stale session is looked up again by address
+                    target[j] = r == STALE
+                            ? addressShard(keys[j], address) : -1;
+                }
+            }
+            if (target[i] >= 0) {
+                -- i;
+            }
+        }
+        boolean changed = false;
+        for (int i = 0; i < n; ++ i) {
+            byte type = batch.type(i);
+            if (type == 0 || batch.pollId(i) != pollId) {
+                continue;
+            }
+            batch.done(i);
+            client.setClientAddress(batch.address(i));
+            client.setSession((int) results[i]);
+            int flags = (int) (results[i] >>> 32);
+            changed |= (flags & CHANGED) != 0;
+            if (type == 'Q') {
+                requestPoll(client);
+            } else if (type == 'V') {
+                acknowledge(client, flags, batch.timestamp(i));
+            } else if (flags == ADDED) {
+                acknowledge(client, flags, 0L);
+            }
+        }
+        if (changed) {
+            publisher.markDirty();
+        }
+    }
+
+    /**
+     * Acknowledges a vote, unless the client was not let in or the vote
+     * was invalid.
+     * @param client the view proxy of the client
+     * @param flags the result of applying the vote
+     * @param timestamp the vote's timestamp, or 0 to ask for the vote again
+     */
+    private void acknowledge(ViewProxy client, int flags, long timestamp)
+    {
+        if ((flags & (FULL | REFUSED | INVALID)) != 0) {
+            return;
         }
         try {
-            viewListener.vote(agree, disagree, null, 0);
+            client.acknowledge(timestamp, keepAliveMillis);
+        } catch (IOException exc) {
+            // The client sends its message again and is answered then
         }
-        catch (IOException exc)
+    }
+
+    /**
+     * Finds a client, by its session ID if it sent a live one, else by its
+     * address, adding it if it is new, and records its message. The view
+     * proxy's session ID is set to the client's.
+     * @param client the view proxy of the client
+     * @param option the option voted for, or 0
+     * @param timestamp the time the message was sent
+     * @param isVote true for a vote, false for a keepalive
+     * @return CHANGED if the tally changed, ADDED if the client was added,
+     * FULL if it was new and its shard had no room, REFUSED if it was new
+     * and over the admission limit
+     */
+    private int apply
+        (ViewProxy client, int option, long timestamp, boolean isVote)
+    {
+        InetSocketAddress address =
+                (InetSocketAddress) client.getClientAddress();
+        long key = ResponderStore.pack(address);
+        int now = now();
+        int session = client.getSession();
+        int index = session > 0
+                ? sessionShard(session) : addressShard(key, address);
+        long r;
+        synchronized (shards[index])
         {
-            // Shouldn't happen
+            r = applyIn(index, session, key, address, option, timestamp,
+                    isVote, now);
         }
+        if(r == STALE)
+        {
+            index = addressShard(key, address);
+            synchronized (shards[index])
+            {
+                r = applyIn(index, 0, key, address, option, timestamp,
+                        isVote, now);
+            }
+        }
+        client.setSession((int) r);
+        return (int) (r >>> 32);
     }
 
-    // Hidden helper classes.
+    /**
+     * Finds a client in one shard, adding it if it is new, and records its
+     * message. A client found by its session at a new address, for
+     * instance after a NAT rebinding, is moved there. Must be called while
+     * holding the shard's lock.
+     * @param index the shard: the one the session names if there is one,
+     * else the one the address belongs in
+     * @param session the session ID the client sent, or 0
+     * @param key the packed address
+     * @param address the client's address
+     * @param option the option voted for, or 0
+     * @param timestamp the time the message was sent
+     * @param isVote true for a vote, false for a keepalive
+     * @param now the current tick
+     * @return the flags (see apply()) in the high half and the client's
+     * session ID in the low half, or STALE if the session is stale and the
+     * address belongs in another shard
+     */
+    private long applyIn
+        (int index,
+         int session,
+         long key,
+         InetSocketAddress address,
+         int option,
+         long timestamp,
+         boolean isVote,
+         int now)
+    {
+        ResponderStore shard = shards[index];
+        if(session > 0)
+        {
+            int slot = ((session & ((1 << SESSION_BITS) - 1)) - 1)
+                    >>> shardBits;
+            if(sessionShard(session) == index &&
+                    shard.isLive(slot, session >>> SESSION_BITS))
+            {
+                if(!shard.isAt(slot, key, address))
+                {
+                    shard.move(slot, key, address);
+                }
+                return result(update(shard, slot, option, timestamp, now,
+                        isVote), session);
+            }
+            if(addressShard(key, address) != index)
+            {
+                return STALE;
+            }
+        }
+        int flags = 0;
+        int slot = shard.find(key, address);
+        if(slot < 0)
+        {
+            RateLimiter limit = admission;
+            if(limit != null && !limit.tryAcquire(0L))
+            {
+                return result(REFUSED, 0);
+            }
+            // starts with no vote so its first vote counts as a change
+            slot = shard.add(key, address, now);
+            if(slot < 0)
+            {
+                return result(FULL, 0);
+            }
+            flags = ADDED;
+        }
+        return result(flags | update(shard, slot, option, timestamp, now,
+                isVote), (shard.generation(slot) << SESSION_BITS) |
+                ((slot << shardBits) | index) + 1);
+    }
 
     /**
-     * Class ResponderStateModel encapsulates the state of
-     * one of the responder clients.
+     * @return flags and a session ID packed into one long
      */
-    private class ResponderStateModel {
-        private String vote;
-        private long timestamp;
-        private ScheduledFuture<?> timeout;
-        private long timeoutNum;
+    private static long result(int flags, int session)
+    {
+        return ((long) flags << 32) | (session & 0xFFFFFFFFL);
+    }
 
-        /**
-         * Construct a new responder state model object.
-         * @param vote the current vote of the responder
-         * @param timestamp the last time a vote was sent by the responder
-         */
-        public ResponderStateModel(String vote, long timestamp) {
-            this.vote = vote;
-            this.timestamp = timestamp;
+    /**
+     * @param session a session ID
+     * @return the shard the session ID names
+     */
+    private int sessionShard(int session)
+    {
+        return ((session & ((1 << SESSION_BITS) - 1)) - 1) &
+                (shards.length - 1);
+    }
+
+    /**
+     * @param key the packed address
+     * @param address the client's address
+     * @return the shard a client at that address is added to
+     */
+    private int addressShard(long key, InetSocketAddress address)
+    {
+        long h = (key != 0L ? key : address.hashCode()) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (shards.length - 1);
+    }
+
+    /**
+     * Records a vote or keepalive in a client's slot. Must be called while
+     * holding the shard's lock.
+     * @return CHANGED if the tally changed, else 0
+     */
+    private static int update
+        (ResponderStore shard,
+         int slot,
+         int option,
+         long timestamp,
+         int now,
+         boolean isVote)
+    {
+        if(!isVote)
+        {
+            shard.touch(slot, now);
+            return 0;
         }
+        return shard.vote(slot, option, timestamp, now) ? CHANGED : 0;
+    }
 
-        /**
-         * @return the current vote of the responder
-         */
-        public String getVote()
+    /**
+     * Evicts the clients that have been silent longer than the time to
+     * live, along with their votes. Called once a second. A shard is
+     * locked for one chunk of its slots at a time, so votes keep coming in
+     * while it is swept. An evicted client's slot gets a new generation, so
+     * a message still carrying its old session ID cannot reach the next
+     * client given the slot.
+     */
+    private void sweep()
+    {
+        int now = now();
+        int timeout = (int) (timeoutMillis() / TICK_MILLIS);
+        int removed = 0;
+        for (ResponderStore shard : shards) {
+            for (int chunk = 0; ; ++ chunk) {
+                synchronized (shard) {
+                    if (chunk >= shard.chunks()) {
+                        break;
+                    }
+                    removed += shard.sweep(chunk, now, timeout);
+                }
+            }
+        }
+        if (removed > 0) {
+            evicted.add(removed);
+            publisher.markDirty();
+        }
+    }
+
+    /**
+     * Adds a sample of the tally to the history. Called once a second,
+     * after the sweep, so only one thread adds samples. The history is
+     * made with the first sample after a question is set, so a poll that
+     * never gets one costs no ring, and it is kept for a later question
+     * with as many options.
+     */
+    private void sample()
+    {
+        int responders = remoteResponders;
+        long changes = 0L;
+        for (ResponderStore shard : shards) {
+            synchronized (shard) {
+                responders += shard.size();
+                changes += shard.changes();
+            }
+        }
+        int options = optionCount;
+        if (options == 0) {
+            lastChanges = changes;
+            return;
+        }
+        TallyHistory h = history;
+        if (h == null || h.getOptions() != options) {
+            clearHistory = false;
+            h = new TallyHistory(historyLength, options);
+            history = h;
+        } else if (clearHistory) {
+            clearHistory = false;
+            h.clear();
+        }
+        if (sampleCounts.length != h.getOptions()) {
+            sampleCounts = new int[h.getOptions()];
+        }
+        localCounts(sampleCounts);
+        addRemote(sampleCounts);
+        h.add(System.currentTimeMillis(), responders,
+                (int) (changes - lastChanges), sampleCounts);
+        lastChanges = changes;
+    }
+
+    /**
+     * Adds the votes other servers have to a tally, if they have the same
+     * options.
+     */
+    private void addRemote(int[] counts)
+    {
+        int[] remote = remoteCounts;
+        if (remote == null || remote.length != counts.length) {
+            return;
+        }
+        for (int i = 0; i < counts.length; ++ i) {
+            counts[i] += remote[i];
+        }
+    }
+
+    /**
+     * @return the current tick
+     */
+    private int now()
+    {
+        return (int) ((System.nanoTime() - startNanos) /
+                (TICK_MILLIS * 1000000L));
+    }
+
+    /**
+     * Sends the current vote counts to the view to update the displayed
+     * values. The shards keep their partial counts up to date as votes
+     * change, so this only adds them up, along with any other servers'
+     * votes. Called by the tally publisher.
+     */
+    public void CountVote()
+    {
+        ViewListener listener = viewListener;
+        if (listener == null) {
+            return;
+        }
+        int[] counts = new int[optionCount];
+        localCounts(counts);
+        addRemote(counts);
+        try {
+            listener.tally(counts);
+        }
+        catch (IOException exc)
         {
-            return vote;
+            // Shouldn't happen
         }
+    }
+
+    // Hidden helper classes.
+
+    /**
+     * Class Scratch holds the working arrays of applyBatch() and
+     * sendPart().
+     */
+    private static class Scratch {
+        private int[] target = new int[0];
+        private long[] keys = new long[0];
+        private long[] results = new long[0];
+        private long[] recipientKeys = new long[0];
+        private InetSocketAddress[] recipients = new InetSocketAddress[0];
 
         /**
-         * starts the timer for the responder
-         * if after three seconds a vote hasn't been sent by the responder
-         * the server removes the vote of the responder
-         * @param vote the responders new vote
-         * @param timestamp the time the responder sent the vote
+         * Grows the recipient arrays to hold a part of a shard.
+         * @param n the most clients in the part
          */
-        public synchronized void vote(String vote, long timestamp) {
-            // Cancel previous timeout, start a new 3-second timeout.
-            if (timeout != null) timeout.cancel(false);
-            ++timeoutNum;
-            timeout = pool.schedule(
-                new Runnable() {
-                    private long num = timeoutNum;
-
-                    public void run() {
-                        disconnect(num);
-                    }
-                }, 3, TimeUnit.SECONDS);
-
-            // Detect whether the vote changed
-            // Ignores messages with out-of-date time stamps.
-            if (timestamp > this.timestamp) {
-                this.timestamp = timestamp;
-                if (!Objects.equals(vote, this.vote)) {
-                    this.vote = vote;
-                    CountVote();
-                }
+        private void recipients(int n)
+        {
+            if(recipientKeys.length < n)
+            {
+                recipientKeys = new long[n];
+                recipients = new InetSocketAddress[n];
             }
         }
 
         /**
-         * Removes this responders vote and re tallies the votes
-         * @param num used to check if this is the current timeout
+         * Grows the arrays to hold a batch.
+         * @param n the number of messages in the batch
+         * @return this
          */
-        private synchronized void disconnect (long num)
+        private Scratch ensure(int n)
         {
-            // If the timeout was already canceled, do nothing.
-            if (num != timeoutNum) return;
-            vote = "";
-            CountVote();
+            if(target.length < n)
+            {
+                target = new int[n];
+                keys = new long[n];
+                results = new long[n];
+            }
+            return this;
         }
     }
 }
@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+
+/**
+ * The relay main program for the Poll System application. A relay stands
+ * between a pollster and a crowd of clients, so the pollster hears from
+ * one relay instead of from every client behind it.
+ *
+ * Usage: java PollsterRelay relayhost relayport pollsterhost pollsterport
+ *     -node id -gossip host:port -upstream host:port [-poll id]...
+ *     [-readers n] [-senders n] [-slices n] [-keepalive ms] [-ttl ms]
+ *     [-rate n] [-admit n] [-gossipms ms]
+ * <P>
+ * To its clients a relay at the relay address is a pollster without a
+ * window: it takes their votes and keepalives, acknowledges them, and
+ * keeps the tally of each poll it follows, poll 0 and every
+ * <TT>-poll</TT>. The options it shares with {@link Pollster} mean the
+ * same.
+ * <P>
+ * Toward the pollster at the pollster address the relay is one client of
+ * each poll, from a port of its own for each (see {@link UpstreamLink}).
+ * It gets the poll from the pollster and broadcasts it to its own
+ * clients. It sends its tally to the pollster by {@link TallyGossip}, as
+ * node <TT>-node</TT>, from its <TT>-gossip</TT> address to the
+ * pollster's <TT>-upstream</TT> gossip address, every <TT>-gossipms</TT>
+ * milliseconds (default 1000), along with its number of clients. The
+ * pollster must be started with its own <TT>-node</TT> and
+ * <TT>-gossip</TT>; it adds each relay's votes to its tally and each
+ * relay's clients to its responder history. A relay's
+ * votes cost the pollster one gossip message per poll per interval,
+ * however many clients the relay has.
+ *
+ * @author  Paul Zenie
+ */
+public class PollsterRelay {
+
+    /**
+     * parses arguments and then creates the polls, receivers and links
+     * @param args command line arguments
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        //Parse command line arguments
+        if (args.length < 4) usage();
+        InetSocketAddress relayAddress = null;
+        InetSocketAddress pollsterAddress = null;
+        try {
+            relayAddress = new InetSocketAddress(args[0],
+                    Integer.parseInt(args[1]));
+            pollsterAddress = new InetSocketAddress(args[2],
+                    Integer.parseInt(args[3]));
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("ERROR: Port must be an integer.");
+            System.exit(1);
+        }
+        int readers = 0;
+        int senders = 1;
+        int slices = 10;
+        int keepAlive = 10000;
+        int ttl = 0;
+        int sourceRate = RateLimiter.SOURCE_RATE;
+        int admitRate = 10000;
+        int nodeId = -1;
+        InetSocketAddress gossipAddress = null;
+        InetSocketAddress upstreamGossip = null;
+        int gossipMillis = TallyGossip.DEFAULT_INTERVAL_MILLIS;
+        ArrayList<Integer> pollIds = new ArrayList<>();
+        pollIds.add(0);
+        for (int i = 4; i < args.length; ++ i)
+        {
+            if (args[i].equals("-readers") && i + 1 < args.length)
+            {
+                readers = parseCount(args[++ i], "readers");
+            }
+            else if (args[i].equals("-senders") && i + 1 < args.length)
+            {
+                senders = parseCount(args[++ i], "senders");
+            }
+            else if (args[i].equals("-slices") && i + 1 < args.length)
+            {
+                slices = Math.min(parseCount(args[++ i], "slices"), 1000);
+            }
+            else if (args[i].equals("-keepalive") && i + 1 < args.length)
+            {
+                keepAlive = parseCount(args[++ i], "keepalive");
+            }
+            else if (args[i].equals("-ttl") && i + 1 < args.length)
+            {
+                ttl = parseCount(args[++ i], "ttl");
+            }
+            else if (args[i].equals("-rate") && i + 1 < args.length)
+            {
+                sourceRate = parseCount(args[++ i], "rate");
+            }
+            else if (args[i].equals("-admit") && i + 1 < args.length)
+            {
+                admitRate = parseCount(args[++ i], "admit");
+            }
+            else if (args[i].equals("-node") && i + 1 < args.length)
+            {
+                nodeId = parseCount(args[++ i], "node");
+            }
+            else if (args[i].equals("-gossip") && i + 1 < args.length)
+            {
+                gossipAddress = parseAddress(args[++ i], "gossip");
+            }
+            else if (args[i].equals("-upstream") && i + 1 < args.length)
+            {
+                upstreamGossip = parseAddress(args[++ i], "upstream");
+            }
+            else if (args[i].equals("-gossipms") && i + 1 < args.length)
+            {
+                gossipMillis = parseCount(args[++ i], "gossipms");
+            }
+            else if (args[i].equals("-poll") && i + 1 < args.length)
+            {
+                int pollId = parseCount(args[++ i], "poll");
+                if (!pollIds.contains(pollId)) pollIds.add(pollId);
+            }
+            else
+            {
+                usage();
+            }
+        }
+        if (nodeId < 0 || gossipAddress == null || upstreamGossip == null)
+        {
+            System.err.println("ERROR: -node, -gossip and -upstream are" +
+                    " required.");
+            System.exit(1);
+        }
+        PollRegistry registry = new PollRegistry(senders, slices, 10);
+        registry.setKeepAlive(keepAlive);
+        registry.setIdleTtl(ttl);
+        registry.setAdmissionLimit(admitRate);
+        int[] followed = new int[pollIds.size()];
+        for (int i = 0; i < followed.length; ++ i)
+        {
+            followed[i] = pollIds.get(i);
+        }
+        DatagramSocket mailbox = null;
+        ServerReaderThread reader = null;
+        IngestEngine engine = null;
+        try {
+            if (readers > 0)
+            {
+                engine = new IngestEngine(relayAddress, readers, registry,
+                        IngestQueue.DEFAULT_CAPACITY, IngestQueue.COALESCE);
+                engine.setSourceLimit(sourceRate, 2 * sourceRate);
+                mailbox = engine.getMailbox();
+            }
+            else
+            {
+                mailbox = DatagramChannel.open().bind(relayAddress)
+                        .socket();
+                reader = new ServerReaderThread(mailbox, registry,
+                        IngestQueue.DEFAULT_CAPACITY, IngestQueue.COALESCE);
+                reader.setSourceLimit(sourceRate, 2 * sourceRate);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("ERROR: Could not start socket," +
+                    " try a different address/port.");
+            System.exit(1);
+        }
+        registry.setMailbox(mailbox);
+        for (int pollId : followed)
+        {
+            registry.create(pollId,
+                    2 * Runtime.getRuntime().availableProcessors());
+        }
+        try {
+            TallyGossip gossip = new TallyGossip(nodeId,
+                    DatagramChannel.open().bind(gossipAddress), registry,
+                    new InetSocketAddress[] { upstreamGossip });
+            gossip.setFanout(1);
+            gossip.start(gossipMillis);
+        }
+        catch (IOException e)
+        {
+            System.err.println("ERROR: Could not start gossip on " +
+                    gossipAddress + ".");
+            System.exit(1);
+        }
+        try {
+            new UpstreamLink(pollsterAddress, registry, followed).start();
+        }
+        catch (IOException e)
+        {
+            System.err.println("ERROR: Could not reach pollster at " +
+                    pollsterAddress + ".");
+            System.exit(1);
+        }
+        if (engine != null) engine.start();
+        else reader.start();
+    }
+
+    /**
+     * Parse a positive count option, exiting with an error if it is not one.
+     *
+     * @param  arg   the option value
+     * @param  name  the option name for the error message
+     * @return the parsed count
+     */
+    private static int parseCount(String arg, String name)
+    {
+        int count = 0;
+        try {
+            count = Integer.parseInt(arg);
+        }
+        catch (NumberFormatException e)
+        {
+            count = 0;
+        }
+        if (count < 1)
+        {
+            System.err.println("ERROR: " + name +
+                    " must be a positive integer.");
+            System.exit(1);
+        }
+        return count;
+    }
+
+    /**
+     * Parse a host:port option, exiting with an error if it is not one.
+     *
+     * @param  arg   the option value
+     * @param  name  the option name for the error message
+     * @return the parsed address
+     */
+    private static InetSocketAddress parseAddress(String arg, String name)
+    {
+        int colon = arg.lastIndexOf(':');
+        InetSocketAddress address = null;
+        if (colon > 0)
+        {
+            try {
+                address = new InetSocketAddress(arg.substring(0, colon),
+                        Integer.parseInt(arg.substring(colon + 1)));
+            }
+            catch (IllegalArgumentException e)
+            {
+                address = null;
+            }
+        }
+        if (address == null || address.isUnresolved())
+        {
+            System.err.println("ERROR: " + name +
+                    " must be host:port.");
+            System.exit(1);
+        }
+        return address;
+    }
+
+    /**
+     * Print a usage message and exit.
+     */
+    private static void usage()
+    {
+        System.err.println ("Usage: java PollsterRelay <relayhost> " +
+                "<relayport> <pollsterhost> <pollsterport> -node <id> " +
+                "-gossip <host:port> -upstream <host:port> " +
+                "[-poll <id>]... [-readers <n>] [-senders <n>] " +
+                "[-slices <n>] [-keepalive <ms>] [-ttl <ms>] [-rate <n>] " +
+                "[-admit <n>] [-gossipms <ms>]");
+        System.exit (1);
+    }
+}
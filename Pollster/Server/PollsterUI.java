@@ -3,7 +3,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.IOException;
+import java.util.ArrayList;
 import javax.swing.*;
 
 /**
@@ -16,14 +16,20 @@ import javax.swing.*;
 public class PollsterUI implements ViewListener
 {
     private static final int GAP = 10;
+    private static final int MAX_TALLY_HEIGHT = 300;
 
     private JFrame frame;
     private JTextField questionField;
+    private JTextField optionsField;
     private JButton goButton;
-    private JTextField agreeCountField;
-    private JTextField disagreeCountField;
-    private ModelListener modelListener;
-    private Timer timer;
+    private JPanel tallyPanel;
+    private JScrollPane tallyPane;
+    private JTextField[] countFields = new JTextField[0];
+    private JTextField pollField;
+    private JButton closeButton;
+    private PollRegistry registry;
+    private PollsterModel watched;
+    private int[] pendingCounts;
 
     /**
      * Construct a new pollster UI object.
@@ -41,42 +47,59 @@ public class PollsterUI implements ViewListener
         p2.setLayout (new BoxLayout (p2, BoxLayout.X_AXIS));
         p1.add (p2);
 
+        // which poll the question goes to and the tally is shown for
+        p2.add (new JLabel ("Poll:"));
+        p2.add (Box.createHorizontalStrut (GAP));
+        pollField = new JTextField ("0", 5);
+        Dimension d = pollField.getPreferredSize();
+        pollField.setMaximumSize (d);
+        p2.add (pollField);
+        p2.add (Box.createHorizontalStrut (GAP));
+
         questionField = new JTextField (40);
         p2.add (questionField);
         p2.add (Box.createHorizontalStrut (GAP));
 
         goButton = new JButton ("Go");
         p2.add (goButton);
+        p2.add (Box.createHorizontalStrut (GAP));
+
+        closeButton = new JButton ("Close");
+        p2.add (closeButton);
         p1.add (Box.createVerticalStrut (GAP));
 
+        // options are entered separated by commas
         JPanel p3 = new JPanel();
         p3.setLayout (new BoxLayout (p3, BoxLayout.X_AXIS));
         p1.add (p3);
 
-        p3.add (new JLabel ("Agree:"));
-        agreeCountField = new JTextField (5);
-        agreeCountField.setEditable (false);
-        Dimension d = agreeCountField.getPreferredSize();
-        agreeCountField.setMinimumSize (d);
-        agreeCountField.setMaximumSize (d);
-        agreeCountField.setText("0"); // Initial value to 0
-        p3.add (agreeCountField);
-        p3.add (Box.createHorizontalStrut (2*GAP));
-
-        p3.add (new JLabel ("Disagree:"));
-        disagreeCountField = new JTextField (5);
-        disagreeCountField.setEditable (false);
-        d = disagreeCountField.getPreferredSize();
-        disagreeCountField.setMinimumSize (d);
-        disagreeCountField.setMaximumSize (d);
-        disagreeCountField.setText("0"); // Initial value to 0
-        p3.add (disagreeCountField);
+        p3.add (new JLabel ("Options:"));
+        p3.add (Box.createHorizontalStrut (GAP));
+        optionsField = new JTextField ("Agree, Disagree", 40);
+        p3.add (optionsField);
+        p1.add (Box.createVerticalStrut (GAP));
+
+        // one count per option, rebuilt whenever a poll is sent
+        tallyPanel = new JPanel (new GridLayout (0, 2, GAP, GAP/2));
+        tallyPane = new JScrollPane (tallyPanel);
+        tallyPane.setBorder (BorderFactory.createEmptyBorder());
+        p1.add (tallyPane);
+        showOptions (parseOptions (optionsField.getText()));
 
         //send out poll question when go clicked
         goButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                setPoll(questionField.getText());
+                setPoll(questionField.getText(),
+                        parseOptions(optionsField.getText()));
+            }
+        });
+
+        //close the poll when close clicked
+        closeButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                closePoll();
             }
         });
 
@@ -135,18 +158,20 @@ public class PollsterUI implements ViewListener
     }
 
     /**
-     * Set the model listener object for this Pollster UI.
+     * Set the polls this Pollster UI sends questions to. The UI starts out
+     * showing poll 0.
      *
-     * @param  modelListener  Model listener.
+     * @param  registry  Poll registry.
      */
-    public void setListener
-    (final ModelListener modelListener)
+    public void setRegistry
+    (final PollRegistry registry)
     {
         onSwingThreadDo (new Runnable()
         {
             public void run()
             {
-                PollsterUI.this.modelListener = modelListener;
+                PollsterUI.this.registry = registry;
+                watch(registry.poll(0));
             }
         });
     }
@@ -154,55 +179,193 @@ public class PollsterUI implements ViewListener
     // model listener functions
 
     /**
-     * Sends out the poll question to all clients.
+     * Sends out the poll to all clients. The model keeps repeating it every
+     * second until a new poll is sent. Called on the Swing thread.
      * @param question the poll question to send to teh clients
+     * @param options the options the clients choose from
      */
-    public void setPoll(String question)
+    public void setPoll(String question, String[] options)
     {
-        if(timer != null)
+        if (options.length == 0) {
+            JOptionPane.showMessageDialog(frame, "Enter at least one option.",
+                    "Pollster", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        int pollId = pollId();
+        if (pollId < 0 || registry == null) {
+            return;
+        }
+        try
         {
-            timer.stop();
+            PollsterModel poll = registry.poll(pollId);
+            watch(poll);
+            poll.setPoll(question, options, System.currentTimeMillis());
+            showOptions(options);
         }
-        // Send poll state to clients every second
-        timer = new Timer (1000, new ActionListener()
+        catch (IllegalArgumentException exc)
         {
-            public void actionPerformed (ActionEvent e)
-            {
-                try
-                {
-                    if (modelListener != null) {
-                        modelListener.setPoll(
-                                question, System.currentTimeMillis());
-                    }
-                }
-        catch (IOException exc)
-                {
-                    exc.printStackTrace (System.err);
-                    System.exit (1);
-                }
+            JOptionPane.showMessageDialog(frame, exc.getMessage(),
+                    "Pollster", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Closes the poll named in the poll field and goes back to showing
+     * poll 0, which is never closed. Called on the Swing thread.
+     */
+    private void closePoll()
+    {
+        int pollId = pollId();
+        if (pollId <= 0 || registry == null) {
+            return;
+        }
+        registry.remove(pollId);
+        pollField.setText("0");
+        watch(registry.poll(0));
+    }
+
+    /**
+     * Shows the tally of a poll from now on. Called on the Swing thread.
+     * @param poll the poll to show
+     */
+    private void watch(PollsterModel poll)
+    {
+        if (poll != watched) {
+            if (watched != null) {
+                watched.setListener(null);
             }
-        });
-        timer.start();
+            watched = poll;
+            poll.setListener(this);
+        }
+    }
+
+    /**
+     * Reads the poll field. Called on the Swing thread.
+     * @return the poll ID, or -1 if the field does not hold one
+     */
+    private int pollId()
+    {
+        try {
+            int pollId = Integer.parseInt(pollField.getText().trim());
+            if (pollId >= 0) {
+                return pollId;
+            }
+        }
+        catch (NumberFormatException exc) {
+            // reported below
+        }
+        JOptionPane.showMessageDialog(frame,
+                "The poll must be a number, 0 or more.",
+                "Pollster", JOptionPane.ERROR_MESSAGE);
+        return -1;
+    }
+
+    /**
+     * Splits the text of the options field into options.
+     * @param text options separated by commas
+     * @return the options, without surrounding spaces or empty ones
+     */
+    private static String[] parseOptions(String text)
+    {
+        ArrayList<String> options = new ArrayList<>();
+        for (String option : text.split(",")) {
+            option = option.trim();
+            if (!option.isEmpty()) {
+                options.add(option);
+            }
+        }
+        return options.toArray(new String[options.size()]);
+    }
+
+    /**
+     * Shows a zero count for each option. Called on the Swing thread.
+     * @param options the options of the poll
+     */
+    private void showOptions(String[] options)
+    {
+        tallyPanel.removeAll();
+        countFields = new JTextField[options.length];
+        for (int i = 0; i < options.length; ++ i) {
+            tallyPanel.add(new JLabel(options[i] + ":"));
+            countFields[i] = new JTextField(5);
+            countFields[i].setEditable(false);
+            countFields[i].setText("0"); // Initial value to 0
+            tallyPanel.add(countFields[i]);
+        }
+        // scroll rather than grow past a few dozen options
+        tallyPane.setPreferredSize(null);
+        Dimension d = tallyPane.getPreferredSize();
+        if (d.height > MAX_TALLY_HEIGHT) {
+            d.height = MAX_TALLY_HEIGHT;
+            d.width += tallyPane.getVerticalScrollBar()
+                    .getPreferredSize().width;
+            tallyPane.setPreferredSize(d);
+        }
+        frame.pack();
     }
 
     // view listener functions
 
     /**
-     * Sets the text on the agree and disagree fields based on client votes
-     * @param agree number of clients which have agree selected
-     * @param disagree number of clients which have disagree selected
+     * Votes are tallied by the model, so the view ignores them.
+     * @param option the option voted for
      * @param listener the view proxy connected to the originating client
      * @param timestamp the time the vote was sent at
      */
-    public void vote
-    (int agree, int disagree, ModelListener listener, long timestamp)
+    public void vote(int option, ModelListener listener, long timestamp)
     {
-        onSwingThreadDo(new Runnable() {
-            @Override
-            public void run() {
-                agreeCountField.setText(Integer.toString(agree));
-                disagreeCountField.setText(Integer.toString(disagree));
+    }
+
+    /**
+     * Sets the count fields based on client votes. Called on the model's
+     * publisher thread, which does not wait for the Swing thread; if the
+     * last counts are not shown yet, these replace them.
+     * @param counts number of clients which have each option selected
+     */
+    public void tally(int[] counts)
+    {
+        synchronized (this) {
+            boolean queued = pendingCounts != null;
+            pendingCounts = counts;
+            if (queued) {
+                return;
             }
-        });
+        }
+        SwingUtilities.invokeLater(showCounts);
+    }
+
+    /**
+     * Shows the latest counts passed to tally(). Run on the Swing thread.
+     */
+    private Runnable showCounts = new Runnable() {
+        @Override
+        public void run() {
+            int[] counts;
+            synchronized (PollsterUI.this) {
+                counts = pendingCounts;
+                pendingCounts = null;
+            }
+            int n = Math.min(counts.length, countFields.length);
+            for (int i = 0; i < n; ++ i) {
+                countFields[i].setText(Integer.toString(counts[i]));
+            }
+        }
+    };
+
+    /**
+     * Poll requests are answered by the model, so the view ignores them.
+     * @param listener the view proxy connected to the originating client
+     */
+    public void requestPoll(ModelListener listener)
+    {
+    }
+
+    /**
+     * Keepalives are handled by the model, so the view ignores them.
+     * @param listener the view proxy connected to the originating client
+     * @param timestamp the time the keepalive was sent at
+     */
+    public void keepAlive(ModelListener listener, long timestamp)
+    {
     }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class RateLimiter is a table of token buckets, each letting through a
+ * steady rate of events plus a burst.
+ * <P>
+ * A bucket is one long, the time its next event is due if events came at
+ * exactly the steady rate (the generic cell rate algorithm). An event is let
+ * through if that time is no more than a burst's worth of events ahead of
+ * now, and then pushes it on by one interval. Keys are hashed onto a fixed
+ * number of buckets, so the table never grows however many keys there are;
+ * keys that share a bucket share its rate. A table of one bucket limits all
+ * events together. The buckets are updated with compare-and-set, so one
+ * limiter may be shared by many threads.
+ *
+ * @author  Paul Zenie
+ */
+public class RateLimiter
+{
+
+// Exported constants.
+
+    /**
+     * Default number of messages per second a receiver thread takes from
+     * one source. A well behaved client sends one every few seconds.
+     */
+    public static final int SOURCE_RATE = 20;
+
+    /**
+     * Default number of messages a receiver thread takes from one source at
+     * once.
+     */
+    public static final int SOURCE_BURST = 40;
+
+    /**
+     * Number of buckets a receiver thread spreads sources over.
+     */
+    public static final int SOURCE_BUCKETS = 65536;
+
+// Hidden data members.
+
+    private AtomicLongArray due;
+    private int mask;
+    private long interval;
+    private long tolerance;
+    private LongAdder rejected = new LongAdder();
+
+// Exported constructors.
+
+    /**
+     * Construct a new rate limiter.
+     *
+     * @param  perSecond  steady number of events per second let through for
+     *                    each bucket
+     * @param  burst      number of events let through at once for each
+     *                    bucket, after a quiet spell
+     * @param  buckets    number of buckets, rounded up to a power of 2
+     */
+    public RateLimiter(int perSecond, int burst, int buckets)
+    {
+        if (perSecond < 1)
+            throw new IllegalArgumentException
+                ("RateLimiter(): perSecond = " + perSecond + " illegal");
+        if (burst < 1)
+            throw new IllegalArgumentException
+                ("RateLimiter(): burst = " + burst + " illegal");
+        int size = buckets <= 1 ? 1 :
+            Integer.highestOneBit (buckets - 1) << 1;
+        due = new AtomicLongArray (size);
+        mask = size - 1;
+        interval = 1000000000L / perSecond;
+        tolerance = interval * (burst - 1);
+        // Every bucket starts full.
+        long start = System.nanoTime() - interval * burst;
+        for (int i = 0; i < size; ++ i)
+            due.set (i, start);
+    }
+
+// Exported operations.
+
+    /**
+     * Make the key of a datagram's source without allocating.
+     *
+     * @param  address  source IP address
+     * @param  port     source port
+     * @return the key
+     */
+    public static long sourceKey(InetAddress address, int port)
+    {
+        long key = ResponderStore.pack (address, port);
+        return key != 0L ? key : address.hashCode() * 65537L + port;
+    }
+
+    /**
+     * Let an event through if its bucket allows.
+     *
+     * @param  key  key of the event's source, for instance a packed address
+     * @return true if the event is let through, false if it is rejected
+     */
+    public boolean tryAcquire(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        int i = (int) (h >>> 40) & mask;
+        long now = System.nanoTime();
+        for (;;)
+        {
+            long next = due.get (i);
+            if (next - now > tolerance)
+            {
+                rejected.increment();
+                return false;
+            }
+            long after = (next - now < 0 ? now : next) + interval;
+            if (due.compareAndSet (i, next, after)) return true;
+        }
+    }
+
+    /**
+     * @return the number of events rejected
+     */
+    public long getRejected()
+    {
+        return rejected.sum();
+    }
+
+}
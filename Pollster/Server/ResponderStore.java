@@ -0,0 +1,771 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Class ResponderStore keeps the state of many responders in parallel
+ * primitive arrays, one slot per responder, instead of an object per
+ * responder.
+ * <P>
+ * A slot holds the responder's address, the timestamp of its last vote,
+ * the tick it was last heard from, its vote and a generation number that
+ * changes every time the slot is reused, so a session ID made from the slot
+ * and its generation goes stale along with the slot. IPv4 addresses are
+ * packed with the port into one long and indexed by an open-addressing
+ * table of primitive keys; other addresses are kept, and indexed, in small
+ * side maps. No socket address object is kept for an IPv4 client: a
+ * broadcast copies the packed keys and {@link #unpack(long) unpacks} each
+ * one as it sends. Freed slots are chained through their last-seen field
+ * and reused first. All told a responder costs about 50 bytes.
+ * <P>
+ * The store also keeps the partial tally of its responders, one counter per
+ * option, which may be read without the lock. Everything else must be
+ * called while holding the store's monitor.
+ * <P>
+ * A store can be written to a snapshot a chunk at a time, and rebuilt from
+ * the snapshot and the {@link VoteJournal} records that follow it. A
+ * rebuilt client keeps its slot and generation, so the session ID it holds
+ * stays good. Clients at addresses that are not IPv4 are left out of
+ * snapshots and journal replays; they are added again when next heard
+ * from.
+ *
+ * @author  Paul Zenie
+ */
+public class ResponderStore
+{
+
+// Hidden constants.
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Slots are swept a chunk at a time.
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    // Length of a client in a snapshot chunk.
+    private static final int ENTRY_LENGTH = 19;
+
+    // Set in every packed IPv4 key, so 0 can mark a free slot.
+    private static final long PRESENT = 1L << 48;
+
+    // Address field of a slot whose address is in the side map.
+    private static final long OTHER = 1L;
+
+// Hidden data members.
+
+    private int maxSlots;
+
+    // Slot arrays.
+    private long[] addresses;
+    private long[] timestamps;
+    private int[] lastSeen;
+    private byte[] votes;
+    private byte[] generations;
+    // No slot in chunk c was last seen before tick oldest[c].
+    private int[] oldest;
+    private int used;
+    private int freeHead = -1;
+    private int count;
+    private long changes;
+
+    // Address index: packed key to slot, 0 keys are empty.
+    private long[] keys;
+    private int[] slots;
+    private int keyCount;
+
+    // Index of addresses that are not IPv4, and those addresses by slot,
+    // created when first needed.
+    private HashMap<InetSocketAddress, Integer> otherSlots;
+    private HashMap<Integer, InetSocketAddress> otherAddresses;
+
+    private AtomicIntegerArray counts;
+
+    private VoteJournal journal;
+    private int journalPoll;
+    private int journalShard;
+
+// Exported constructors.
+
+    /**
+     * Construct a new, empty responder store.
+     *
+     * @param  maxSlots  most responders the store may hold
+     * @param  options   number of options the tally counts, not counting
+     *                   option 0, no vote
+     */
+    public ResponderStore(int maxSlots, int options)
+    {
+        this.maxSlots = maxSlots;
+        addresses = new long [INITIAL_CAPACITY];
+        timestamps = new long [INITIAL_CAPACITY];
+        lastSeen = new int [INITIAL_CAPACITY];
+        votes = new byte [INITIAL_CAPACITY];
+        generations = new byte [INITIAL_CAPACITY];
+        oldest = new int [1];
+        keys = new long [2 * INITIAL_CAPACITY];
+        slots = new int [2 * INITIAL_CAPACITY];
+        counts = new AtomicIntegerArray (options + 1);
+    }
+
+// Exported operations.
+
+    /**
+     * Record every vote, move and eviction in a journal from now on.
+     *
+     * @param  journal  journal, or null to stop recording
+     * @param  pollId   poll ID to record
+     * @param  shard    shard number to record
+     */
+    public void setJournal(VoteJournal journal, int pollId, int shard)
+    {
+        this.journal = journal;
+        this.journalPoll = pollId;
+        this.journalShard = shard;
+    }
+
+    /**
+     * Pack an IPv4 socket address into a key.
+     *
+     * @param  address  client address
+     * @return the packed key, or 0 if the address is not IPv4
+     */
+    public static long pack(InetSocketAddress address)
+    {
+        return pack (address.getAddress(), address.getPort());
+    }
+
+    /**
+     * Pack an IPv4 address and port into a key.
+     *
+     * @param  a     client IP address
+     * @param  port  client port
+     * @return the packed key, or 0 if the address is not IPv4
+     */
+    public static long pack(InetAddress a, int port)
+    {
+        if (! (a instanceof Inet4Address)) return 0L;
+        // Inet4Address.hashCode() is the address itself, so this does not
+        // copy the address bytes the way getAddress() does.
+        return PRESENT | ((a.hashCode() & 0xFFFFFFFFL) << 16) |
+                (port & 0xFFFF);
+    }
+
+    /**
+     * Unpack a key made by {@link #pack(InetAddress,int) pack()}.
+     *
+     * @param  key  packed IPv4 address
+     * @return the socket address it was packed from
+     */
+    public static InetSocketAddress unpack(long key)
+    {
+        byte[] ip = new byte []
+            { (byte) (key >>> 40), (byte) (key >>> 32),
+              (byte) (key >>> 24), (byte) (key >>> 16) };
+        try
+        {
+            return new InetSocketAddress
+                (InetAddress.getByAddress (ip), (int) (key & 0xFFFF));
+        }
+        catch (UnknownHostException exc)
+        {
+            // Not thrown for an address of four bytes
+            throw new IllegalStateException (exc);
+        }
+    }
+
+    /**
+     * Find the slot of a client by its address.
+     *
+     * @param  key      packed address, or 0 if not IPv4
+     * @param  address  client address
+     * @return the slot, or -1 if the client is not in the store
+     */
+    public int find(long key, InetSocketAddress address)
+    {
+        if (key == 0L)
+        {
+            Integer slot = otherSlots != null ? otherSlots.get (address) : null;
+            return slot != null ? slot : -1;
+        }
+        int mask = keys.length - 1;
+        for (int i = mix (key) & mask; keys[i] != 0L; i = (i + 1) & mask)
+            if (keys[i] == key) return slots[i];
+        return -1;
+    }
+
+    /**
+     * Add a client with no vote.
+     *
+     * @param  key      packed address, or 0 if not IPv4
+     * @param  address  client address
+     * @param  now      current tick
+     * @return the new slot, or -1 if the store is full
+     */
+    public int add(long key, InetSocketAddress address, int now)
+    {
+        int slot;
+        if (freeHead >= 0)
+        {
+            slot = freeHead;
+            freeHead = lastSeen[slot];
+        }
+        else
+        {
+            if (used == maxSlots) return -1;
+            if (used == addresses.length) grow();
+            slot = used ++;
+        }
+        timestamps[slot] = 0L;
+        lastSeen[slot] = now;
+        votes[slot] = 0;
+        setAddress (slot, key, address);
+        ++ count;
+        return slot;
+    }
+
+    /**
+     * Move a client to a new address, for instance after a NAT rebinding.
+     * The client keeps its slot; it is found by its session or its new
+     * address from then on, not by its old address.
+     *
+     * @param  slot     the client's slot
+     * @param  key      new packed address, or 0 if not IPv4
+     * @param  address  new client address
+     */
+    public void move(int slot, long key, InetSocketAddress address)
+    {
+        unindex (slot);
+        setAddress (slot, key, address);
+        log ('M', slot, 0, 0L);
+    }
+
+    /**
+     * @param  slot     a slot
+     * @param  key      packed address, or 0 if not IPv4
+     * @param  address  an address
+     * @return true if the slot's client is at that address
+     */
+    public boolean isAt(int slot, long key, InetSocketAddress address)
+    {
+        return key != 0L ? addresses[slot] == key :
+                addresses[slot] == OTHER &&
+                address.equals (otherAddresses.get (slot));
+    }
+
+    /**
+     * @param  slot        a slot
+     * @param  generation  the generation the slot had when it was handed
+     *                     out
+     * @return true if the slot still holds that client
+     */
+    public boolean isLive(int slot, int generation)
+    {
+        return slot < used && addresses[slot] != 0L &&
+                (generations[slot] & 0xFF) == generation;
+    }
+
+    /**
+     * @param  slot  a slot in use
+     * @return the slot's generation, 0 to 127
+     */
+    public int generation(int slot)
+    {
+        return generations[slot] & 0xFF;
+    }
+
+    /**
+     * Record a vote. Votes with a timestamp older than the last one are
+     * ignored, but still count as hearing from the client.
+     *
+     * @param  slot       the client's slot
+     * @param  option     option voted for, or 0
+     * @param  timestamp  time the vote was sent
+     * @param  now        current tick
+     * @return true if the tally changed
+     */
+    public boolean vote(int slot, int option, long timestamp, int now)
+    {
+        lastSeen[slot] = now;
+        if (timestamp <= timestamps[slot]) return false;
+        timestamps[slot] = timestamp;
+        log ('V', slot, option, timestamp);
+        int old = votes[slot] & 0xFF;
+        if (option == old) return false;
+        if (old != 0) counts.decrementAndGet (old);
+        if (option != 0) counts.incrementAndGet (option);
+        votes[slot] = (byte) option;
+        ++ changes;
+        return true;
+    }
+
+    /**
+     * Record hearing from a client without a vote.
+     *
+     * @param  slot  the client's slot
+     * @param  now   current tick
+     */
+    public void touch(int slot, int now)
+    {
+        lastSeen[slot] = now;
+    }
+
+    /**
+     * @return the number of chunks the slots in use are swept in
+     */
+    public int chunks()
+    {
+        return (used + CHUNK_SIZE - 1) >> CHUNK_BITS;
+    }
+
+    /**
+     * Free the slots in one chunk of clients silent for longer than the
+     * timeout, taking their votes out of the tally. Each chunk remembers a
+     * bound on its oldest last-seen tick, so a chunk that cannot hold such
+     * a client yet is skipped without looking at its slots.
+     *
+     * @param  chunk    chunk, 0 to chunks()-1
+     * @param  now      current tick
+     * @param  timeout  ticks a client may stay silent
+     * @return the number of clients removed
+     */
+    public int sweep(int chunk, int now, int timeout)
+    {
+        if (now - oldest[chunk] <= timeout) return 0;
+        int removed = 0;
+        int min = now;
+        int end = Math.min (used, (chunk + 1) << CHUNK_BITS);
+        for (int slot = chunk << CHUNK_BITS; slot < end; ++ slot)
+        {
+            if (addresses[slot] == 0L) continue;
+            if (now - lastSeen[slot] > timeout)
+            {
+                free (slot);
+                ++ removed;
+            }
+            else if (lastSeen[slot] - min < 0)
+            {
+                min = lastSeen[slot];
+            }
+        }
+        oldest[chunk] = min;
+        return removed;
+    }
+
+    /**
+     * @param  part   which part, 0 to parts-1
+     * @param  parts  total number of parts
+     * @return the most clients one part of the store holds
+     */
+    public int partLength(int part, int parts)
+    {
+        return (int) ((long) used * (part + 1) / parts) -
+            (int) ((long) used * part / parts);
+    }
+
+    /**
+     * Copy the addresses of the clients in one part of the store, so a
+     * message can be sent to them after the store's lock is released.
+     * IPv4 addresses are copied packed, to be unpacked with {@link
+     * #unpack(long) unpack()}; for a client at another address the key is
+     * 0 and its address is put in <TT>others</TT> at the same index.
+     *
+     * @param  part    which part, 0 to parts-1
+     * @param  parts   total number of parts
+     * @param  out     gets the packed addresses; must hold at least {@link
+     *                 #partLength(int,int) partLength()}
+     * @param  others  gets the other addresses; as long as <TT>out</TT>
+     * @return the number of addresses copied
+     */
+    public int copyPart
+        (int part,
+         int parts,
+         long[] out,
+         InetSocketAddress[] others)
+    {
+        int from = (int) ((long) used * part / parts);
+        int end = (int) ((long) used * (part + 1) / parts);
+        int n = 0;
+        for (int slot = from; slot < end; ++ slot)
+        {
+            long key = addresses[slot];
+            if (key == 0L) continue;
+            if (key == OTHER)
+            {
+                others[n] = otherAddresses.get (slot);
+                key = 0L;
+            }
+            out[n ++] = key;
+        }
+        return n;
+    }
+
+    /**
+     * Write one chunk of slots to a snapshot: the generation of every slot
+     * in the chunk, then the address, timestamp and vote of each client.
+     *
+     * @param  chunk  chunk, 0 to chunks()-1
+     * @param  out    snapshot
+     * @exception  IOException
+     *     Thrown if the snapshot could not be written.
+     */
+    public void writeChunk(int chunk, DataOutput out) throws IOException
+    {
+        int from = chunk << CHUNK_BITS;
+        int end = Math.min (used, from + CHUNK_SIZE);
+        int live = 0;
+        out.writeInt (chunk);
+        out.writeShort (end - from);
+        for (int slot = from; slot < end; ++ slot)
+        {
+            long key = addresses[slot];
+            // A client left out gets a new generation, so its session ID
+            // cannot reach whoever is given the slot after a restart.
+            out.writeByte (key == OTHER ? (generations[slot] + 1) & 0x7F :
+                           generations[slot]);
+            if (key != 0L && key != OTHER) ++ live;
+        }
+        out.writeShort (live);
+        for (int slot = from; slot < end; ++ slot)
+        {
+            long key = addresses[slot];
+            if (key == 0L || key == OTHER) continue;
+            out.writeShort (slot - from);
+            out.writeLong (key);
+            out.writeLong (timestamps[slot]);
+            out.writeByte (votes[slot]);
+        }
+    }
+
+    /**
+     * Read one chunk of slots written by {@link #writeChunk(int,DataOutput)
+     * writeChunk()}, replacing whatever the slots held. Once every chunk
+     * and journal record has been read, {@link #endRestore(int)
+     * endRestore()} must be called before the store is used.
+     *
+     * @param  in   snapshot, positioned at the chunk
+     * @param  now  current tick
+     * @exception  IOException
+     *     Thrown if the snapshot could not be read or is not valid.
+     */
+    public void readChunk(DataInput in, int now) throws IOException
+    {
+        int from = in.readInt() << CHUNK_BITS;
+        int n = in.readUnsignedShort();
+        if (from < 0 || n > CHUNK_SIZE || from + n > maxSlots)
+            throw new IOException ("ResponderStore: bad snapshot chunk");
+        if (n == 0) return;
+        reserve (from + n - 1);
+        for (int slot = from; slot < from + n; ++ slot)
+            clear (slot);
+        in.readFully (generations, from, n);
+        // The clients are read in one go and taken apart in memory.
+        byte[] bytes = new byte [in.readUnsignedShort() * ENTRY_LENGTH];
+        in.readFully (bytes);
+        ByteBuffer entries = ByteBuffer.wrap (bytes);
+        while (entries.hasRemaining())
+        {
+            int slot = from + (entries.getShort() & 0xFFFF);
+            long key = entries.getLong();
+            long timestamp = entries.getLong();
+            int option = entries.get() & 0xFF;
+            if (slot >= from + n || (key & PRESENT) == 0L)
+                throw new IOException ("ResponderStore: bad snapshot slot");
+            place (slot, key, timestamp, option, now);
+        }
+    }
+
+    /**
+     * Apply one journal record to a store being rebuilt. Records the
+     * snapshot already reflects, or for a slot that has since been given
+     * to another client, change nothing.
+     *
+     * @param  type        'V', 'M' or 'E'
+     * @param  slot        slot
+     * @param  generation  generation of the slot
+     * @param  key         packed address, or 1 if not IPv4
+     * @param  option      option voted for
+     * @param  timestamp   time the vote was sent
+     * @param  now         current tick
+     */
+    public void replay
+        (int type,
+         int slot,
+         int generation,
+         long key,
+         int option,
+         long timestamp,
+         int now)
+    {
+        if (slot < 0 || slot >= maxSlots) return;
+        boolean live = isLive (slot, generation);
+        switch (type)
+        {
+            case 'V':
+                if (live)
+                {
+                    vote (slot, option, timestamp, now);
+                    break;
+                }
+                // Otherwise only a client added since the snapshot, to a
+                // slot still empty and of the same generation, is new.
+                if (key == OTHER) break;
+                if (slot < used ? addresses[slot] != 0L ||
+                        (generations[slot] & 0xFF) != generation :
+                        generation != 0)
+                    break;
+                reserve (slot);
+                place (slot, key, timestamp, option, now);
+                break;
+            case 'M':
+                if (! live) break;
+                if (key == OTHER)
+                {
+                    free (slot);
+                }
+                else
+                {
+                    unindex (slot);
+                    setAddress (slot, key, null);
+                }
+                break;
+            case 'E':
+                if (live) free (slot);
+                break;
+        }
+    }
+
+    /**
+     * Finish rebuilding the store from a snapshot and journal.
+     *
+     * @param  now  current tick
+     */
+    public void endRestore(int now)
+    {
+        freeHead = -1;
+        count = 0;
+        for (int slot = used - 1; slot >= 0; -- slot)
+        {
+            if (addresses[slot] == 0L)
+            {
+                lastSeen[slot] = freeHead;
+                freeHead = slot;
+            }
+            else
+            {
+                ++ count;
+            }
+        }
+        Arrays.fill (oldest, now);
+    }
+
+    /**
+     * @return the number of clients in the store
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * @return the number of votes changed since the store was made
+     */
+    public long changes()
+    {
+        return changes;
+    }
+
+    /**
+     * Returns the number of votes for an option. May be called without
+     * holding the lock.
+     *
+     * @param  option  option, 1 or more
+     * @return the number of clients that voted for it
+     */
+    public int count(int option)
+    {
+        return counts.get (option);
+    }
+
+// Hidden operations.
+
+    /**
+     * Free a slot.
+     *
+     * @param  slot  slot in use
+     */
+    private void free(int slot)
+    {
+        int old = votes[slot] & 0xFF;
+        if (old != 0) counts.decrementAndGet (old);
+        log ('E', slot, 0, 0L);
+        unindex (slot);
+        addresses[slot] = 0L;
+        generations[slot] = (byte) ((generations[slot] + 1) & 0x7F);
+        lastSeen[slot] = freeHead;
+        freeHead = slot;
+        -- count;
+    }
+
+    /**
+     * Make room for a slot while rebuilding the store.
+     */
+    private void reserve(int slot)
+    {
+        while (slot >= addresses.length) grow();
+        if (slot >= used) used = slot + 1;
+    }
+
+    /**
+     * Empty a slot while rebuilding the store, keeping its generation.
+     */
+    private void clear(int slot)
+    {
+        if (addresses[slot] == 0L) return;
+        int old = votes[slot] & 0xFF;
+        if (old != 0) counts.decrementAndGet (old);
+        unindex (slot);
+        addresses[slot] = 0L;
+    }
+
+    /**
+     * Put a client in an empty slot while rebuilding the store.
+     */
+    private void place
+        (int slot, long key, long timestamp, int option, int now)
+    {
+        timestamps[slot] = timestamp;
+        lastSeen[slot] = now;
+        votes[slot] = (byte) option;
+        if (option != 0) counts.incrementAndGet (option);
+        setAddress (slot, key, null);
+    }
+
+    /**
+     * Record a change to a slot in the journal, if there is one.
+     */
+    private void log(char type, int slot, int option, long timestamp)
+    {
+        if (journal == null) return;
+        journal.append ((byte) type, journalPoll, journalShard, slot,
+                        generations[slot] & 0xFF, addresses[slot], option,
+                        timestamp);
+    }
+
+    /**
+     * Set the address of a client and index it.
+     *
+     * @param  key      packed address, or 0 if not IPv4
+     * @param  address  client address; only used if not IPv4
+     */
+    private void setAddress(int slot, long key, InetSocketAddress address)
+    {
+        if (key == 0L)
+        {
+            addresses[slot] = OTHER;
+            if (otherSlots == null)
+            {
+                otherSlots = new HashMap<>();
+                otherAddresses = new HashMap<>();
+            }
+            otherSlots.put (address, slot);
+            otherAddresses.put (slot, address);
+            return;
+        }
+        addresses[slot] = key;
+        if (2 * (keyCount + 1) > keys.length) rehash (2 * keys.length);
+        int mask = keys.length - 1;
+        int i = mix (key) & mask;
+        while (keys[i] != 0L) i = (i + 1) & mask;
+        keys[i] = key;
+        slots[i] = slot;
+        ++ keyCount;
+    }
+
+    /**
+     * Remove a slot's address from the index, if it is there.
+     */
+    private void unindex(int slot)
+    {
+        long key = addresses[slot];
+        if (key == OTHER)
+        {
+            InetSocketAddress address = otherAddresses.remove (slot);
+            Integer s = otherSlots.get (address);
+            if (s != null && s == slot) otherSlots.remove (address);
+            return;
+        }
+        int mask = keys.length - 1;
+        int i = mix (key) & mask;
+        while (keys[i] != 0L && ! (keys[i] == key && slots[i] == slot))
+            i = (i + 1) & mask;
+        if (keys[i] == 0L) return;
+        // Backward shift deletion keeps every probe sequence unbroken.
+        int j = i;
+        for (;;)
+        {
+            j = (j + 1) & mask;
+            if (keys[j] == 0L) break;
+            int home = mix (keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask))
+            {
+                keys[i] = keys[j];
+                slots[i] = slots[j];
+                i = j;
+            }
+        }
+        keys[i] = 0L;
+        -- keyCount;
+    }
+
+    /**
+     * Double the slot arrays, up to the store's limit.
+     */
+    private void grow()
+    {
+        int n = (int) Math.min ((long) addresses.length * 2, maxSlots);
+        addresses = Arrays.copyOf (addresses, n);
+        timestamps = Arrays.copyOf (timestamps, n);
+        lastSeen = Arrays.copyOf (lastSeen, n);
+        votes = Arrays.copyOf (votes, n);
+        generations = Arrays.copyOf (generations, n);
+        oldest = Arrays.copyOf (oldest, (n + CHUNK_SIZE - 1) >> CHUNK_BITS);
+    }
+
+    /**
+     * Rebuild the address index with a new capacity.
+     */
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new long [capacity];
+        slots = new int [capacity];
+        int mask = capacity - 1;
+        for (int k = 0; k < oldKeys.length; ++ k)
+        {
+            if (oldKeys[k] == 0L) continue;
+            int i = mix (oldKeys[k]) & mask;
+            while (keys[i] != 0L) i = (i + 1) & mask;
+            keys[i] = oldKeys[k];
+            slots[i] = oldSlots[k];
+        }
+    }
+
+    /**
+     * Spread the bits of a packed key.
+     */
+    private static int mix(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
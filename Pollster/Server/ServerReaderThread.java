@@ -1,14 +1,16 @@
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketAddress;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Class ServerReaderThread provides a thread that receives messages from
  * clients in the poll system.
+ * <P>
+ * Each source is held to a steady rate of messages before anything is
+ * decoded, and the messages over it, and those that are not well formed,
+ * are only counted.
  *
  * @author  Alan Kaminsky
  * @modified Paul Zenie
@@ -20,22 +22,88 @@ public class ServerReaderThread extends Thread
 // Hidden data members.
 
     private DatagramSocket mailbox;
-    private ViewListener viewListener;
-    private HashMap<SocketAddress, ViewProxy> map;
+    private PollRegistry registry;
+    private IngestQueue queue;
+    private RateLimiter sources;
+    private LongAdder malformed = new LongAdder();
 
 // Exported constructors.
 
     /**
-     * Construct a new server reader thread.
+     * Construct a new server reader thread with a queue of the default
+     * capacity that coalesces messages from each client when full.
      *
      * @param  mailbox   Mailbox.
-     * @param  listener  View listener.
+     * @param  registry  Polls to hand messages to.
      */
-    public ServerReaderThread(DatagramSocket mailbox, ViewListener listener)
+    public ServerReaderThread(DatagramSocket mailbox, PollRegistry registry)
+    {
+        this(mailbox, registry, IngestQueue.DEFAULT_CAPACITY,
+                IngestQueue.COALESCE);
+    }
+
+    /**
+     * Construct a new server reader thread. Decoded messages are queued on
+     * an {@link IngestQueue}, whose applier thread hands them to the polls.
+     *
+     * @param  mailbox   Mailbox.
+     * @param  registry  Polls to hand messages to.
+     * @param  capacity  Capacity of the queue.
+     * @param  policy    Drop policy of the queue.
+     */
+    public ServerReaderThread
+        (DatagramSocket mailbox,
+         PollRegistry registry,
+         int capacity,
+         int policy)
     {
         this.mailbox = mailbox;
-        this.viewListener = listener;
-        map = new HashMap<>();
+        this.registry = registry;
+        queue = new IngestQueue(capacity, policy, registry, mailbox);
+        sources = new RateLimiter(RateLimiter.SOURCE_RATE,
+                RateLimiter.SOURCE_BURST, RateLimiter.SOURCE_BUCKETS);
+    }
+
+    /**
+     * Limit the messages taken from each source, so one client or a flood
+     * from spoofed addresses cannot crowd out the rest. Must be called
+     * before the thread is started.
+     *
+     * @param  perSecond  steady number of messages per second per source
+     * @param  burst      number of messages taken at once per source
+     */
+    public void setSourceLimit(int perSecond, int burst)
+    {
+        sources = new RateLimiter(perSecond, burst,
+                RateLimiter.SOURCE_BUCKETS);
+    }
+
+    /**
+     * @return the number of messages rejected because their source sent
+     *         too many
+     */
+    public long getRateLimited()
+    {
+        return sources.getRejected();
+    }
+
+    /**
+     * @return the number of messages that were not well formed
+     */
+    public long getMalformed()
+    {
+        return malformed.sum();
+    }
+
+    /**
+     * Returns the queue between this thread and the polls, for its
+     * counters.
+     *
+     * @return  Ingest queue.
+     */
+    public IngestQueue getQueue()
+    {
+        return queue;
     }
 
     /**
@@ -45,39 +113,20 @@ public class ServerReaderThread extends Thread
     {
         byte[] buf = new byte [128];
         DatagramPacket packet = new DatagramPacket (buf, buf.length);
-        ByteArrayInputStream bais;
-        DataInputStream in;
-        byte b;
+        ByteBuffer buffer = ByteBuffer.wrap (buf);
+        queue.start (getName() + "-apply");
         try
         {
             for (;;)
             {
+                packet.setLength (buf.length);
                 mailbox.receive (packet);
-                bais = new ByteArrayInputStream (buf, 0, packet.getLength());
-                in = new DataInputStream (bais);
-                b = in.readByte();
-                int agree;
-                int disagree;
-                long timestamp;
-                switch (b)
-                {
-                    case 'V':
-                        agree = in.read();
-                        disagree = in.read();
-                        timestamp = in.readLong();
-                        ViewProxy model = map.get(packet.getSocketAddress());
-                        if(model == null)
-                        {
-                            model = new ViewProxy
-                                    (mailbox, packet.getSocketAddress());
-                            map.put(packet.getSocketAddress(), model);
-                        }
-                        viewListener.vote(agree, disagree, model, timestamp);
-                        break;
-                    default:
-                        System.err.println ("Bad message");
-                        break;
-                }
+                if (! sources.tryAcquire(RateLimiter.sourceKey
+                        (packet.getAddress(), packet.getPort())))
+                    continue; // counted by the limiter
+                buffer.limit (packet.getLength()) .position (0);
+                if (! queue.offer (buffer, packet.getSocketAddress()))
+                    malformed.increment();
             }
         }
         catch (IOException exc)
@@ -85,9 +134,9 @@ public class ServerReaderThread extends Thread
         }
         finally
         {
+            queue.close();
             mailbox.close();
         }
     }
 
 }
-
@@ -0,0 +1,538 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class TallyGossip lets several pollster nodes, each with its own clients,
+ * agree on the tally of every poll they share. Each node gossips its
+ * state to a few other nodes at a fixed interval, over UDP, on a socket of
+ * its own.
+ * <P>
+ * A poll's tally is replicated as one PN-counter per option: for each
+ * node, the votes it has ever gained and ever lost for the option. Both
+ * only grow, so two copies of the state are merged by taking the larger of
+ * each, in any order and any number of times, and every node ends up with
+ * the same state once the gossip has gone round. A node's own counters
+ * are brought up to date from its local tally before each round. The
+ * tally a node shows is its own plus, for every other node, gained minus
+ * lost.
+ * <P>
+ * Each node also reports how many clients it has in the poll, with a
+ * stamp it raises every round; a report replaces an older one of the same
+ * node. A node counts the clients reported by every other node as remote
+ * responders, so a node fronted by {@link PollsterRelay}s knows how many
+ * clients are behind them.
+ * <P>
+ * A gossip message carries the counters of one poll for every node the
+ * sender knows of, so nodes learn of each other through third parties
+ * too, and a lost message is made good by the next. The traffic depends on
+ * the number of nodes and polls, not on the number of votes. A node that
+ * restarts, or whose poll gets a question with a different number of
+ * options, starts its counters over under a new, higher incarnation
+ * number, which replaces its old counters everywhere. A node that stops
+ * for good keeps its last counters in the other nodes' tallies.
+ * <P>
+ * A gossip message is:
+ * <PRE>
+ *     byte     'G'
+ *     int      sender's node ID
+ *     int      poll ID
+ *     ubyte    number of options
+ *     ushort   number of nodes, then for each:
+ *         int      node ID
+ *         long     incarnation
+ *         long     stamp of the responder count
+ *         int      number of responders
+ *         long     votes gained, for each option
+ *         long     votes lost, for each option
+ * </PRE>
+ * Polls whose option counts differ between nodes are not merged.
+ *
+ * @author  Paul Zenie
+ */
+public class TallyGossip
+{
+
+// Exported constants.
+
+    /**
+     * Default milliseconds between gossip rounds.
+     */
+    public static final int DEFAULT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Default number of nodes each round's gossip is sent to.
+     */
+    public static final int DEFAULT_FANOUT = 3;
+
+// Hidden constants.
+
+    private static final int MAX_DATAGRAM = 65507;
+
+    // Lengths of a message before the first node, and of a node before
+    // its counters.
+    private static final int HEADER_LENGTH = 12;
+    private static final int NODE_LENGTH = 24;
+
+// Hidden data members.
+
+    private int nodeId;
+    private AtomicLong incarnation =
+        new AtomicLong (System.currentTimeMillis() * 1000L);
+    private DatagramChannel channel;
+    private PollRegistry registry;
+    private InetSocketAddress[] peers;
+    private int fanout = DEFAULT_FANOUT;
+    private ConcurrentHashMap<Integer, Counter> counters =
+        new ConcurrentHashMap<>();
+
+    // Used by the gossip rounds only.
+    private ByteBuffer outgoing = ByteBuffer.allocateDirect (MAX_DATAGRAM);
+    private Random random = new Random();
+    private int[] local = new int [0];
+
+    private LongAdder sent = new LongAdder();
+    private LongAdder received = new LongAdder();
+    private LongAdder malformed = new LongAdder();
+    private volatile boolean closed;
+    private ScheduledFuture<?> task;
+    private Receiver receiver;
+
+// Exported constructors.
+
+    /**
+     * Construct a new tally gossip.
+     *
+     * @param  nodeId    this node's ID, different from every other node's
+     * @param  channel   bound channel to gossip on
+     * @param  registry  polls to replicate the tallies of
+     * @param  peers     gossip addresses of the other nodes
+     */
+    public TallyGossip
+        (int nodeId,
+         DatagramChannel channel,
+         PollRegistry registry,
+         InetSocketAddress[] peers)
+    {
+        this.nodeId = nodeId;
+        this.channel = channel;
+        this.registry = registry;
+        this.peers = peers.clone();
+        receiver = new Receiver();
+    }
+
+// Exported operations.
+
+    /**
+     * Set the number of nodes each round's gossip is sent to. Must be
+     * called before the gossip is started.
+     *
+     * @param  fanout  number of nodes, at least 1
+     */
+    public void setFanout(int fanout)
+    {
+        if (fanout < 1)
+            throw new IllegalArgumentException
+                ("TallyGossip.setFanout(): fanout = " + fanout + " illegal");
+        this.fanout = fanout;
+    }
+
+    /**
+     * Start receiving gossip, and sending it every interval on the polls'
+     * shared executor.
+     *
+     * @param  intervalMillis  milliseconds between gossip rounds
+     */
+    public void start(int intervalMillis)
+    {
+        if (intervalMillis < 1)
+            throw new IllegalArgumentException
+                ("TallyGossip.start(): intervalMillis = " + intervalMillis +
+                 " illegal");
+        receiver.setName ("TallyGossip");
+        receiver.setDaemon (true);
+        receiver.start();
+        task = registry.getExecutor().scheduleAtFixedRate (new Runnable()
+        {
+            public void run()
+            {
+                round();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop gossiping and close the channel.
+     */
+    public void close()
+    {
+        closed = true;
+        if (task != null) task.cancel (false);
+        try
+        {
+            channel.close();
+        }
+        catch (IOException exc)
+        {
+        }
+    }
+
+    /**
+     * @return the number of gossip messages sent
+     */
+    public long getSent()
+    {
+        return sent.sum();
+    }
+
+    /**
+     * @return the number of gossip messages received
+     */
+    public long getReceived()
+    {
+        return received.sum();
+    }
+
+    /**
+     * @return the number of gossip messages that were not well formed
+     */
+    public long getMalformed()
+    {
+        return malformed.sum();
+    }
+
+// Hidden operations.
+
+    /**
+     * Send each poll's counters to a few nodes.
+     */
+    private void round()
+    {
+        for (Integer pollId : counters.keySet())
+            if (registry.get (pollId) == null) counters.remove (pollId);
+        for (Integer pollId : registry.pollIds())
+        {
+            PollsterModel model = registry.get (pollId);
+            if (model == null) continue;
+            int options = model.getOptionCount();
+            if (options == 0) continue;
+            if (local.length != options) local = new int [options];
+            model.localCounts (local);
+            int responders = model.getResponders();
+            Counter counter = counter (pollId, options);
+            outgoing.clear();
+            synchronized (counter)
+            {
+                counter.update (local, responders);
+                counter.encode (pollId, outgoing);
+            }
+            outgoing.flip();
+            int n = Math.min (fanout, peers.length);
+            int first = random.nextInt (Math.max (peers.length, 1));
+            for (int i = 0; i < n; ++ i)
+            {
+                try
+                {
+                    outgoing.rewind();
+                    channel.send (outgoing, peers[(first + i) % peers.length]);
+                    sent.increment();
+                }
+                catch (IOException exc)
+                {
+                    // The next round sends it again
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge a gossip message into the counters.
+     *
+     * @param  buf  message
+     */
+    private void merge(ByteBuffer buf)
+    {
+        try
+        {
+            if (buf.get() != 'G') throw new BufferUnderflowException();
+            buf.getInt();
+            int pollId = buf.getInt();
+            int options = buf.get() & 0xFF;
+            int nodes = buf.getShort() & 0xFFFF;
+            if (options == 0 ||
+                    buf.remaining() != nodes * entryLength (options))
+                throw new BufferUnderflowException();
+            received.increment();
+            PollsterModel model = registry.get (pollId);
+            if (model == null || model.getOptionCount() != options) return;
+            Counter counter = counter (pollId, options);
+            int[] remote = null;
+            int responders = 0;
+            synchronized (counter)
+            {
+                boolean changed = false;
+                for (int i = 0; i < nodes; ++ i)
+                    changed |= counter.merge (buf);
+                if (changed)
+                {
+                    remote = counter.remoteTally();
+                    responders = counter.remoteResponders();
+                }
+            }
+            if (remote != null)
+            {
+                model.setRemoteResponders (responders);
+                model.setRemoteCounts (remote);
+            }
+        }
+        catch (BufferUnderflowException exc)
+        {
+            malformed.increment();
+        }
+    }
+
+    /**
+     * Returns a poll's counters, making them if the poll is new or its
+     * option count changed.
+     */
+    private Counter counter(int pollId, int options)
+    {
+        Counter counter = counters.get (pollId);
+        if (counter == null || counter.options != options)
+        {
+            synchronized (counters)
+            {
+                counter = counters.get (pollId);
+                if (counter == null || counter.options != options)
+                {
+                    counter = new Counter (options);
+                    counters.put (pollId, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return the length of one node's counters in a gossip message
+     */
+    private static int entryLength(int options)
+    {
+        return NODE_LENGTH + 16 * options;
+    }
+
+// Hidden helper classes.
+
+    /**
+     * Class Entry holds one node's counters for one poll.
+     */
+    private static class Entry
+    {
+        private long incarnation;
+        private long stamp;
+        private int responders;
+        private long[] gained;
+        private long[] lost;
+
+        public Entry(long incarnation, int options)
+        {
+            this.incarnation = incarnation;
+            gained = new long [options];
+            lost = new long [options];
+        }
+    }
+
+    /**
+     * Class Counter holds every known node's counters for one poll. Its
+     * methods must be called while holding its monitor.
+     */
+    private class Counter
+    {
+        private int options;
+        private HashMap<Integer, Entry> entries = new HashMap<>();
+        private Entry own;
+        private int[] last;
+
+        public Counter(int options)
+        {
+            this.options = options;
+            own = new Entry (incarnation.incrementAndGet(), options);
+            entries.put (nodeId, own);
+            last = new int [options];
+        }
+
+        /**
+         * Bring this node's counters up to date with its local tally and
+         * number of responders.
+         */
+        private void update(int[] local, int responders)
+        {
+            ++ own.stamp;
+            own.responders = responders;
+            for (int i = 0; i < options; ++ i)
+            {
+                int delta = local[i] - last[i];
+                if (delta > 0)
+                    own.gained[i] += delta;
+                else
+                    own.lost[i] -= delta;
+                last[i] = local[i];
+            }
+        }
+
+        /**
+         * Encode the counters of as many nodes as fit, this node's first.
+         */
+        private void encode(int pollId, ByteBuffer buf)
+        {
+            int room = (buf.remaining() - HEADER_LENGTH) /
+                entryLength (options);
+            int nodes = Math.min (entries.size(), room);
+            buf.put ((byte) 'G');
+            buf.putInt (nodeId);
+            buf.putInt (pollId);
+            buf.put ((byte) options);
+            buf.putShort ((short) nodes);
+            encode (nodeId, own, buf);
+            int n = 1;
+            for (Map.Entry<Integer, Entry> e : entries.entrySet())
+            {
+                if (n == nodes) break;
+                if (e.getKey() == nodeId) continue;
+                encode (e.getKey(), e.getValue(), buf);
+                ++ n;
+            }
+        }
+
+        private void encode(int node, Entry entry, ByteBuffer buf)
+        {
+            buf.putInt (node);
+            buf.putLong (entry.incarnation);
+            buf.putLong (entry.stamp);
+            buf.putInt (entry.responders);
+            for (int i = 0; i < options; ++ i)
+                buf.putLong (entry.gained[i]);
+            for (int i = 0; i < options; ++ i)
+                buf.putLong (entry.lost[i]);
+        }
+
+        /**
+         * Merge one node's counters from a gossip message.
+         *
+         * @return true if anything changed
+         */
+        private boolean merge(ByteBuffer buf)
+        {
+            int node = buf.getInt();
+            long inc = buf.getLong();
+            long stamp = buf.getLong();
+            int responders = buf.getInt();
+            Entry entry = entries.get (node);
+            if (node == nodeId || (entry != null && inc < entry.incarnation))
+            {
+                // this node's own counters are only changed here
+                buf.position (buf.position() + 16 * options);
+                return false;
+            }
+            boolean changed = false;
+            if (entry == null || inc > entry.incarnation)
+            {
+                entry = new Entry (inc, options);
+                entries.put (node, entry);
+                changed = true;
+            }
+            if (stamp > entry.stamp)
+            {
+                changed |= responders != entry.responders;
+                entry.stamp = stamp;
+                entry.responders = responders;
+            }
+            for (int i = 0; i < options; ++ i)
+            {
+                long g = buf.getLong();
+                if (g > entry.gained[i])
+                {
+                    entry.gained[i] = g;
+                    changed = true;
+                }
+            }
+            for (int i = 0; i < options; ++ i)
+            {
+                long l = buf.getLong();
+                if (l > entry.lost[i])
+                {
+                    entry.lost[i] = l;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * @return the votes for each option at the other nodes
+         */
+        private int[] remoteTally()
+        {
+            int[] tally = new int [options];
+            for (Entry entry : entries.values())
+            {
+                if (entry == own) continue;
+                for (int i = 0; i < options; ++ i)
+                    tally[i] += (int) (entry.gained[i] - entry.lost[i]);
+            }
+            return tally;
+        }
+
+        /**
+         * @return the number of responders at the other nodes
+         */
+        private int remoteResponders()
+        {
+            int count = 0;
+            for (Entry entry : entries.values())
+                if (entry != own) count += entry.responders;
+            return count;
+        }
+    }
+
+    /**
+     * Class Receiver receives gossip messages and merges them.
+     */
+    private class Receiver extends Thread
+    {
+        /**
+         * Run this receiver thread.
+         */
+        public void run()
+        {
+            ByteBuffer buf = ByteBuffer.allocateDirect (MAX_DATAGRAM);
+            while (! closed)
+            {
+                try
+                {
+                    buf.clear();
+                    SocketAddress from = channel.receive (buf);
+                    if (from == null) continue;
+                    buf.flip();
+                    merge (buf);
+                }
+                catch (IOException exc)
+                {
+                    if (closed) return;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,330 @@
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * Class TallyHistory keeps the latest samples of a poll's tally, one per
+ * interval, in a fixed-size ring outside the Java heap. Each sample holds
+ * the time it was taken, the number of responders, the number of votes
+ * changed during the interval (the churn) and the votes for each option.
+ * <P>
+ * One thread adds samples, without allocating; any number of threads may
+ * read them meanwhile without locks. The writer announces the sample it is
+ * about to overwrite before it does, so a reader that finds a sample it
+ * read was overwritten meanwhile reads again. Samples are kept in time
+ * order, so the start of a range is found by binary search. Each sample
+ * also holds the churn added up since the history began, so a range
+ * downsampled to one point per many samples costs two samples per point,
+ * however many samples each point covers.
+ * <P>
+ * A history takes {@link #bytes(int,int) 24 + 4 &times; options} bytes
+ * per sample, outside the heap, so its capacity is best kept to what is
+ * looked at: the default of ten minutes of samples takes 19 KB for two
+ * options and 626 KB for 255.
+ * <P>
+ * The option count is fixed when the history is made. A poll whose
+ * question changes clears its history if the new question has as many
+ * options, and otherwise makes a new one.
+ * <P>
+ * Sample times never go back: a sample taken after the clock was set back
+ * gets the time of the sample before it.
+ *
+ * @author  Paul Zenie
+ */
+public class TallyHistory
+{
+
+// Exported constants.
+
+    /**
+     * Default number of samples kept, ten minutes of one a second.
+     */
+    public static final int DEFAULT_CAPACITY = 10 * 60;
+
+// Hidden constants.
+
+    // Offsets in a sample.
+    private static final int TIME = 0;
+    private static final int TOTAL_CHURN = 8;
+    private static final int RESPONDERS = 16;
+    private static final int CHURN = 20;
+    private static final int COUNTS = 24;
+
+// Hidden data members.
+
+    private ByteBuffer ring;
+    private int capacity;
+    private int options;
+    private int sampleLength;
+
+    // Number of samples added, and number of the sample being written.
+    private volatile long written;
+    private volatile long writing = -1L;
+
+    // Number of the first sample since the history was last cleared.
+    private volatile long first;
+
+    // Churn added up over all samples, and time of the last sample; used
+    // by the writer only.
+    private long totalChurn;
+    private long lastTime = Long.MIN_VALUE;
+
+// Exported constructors.
+
+    /**
+     * Construct a new, empty tally history.
+     *
+     * @param  capacity  number of samples kept
+     * @param  options   number of options in each sample
+     */
+    public TallyHistory(int capacity, int options)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException
+                ("TallyHistory(): capacity = " + capacity + " illegal");
+        if (options < 0 || options > PollFrame.MAX_OPTIONS)
+            throw new IllegalArgumentException
+                ("TallyHistory(): options = " + options + " illegal");
+        sampleLength = COUNTS + 4 * options;
+        if (bytes (capacity, options) > Integer.MAX_VALUE)
+            throw new IllegalArgumentException
+                ("TallyHistory(): capacity = " + capacity + " too large");
+        this.capacity = capacity;
+        this.options = options;
+        ring = ByteBuffer.allocateDirect (capacity * sampleLength);
+    }
+
+// Exported operations.
+
+    /**
+     * Returns the memory a history takes.
+     *
+     * @param  capacity  number of samples kept
+     * @param  options   number of options in each sample
+     * @return the size of the ring in bytes
+     */
+    public static long bytes(int capacity, int options)
+    {
+        return (long) capacity * (COUNTS + 4 * options);
+    }
+
+    /**
+     * Add a sample, overwriting the oldest if the history is full. Only
+     * one thread may add samples.
+     *
+     * @param  time        time the sample was taken; an earlier time than
+     *                     the last sample's is taken as the last sample's
+     * @param  responders  number of responders
+     * @param  churn       number of votes changed since the last sample
+     * @param  counts      votes for each option, option 1 first; only the
+     *                     history's number of options are used
+     */
+    public void add(long time, int responders, int churn, int[] counts)
+    {
+        if (time < lastTime) time = lastTime;
+        lastTime = time;
+        long n = written;
+        writing = n;
+        // The samples must not be changed before readers can see that
+        // this one is being overwritten.
+        VarHandle.storeStoreFence();
+        int p = slot (n);
+        totalChurn += churn;
+        ring.putLong (p + TIME, time);
+        ring.putLong (p + TOTAL_CHURN, totalChurn);
+        ring.putInt (p + RESPONDERS, responders);
+        ring.putInt (p + CHURN, churn);
+        for (int i = 0; i < options; ++ i)
+            ring.putInt (p + COUNTS + 4 * i, counts[i]);
+        written = n + 1;
+    }
+
+    /**
+     * Read the samples taken in a range of times, downsampled to one point
+     * per <TT>step</TT> samples. A point has the time of its first sample,
+     * the responders and votes of its last sample and the churn of all its
+     * samples. Points that do not fit in the series are left out.
+     *
+     * @param  fromMillis  earliest time, inclusive
+     * @param  toMillis    latest time, exclusive
+     * @param  step        number of samples per point
+     * @param  out         gets the points; its option count must be the
+     *                     history's
+     * @return the number of points read
+     */
+    public int read(long fromMillis, long toMillis, int step, Series out)
+    {
+        if (step < 1)
+            throw new IllegalArgumentException
+                ("TallyHistory.read(): step = " + step + " illegal");
+        if (out.options != options)
+            throw new IllegalArgumentException
+                ("TallyHistory.read(): series has wrong option count");
+        for (;;)
+        {
+            long end = written;
+            long start = Math.max (end - capacity, first);
+            long lo = search (start, end, fromMillis);
+            long hi = search (lo, end, toMillis);
+            out.size = 0;
+            for (long first = lo; first < hi && out.size < out.capacity;
+                     first += step)
+            {
+                long last = Math.min (first + step, hi) - 1;
+                int f = slot (first);
+                int l = slot (last);
+                int k = out.size ++;
+                out.times[k] = ring.getLong (f + TIME);
+                out.responders[k] = ring.getInt (l + RESPONDERS);
+                out.churn[k] = ring.getLong (l + TOTAL_CHURN) -
+                    ring.getLong (f + TOTAL_CHURN) + ring.getInt (f + CHURN);
+                for (int i = 0; i < options; ++ i)
+                    out.counts[k * options + i] =
+                        ring.getInt (l + COUNTS + 4 * i);
+            }
+            // Everything above must be read before checking whether the
+            // writer has overwritten any of it.
+            VarHandle.loadLoadFence();
+            if (lo > writing - capacity) return out.size;
+        }
+    }
+
+    /**
+     * Drop the samples added so far, keeping the ring for new ones. Only
+     * the thread that adds samples may call this.
+     */
+    public void clear()
+    {
+        first = written;
+    }
+
+    /**
+     * @return the number of samples added since the history began
+     */
+    public long getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * @return the number of samples kept
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return the number of options in each sample
+     */
+    public int getOptions()
+    {
+        return options;
+    }
+
+// Hidden operations.
+
+    /**
+     * @return the offset of a sample in the ring
+     */
+    private int slot(long n)
+    {
+        return (int) (n % capacity) * sampleLength;
+    }
+
+    /**
+     * @return the first sample from lo to hi taken at or after a time, or
+     *         hi if there is none
+     */
+    private long search(long lo, long hi, long time)
+    {
+        while (lo < hi)
+        {
+            long mid = (lo + hi) >>> 1;
+            if (ring.getLong (slot (mid) + TIME) < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+// Exported helper classes.
+
+    /**
+     * Class Series holds points read from a tally history. A series is
+     * made once and reused for every read, and used by one thread at a
+     * time.
+     */
+    public static class Series
+    {
+        private int capacity;
+        private int options;
+        private int size;
+        private long[] times;
+        private int[] responders;
+        private long[] churn;
+        private int[] counts;
+
+        /**
+         * Construct a new, empty series.
+         *
+         * @param  capacity  most points the series holds
+         * @param  options   number of options in each point
+         */
+        public Series(int capacity, int options)
+        {
+            this.capacity = capacity;
+            this.options = options;
+            times = new long [capacity];
+            responders = new int [capacity];
+            churn = new long [capacity];
+            counts = new int [capacity * options];
+        }
+
+        /**
+         * @return the number of points read
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * @param  i  point index
+         * @return the time of the point's first sample
+         */
+        public long time(int i)
+        {
+            return times[i];
+        }
+
+        /**
+         * @param  i  point index
+         * @return the number of responders at the end of the point
+         */
+        public int responders(int i)
+        {
+            return responders[i];
+        }
+
+        /**
+         * @param  i  point index
+         * @return the number of votes changed during the point
+         */
+        public long churn(int i)
+        {
+            return churn[i];
+        }
+
+        /**
+         * @param  i       point index
+         * @param  option  option, 1 or more
+         * @return the votes for the option at the end of the point
+         */
+        public int count(int i, int option)
+        {
+            return counts[i * options + option - 1];
+        }
+    }
+
+}
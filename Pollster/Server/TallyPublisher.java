@@ -0,0 +1,137 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class TallyPublisher coalesces tally changes and publishes the latest
+ * tally at most a fixed number of times per second.
+ * <P>
+ * Threads that change the tally only mark it dirty, which never blocks.
+ * The first change after a publication schedules the next one, no sooner
+ * than the configured rate allows, on a thread of the publisher's own, so
+ * any changes in between are folded into one update and a slow view never
+ * holds up the caller. A tally that does not change costs nothing. Many
+ * publishers may share one executor instead of each having a thread.
+ *
+ * @author  Paul Zenie
+ */
+public class TallyPublisher
+{
+
+// Hidden data members.
+
+    private AtomicBoolean dirty;
+    private Runnable publish;
+    private ScheduledExecutorService executor;
+    private boolean ownsExecutor;
+    private long periodNanos;
+    private volatile long lastNanos;
+    private volatile boolean closed;
+    private Runnable task;
+
+// Exported constructors.
+
+    /**
+     * Construct a new tally publisher and start its thread.
+     *
+     * @param  publish       task that reads and publishes the current tally
+     * @param  maxPerSecond  maximum number of publications per second
+     */
+    public TallyPublisher(Runnable publish, int maxPerSecond)
+    {
+        this (publish, maxPerSecond,
+              Executors.newSingleThreadScheduledExecutor(), true);
+    }
+
+    /**
+     * Construct a new tally publisher that runs on a shared executor. The
+     * executor is left running by {@link #shutdown()}.
+     *
+     * @param  publish       task that reads and publishes the current tally
+     * @param  maxPerSecond  maximum number of publications per second
+     * @param  executor      executor to check the tally on
+     */
+    public TallyPublisher
+        (Runnable publish,
+         int maxPerSecond,
+         ScheduledExecutorService executor)
+    {
+        this (publish, maxPerSecond, executor, false);
+    }
+
+    /**
+     * Construct a new tally publisher.
+     *
+     * @param  publish        task that reads and publishes the current tally
+     * @param  maxPerSecond   maximum number of publications per second
+     * @param  executor       executor to check the tally on
+     * @param  ownsExecutor   true to shut the executor down on shutdown
+     */
+    private TallyPublisher
+        (Runnable publish,
+         int maxPerSecond,
+         ScheduledExecutorService executor,
+         boolean ownsExecutor)
+    {
+        if (maxPerSecond < 1)
+            throw new IllegalArgumentException
+                ("TallyPublisher(): maxPerSecond = " + maxPerSecond +
+                 " illegal");
+        this.dirty = new AtomicBoolean (false);
+        this.publish = publish;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.periodNanos = 1000000000L / maxPerSecond;
+        this.lastNanos = System.nanoTime() - periodNanos;
+        task = new Runnable()
+        {
+            public void run()
+            {
+                lastNanos = System.nanoTime();
+                // Changes from here on schedule another publication
+                dirty.getAndSet (false);
+                if (closed) return;
+                try
+                {
+                    TallyPublisher.this.publish.run();
+                }
+                catch (Throwable exc)
+                {
+                    exc.printStackTrace (System.err);
+                }
+            }
+        };
+    }
+
+// Exported operations.
+
+    /**
+     * Mark the tally as changed. The next publication picks it up.
+     */
+    public void markDirty()
+    {
+        if (dirty.get() || dirty.getAndSet (true) || closed) return;
+        long wait = lastNanos + periodNanos - System.nanoTime();
+        try
+        {
+            executor.schedule (task, Math.max (wait, 0L),
+                               TimeUnit.NANOSECONDS);
+        }
+        catch (RejectedExecutionException exc)
+        {
+            // Shut down meanwhile
+        }
+    }
+
+    /**
+     * Stop publishing.
+     */
+    public void shutdown()
+    {
+        closed = true;
+        if (ownsExecutor) executor.shutdown();
+    }
+
+}
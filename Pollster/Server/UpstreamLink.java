@@ -0,0 +1,351 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class UpstreamLink connects a {@link PollsterRelay} to the pollster it
+ * fronts. Toward that pollster the relay is a single client of each poll
+ * it follows: it asks for the poll ('Q') when it starts or a heartbeat
+ * names a version it has not seen, and sends keepalives ('K') so it stays
+ * in the poll and keeps getting the poll broadcast, but it never votes.
+ * Every poll message received is handed to the relay's own poll of the
+ * same ID when it differs from the last one, and the relay's own
+ * broadcaster sends it on to the relay's clients.
+ * <P>
+ * Each poll is followed from a channel, and so an address, of its own. An
+ * acknowledgement does not name its poll, so this is how the link knows
+ * which poll the session ID and keepalive interval in it belong to, and
+ * can send that session ID back with the poll's keepalives at that
+ * poll's interval.
+ * <P>
+ * The votes of the relay's clients do not go this way; they go up as
+ * tally counters over {@link TallyGossip}.
+ *
+ * @author  Paul Zenie
+ */
+public class UpstreamLink
+{
+
+// Exported constants.
+
+    /**
+     * Default milliseconds between keepalives, until the pollster says
+     * otherwise in an acknowledgement.
+     */
+    public static final int DEFAULT_KEEPALIVE_MILLIS = 10000;
+
+// Hidden constants.
+
+    private static final int TICK_MILLIS = 1000;
+
+    private static final int MAX_DATAGRAM = 65507;
+
+// Hidden data members.
+
+    private PollRegistry registry;
+    private HashMap<Integer, Follow> follows = new HashMap<>();
+
+    // Message being sent; used by the keepalive task and the receivers
+    // while holding its monitor.
+    private ByteBuffer outgoing = ByteBuffer.allocate (17);
+
+    private LongAdder sent = new LongAdder();
+    private LongAdder received = new LongAdder();
+    private LongAdder malformed = new LongAdder();
+    private volatile boolean closed;
+    private ScheduledFuture<?> task;
+
+// Exported constructors.
+
+    /**
+     * Construct a new upstream link.
+     *
+     * @param  pollster  the pollster's address
+     * @param  registry  the relay's polls
+     * @param  pollIds   IDs of the polls to follow; each must be in the
+     *                   registry
+     *
+     * @exception  IOException
+     *     Thrown if a channel to the pollster could not be opened.
+     */
+    public UpstreamLink
+        (InetSocketAddress pollster,
+         PollRegistry registry,
+         int[] pollIds)
+        throws IOException
+    {
+        this.registry = registry;
+        try
+        {
+            for (int pollId : pollIds)
+                follows.put (pollId, new Follow
+                    (pollId, DatagramChannel.open().connect (pollster)));
+        }
+        catch (IOException exc)
+        {
+            close();
+            throw exc;
+        }
+    }
+
+// Exported operations.
+
+    /**
+     * Start receiving from the pollster, ask it for each poll, and check
+     * in every keepalive interval on the polls' shared executor.
+     */
+    public void start()
+    {
+        for (Follow follow : follows.values())
+        {
+            Receiver receiver = new Receiver (follow);
+            receiver.setName ("UpstreamLink-" + follow.pollId);
+            receiver.setDaemon (true);
+            receiver.start();
+        }
+        task = registry.getExecutor().scheduleAtFixedRate (new Runnable()
+        {
+            public void run()
+            {
+                tick();
+            }
+        }, 0L, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop following the polls and close the channels.
+     */
+    public void close()
+    {
+        closed = true;
+        if (task != null) task.cancel (false);
+        for (Follow follow : follows.values())
+        {
+            try
+            {
+                follow.channel.close();
+            }
+            catch (IOException exc)
+            {
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages sent to the pollster
+     */
+    public long getSent()
+    {
+        return sent.sum();
+    }
+
+    /**
+     * @return the number of messages received from the pollster
+     */
+    public long getReceived()
+    {
+        return received.sum();
+    }
+
+    /**
+     * @return the number of messages from the pollster that were not well
+     *         formed
+     */
+    public long getMalformed()
+    {
+        return malformed.sum();
+    }
+
+// Hidden operations.
+
+    /**
+     * Ask for each poll not yet received, and send a keepalive for each
+     * poll not checked in on for half a keepalive interval.
+     */
+    private void tick()
+    {
+        long now = System.currentTimeMillis();
+        for (Follow follow : follows.values())
+        {
+            if (follow.version == 0)
+                request (follow);
+            if (now - follow.checkedIn >= follow.keepAliveMillis / 2)
+            {
+                synchronized (outgoing)
+                {
+                    outgoing.clear();
+                    outgoing.put ((byte) 'K');
+                    outgoing.putInt (follow.pollId);
+                    outgoing.putLong (now);
+                    outgoing.putInt (follow.session);
+                    send (follow, outgoing);
+                }
+                follow.checkedIn = now;
+            }
+        }
+    }
+
+    /**
+     * Ask the pollster to send a poll in full.
+     */
+    private void request(Follow follow)
+    {
+        synchronized (outgoing)
+        {
+            outgoing.clear();
+            outgoing.put ((byte) 'Q');
+            outgoing.putInt (follow.pollId);
+            outgoing.putInt (follow.version);
+            outgoing.putInt (follow.session);
+            send (follow, outgoing);
+        }
+    }
+
+    private void send(Follow follow, ByteBuffer buf)
+    {
+        buf.flip();
+        try
+        {
+            follow.channel.write (buf);
+            sent.increment();
+        }
+        catch (IOException exc)
+        {
+            // Sent again on a later tick or heartbeat
+        }
+    }
+
+    /**
+     * Handle one message from the pollster on a poll's channel.
+     *
+     * @param  follow   the poll
+     * @param  decoder  decoder wrapped around the message
+     */
+    private void receive(Follow follow, PollFrame.Decoder decoder)
+    {
+        switch (decoder.type())
+        {
+            case 'P':
+                if (! decoder.isPoll() || decoder.pollId() != follow.pollId)
+                    break;
+                received.increment();
+                poll (follow, decoder);
+                return;
+            case 'H':
+                if (! decoder.isHeartbeat() ||
+                        decoder.pollId() != follow.pollId)
+                    break;
+                received.increment();
+                if (follow.version != decoder.version())
+                    request (follow);
+                return;
+            case 'A':
+                if (! decoder.isAck()) break;
+                received.increment();
+                // Only this poll's messages come on its channel
+                if (decoder.keepAliveMillis() > 0)
+                    follow.keepAliveMillis = decoder.keepAliveMillis();
+                if (decoder.session() != 0)
+                    follow.session = decoder.session();
+                return;
+            default:
+                break;
+        }
+        malformed.increment();
+    }
+
+    /**
+     * Hand a poll message to the relay's poll if it differs from the last.
+     */
+    private void poll(Follow follow, PollFrame.Decoder decoder)
+    {
+        PollsterModel model = registry.get (follow.pollId);
+        if (model == null) return;
+        String question = decoder.question();
+        String[] options = decoder.options();
+        if (question == null || options == null || question.isEmpty())
+            return;
+        if (question.equals (follow.question) &&
+                Arrays.equals (options, follow.options))
+        {
+            follow.version = decoder.version();
+            return;
+        }
+        model.setPoll (question, options, decoder.timestamp());
+        follow.question = question;
+        follow.options = options;
+        follow.version = decoder.version();
+    }
+
+// Hidden helper classes.
+
+    /**
+     * Class Follow holds what the relay knows of one poll it follows.
+     */
+    private static class Follow
+    {
+        private int pollId;
+        private DatagramChannel channel;
+
+        // Set by the receiver thread.
+        private volatile int version;
+        private volatile int session;
+        private volatile int keepAliveMillis = DEFAULT_KEEPALIVE_MILLIS;
+        private String question;
+        private String[] options;
+
+        // Set by the keepalive task.
+        private long checkedIn;
+
+        public Follow(int pollId, DatagramChannel channel)
+        {
+            this.pollId = pollId;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Class Receiver receives messages from the pollster about one poll.
+     */
+    private class Receiver extends Thread
+    {
+        private Follow follow;
+
+        public Receiver(Follow follow)
+        {
+            this.follow = follow;
+        }
+
+        /**
+         * Run this receiver thread.
+         */
+        public void run()
+        {
+            ByteBuffer buf = ByteBuffer.allocate (MAX_DATAGRAM);
+            PollFrame.Decoder decoder = new PollFrame.Decoder();
+            while (! closed)
+            {
+                try
+                {
+                    buf.clear();
+                    SocketAddress from = follow.channel.receive (buf);
+                    if (from == null) continue;
+                    buf.flip();
+                    receive (follow, decoder.wrap (buf));
+                }
+                catch (IOException exc)
+                {
+                    if (closed) return;
+                }
+            }
+        }
+    }
+
+}
@@ -1,14 +1,19 @@
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
  * Provides the network proxy for the view object.
  * The view proxy resides in the server and sends messages to the
  * client.
+ * <P>
+ * A view proxy holds no state of the client's own beyond its address and
+ * session ID, so a receiver thread can keep one proxy and point it at the
+ * sender of each message in turn, and a broadcast can point one proxy at
+ * each client in turn. Such a proxy must only be used by one thread.
  *
  * @author  Paul Zenie
  */
@@ -19,6 +24,20 @@ public class ViewProxy implements ModelListener
 
 	private DatagramSocket mailbox;
 	private SocketAddress clientAddress;
+	private int session;
+	private PollFrame pollFrame;
+
+	// Acknowledgement buffer for each ingest thread
+	private static final ThreadLocal<ByteBuffer> ACK =
+		new ThreadLocal<ByteBuffer>()
+		{
+			protected ByteBuffer initialValue()
+			{
+				ByteBuffer buf = ByteBuffer.allocateDirect (17);
+				buf.put (0, (byte) 'A');
+				return buf;
+			}
+		};
 
 // Exported constructors.
 
@@ -36,25 +55,124 @@ public class ViewProxy implements ModelListener
 		this.clientAddress = clientAddress;
 	}
 
+// Exported operations.
+
+	/**
+	 * Returns the address messages to the client are sent to.
+	 *
+	 * @return  Client address.
+	 */
+	public SocketAddress getClientAddress()
+	{
+		return clientAddress;
+	}
+
+	/**
+	 * Change the address messages are sent to.
+	 *
+	 * @param  clientAddress  New client address.
+	 */
+	public void setClientAddress(SocketAddress clientAddress)
+	{
+		this.clientAddress = clientAddress;
+	}
+
+	/**
+	 * Returns the client's session ID.
+	 *
+	 * @return  Session ID, or 0 if the client has none yet.
+	 */
+	public int getSession()
+	{
+		return session;
+	}
+
+	/**
+	 * Record the client's session ID: the one it sent, or the one the
+	 * server assigned to it, which the next acknowledgement carries.
+	 *
+	 * @param  session  Session ID.
+	 */
+	public void setSession(int session)
+	{
+		this.session = session;
+	}
+
 	/**
-	 * Send a poll question to clients
+	 * Send a poll question to the client. The message is encoded into a
+	 * frame this proxy keeps, so a proxy that answers many poll requests
+	 * only encodes the poll again when it changes.
 	 *
+	 * @param  pollId   ID of the poll.
+	 * @param  version  Version of the poll.
 	 * @param  question Poll question to send.
+	 * @param  options  Options to choose from.
 	 * @param timestamp the time the poll was sent
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void setPoll(String question, long timestamp) throws IOException
-	{
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream (baos);
-		out.writeByte ('P');
-		out.writeUTF (question);
-        out.writeLong(timestamp);
-		out.flush();
-		byte[] buf = baos.toByteArray();
-		DatagramPacket packet =
-                new DatagramPacket (buf, buf.length, clientAddress);
-		mailbox.send (packet);
+	public void setPoll
+		(int pollId,
+		 int version,
+		 String question,
+		 String[] options,
+		 long timestamp)
+		throws IOException
+	{
+		if (pollFrame == null) pollFrame = new PollFrame();
+		send (pollFrame.encode
+			(pollId, version, question, options, timestamp));
+	}
+
+	/**
+	 * Send an already encoded message to the client. The message is sent
+	 * from the frame's position to its limit, and the position is restored
+	 * afterwards, so the same frame can be sent to every client.
+	 *
+	 * @param  frame  Encoded message.
+	 * @return  True if the message was sent, false if the socket had no
+	 *          room for it.
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public boolean send(ByteBuffer frame) throws IOException
+	{
+		DatagramChannel channel = mailbox.getChannel();
+		int start = frame.position();
+		boolean sent = true;
+		if (channel != null)
+		{
+			sent = channel.send (frame, clientAddress) > 0;
+		}
+		else
+		{
+			byte[] buf = new byte [frame.remaining()];
+			frame.get (buf);
+			mailbox.send (new DatagramPacket (buf, buf.length, clientAddress));
+		}
+		frame.position (start);
+		return sent;
+	}
+
+	/**
+	 * Acknowledge a vote so the client stops resending it. The message is
+	 * <TT>'A'</TT>, the timestamp of the vote (long), the interval at which
+	 * the client should send keepalives (int) and the client's session ID
+	 * (int), which the client echoes in every later message.
+	 *
+	 * @param  timestamp        Timestamp of the vote being acknowledged.
+	 * @param  keepAliveMillis  Keepalive interval in milliseconds.
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void acknowledge(long timestamp, int keepAliveMillis)
+		throws IOException
+	{
+		ByteBuffer buf = ACK.get();
+		buf.putLong (1, timestamp);
+		buf.putInt (9, keepAliveMillis);
+		buf.putInt (13, session);
+		buf.position (0);
+		send (buf);
 	}
 }
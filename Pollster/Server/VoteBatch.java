@@ -0,0 +1,164 @@
+import java.net.SocketAddress;
+
+/**
+ * Class VoteBatch holds a batch of decoded client messages in parallel
+ * arrays, so an applier thread can take many messages off its queue at once
+ * and a poll can apply them together (see
+ * {@link PollsterModel#applyBatch(VoteBatch,int,ViewProxy)}).
+ * <P>
+ * Each message has the fields given to {@link IngestQueue#offer
+ * IngestQueue.offer()}. A message is marked done once a poll has applied
+ * it. A batch is used by one thread at a time.
+ *
+ * @author  Paul Zenie
+ */
+public class VoteBatch
+{
+
+// Hidden data members.
+
+    private byte[] types;
+    private int[] pollIds;
+    private byte[] options;
+    private long[] timestamps;
+    private int[] sessions;
+    private SocketAddress[] addresses;
+    private int size;
+
+// Exported constructors.
+
+    /**
+     * Construct a new, empty batch.
+     *
+     * @param  capacity  most messages the batch holds
+     */
+    public VoteBatch(int capacity)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException
+                ("VoteBatch(): capacity = " + capacity + " illegal");
+        types = new byte [capacity];
+        pollIds = new int [capacity];
+        options = new byte [capacity];
+        timestamps = new long [capacity];
+        sessions = new int [capacity];
+        addresses = new SocketAddress [capacity];
+    }
+
+// Exported operations.
+
+    /**
+     * Empty the batch.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < size; ++ i)
+            addresses[i] = null;
+        size = 0;
+    }
+
+    /**
+     * Add a message to the batch.
+     *
+     * @return false if the batch is full
+     */
+    public boolean add
+        (byte type,
+         int pollId,
+         int option,
+         long timestamp,
+         int session,
+         SocketAddress address)
+    {
+        if (size == types.length) return false;
+        types[size] = type;
+        pollIds[size] = pollId;
+        options[size] = (byte) option;
+        timestamps[size] = timestamp;
+        sessions[size] = session;
+        addresses[size] = address;
+        ++ size;
+        return true;
+    }
+
+    /**
+     * @return the number of messages in the batch
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the most messages the batch holds
+     */
+    public int capacity()
+    {
+        return types.length;
+    }
+
+    /**
+     * @param  i  message index
+     * @return the message type, 'V', 'Q' or 'K', or 0 if it is done
+     */
+    public byte type(int i)
+    {
+        return types[i];
+    }
+
+    /**
+     * Mark a message done.
+     *
+     * @param  i  message index
+     */
+    public void done(int i)
+    {
+        types[i] = 0;
+    }
+
+    /**
+     * @param  i  message index
+     * @return the poll ID
+     */
+    public int pollId(int i)
+    {
+        return pollIds[i];
+    }
+
+    /**
+     * @param  i  message index
+     * @return the option voted for, or 0
+     */
+    public int option(int i)
+    {
+        return options[i] & 0xFF;
+    }
+
+    /**
+     * @param  i  message index
+     * @return the time the vote or keepalive was sent
+     */
+    public long timestamp(int i)
+    {
+        return timestamps[i];
+    }
+
+    /**
+     * @param  i  message index
+     * @return the session ID sent by the client, or 0
+     */
+    public int session(int i)
+    {
+        return sessions[i];
+    }
+
+    /**
+     * @param  i  message index
+     * @return the client address
+     */
+    public SocketAddress address(int i)
+    {
+        return addresses[i];
+    }
+
+}
@@ -0,0 +1,162 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Class VoteDecoder is a flyweight that reads a message from a client in
+ * place, without copying it out of the receive buffer.
+ * <P>
+ * A vote message ('V') has the layout written by the client's model proxy:
+ * <PRE>
+ *     byte   'V'
+ *     int    poll ID
+ *     ubyte  option  (1 to 255, or 0 for no vote)
+ *     long   timestamp
+ *     int   session ID
+ * </PRE>
+ * A poll request ('Q') asks for the whole poll after a heartbeat named a
+ * version the client does not have:
+ * <PRE>
+ *     byte  'Q'
+ *     int   poll ID
+ *     int   version the client has, or 0
+ *     int   session ID
+ * </PRE>
+ * A keepalive ('K') tells the server a client that has not changed its vote
+ * is still there:
+ * <PRE>
+ *     byte  'K'
+ *     int   poll ID
+ *     long  timestamp
+ *     int   session ID
+ * </PRE>
+ * The session ID is the one the server sent in its last acknowledgement,
+ * or 0 if the client has none yet. It may be left off, which also means 0.
+ * The same decoder object is wrapped around the receive buffer for every
+ * datagram, so decoding produces no garbage.
+ *
+ * @author  Paul Zenie
+ */
+public class VoteDecoder
+{
+
+// Exported constants.
+
+    /**
+     * Length in bytes of a vote message.
+     */
+    public static final int VOTE_LENGTH = 14;
+
+    /**
+     * Length in bytes of a poll request message.
+     */
+    public static final int REQUEST_LENGTH = 9;
+
+    /**
+     * Length in bytes of a keepalive message.
+     */
+    public static final int KEEPALIVE_LENGTH = 13;
+
+// Hidden data members.
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+// Exported operations.
+
+    /**
+     * Wrap this decoder around the message between the buffer's position
+     * and limit. The buffer's position and limit are not changed.
+     *
+     * @param  buffer  buffer holding one received datagram
+     * @return this decoder
+     */
+    public VoteDecoder wrap(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.offset = buffer.position();
+        this.length = buffer.remaining();
+        return this;
+    }
+
+    /**
+     * @return the message type byte, or 0 if the message is empty
+     */
+    public byte type()
+    {
+        return length > 0 ? buffer.get (offset) : 0;
+    }
+
+    /**
+     * @return true if the wrapped message is a well formed vote message
+     */
+    public boolean isVote()
+    {
+        return length >= VOTE_LENGTH && buffer.get (offset) == 'V';
+    }
+
+    /**
+     * @return true if the wrapped message is a well formed poll request
+     */
+    public boolean isPollRequest()
+    {
+        return length >= REQUEST_LENGTH && buffer.get (offset) == 'Q';
+    }
+
+    /**
+     * @return true if the wrapped message is a well formed keepalive
+     */
+    public boolean isKeepAlive()
+    {
+        return length >= KEEPALIVE_LENGTH && buffer.get (offset) == 'K';
+    }
+
+    /**
+     * @return the timestamp field of a keepalive message
+     */
+    public long keepAliveTimestamp()
+    {
+        return buffer.getLong (offset + 5);
+    }
+
+    /**
+     * @return the session ID field of a vote, poll request or keepalive
+     *         message, or 0 if the message does not carry one
+     */
+    public int session()
+    {
+        int at;
+        switch (type())
+        {
+            case 'V': at = VOTE_LENGTH; break;
+            case 'Q': at = REQUEST_LENGTH; break;
+            case 'K': at = KEEPALIVE_LENGTH; break;
+            default: return 0;
+        }
+        return length >= at + 4 ? buffer.getInt (offset + at) : 0;
+    }
+
+    /**
+     * @return the poll ID field of a vote, poll request or keepalive message
+     */
+    public int pollId()
+    {
+        return buffer.getInt (offset + 1);
+    }
+
+    /**
+     * @return the option field of a vote message
+     */
+    public int option()
+    {
+        return buffer.get (offset + 5) & 0xFF;
+    }
+
+    /**
+     * @return the timestamp field of a vote message
+     */
+    public long timestamp()
+    {
+        return buffer.getLong (offset + 6);
+    }
+
+}
@@ -0,0 +1,521 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class VoteJournal is an append-only record of every change to the
+ * responders of the polls, written through memory-mapped files so a vote
+ * costs a few stores to memory and no system call.
+ * <P>
+ * The journal is a series of segment files in one directory, named
+ * <TT>votes-</TT><I>n</I><TT>.journal</TT>, each mapped whole. Appending
+ * threads reserve room for a record with one compare-and-set and write it
+ * in place, so they never wait on each other. Room is only reserved in a
+ * segment already mapped, so a segment that cannot be mapped, say for
+ * want of disk, drops the records meant for it instead of leaving a hole
+ * that would stop the flusher and replay. Each record is 32 bytes:
+ * <PRE>
+ *     byte   type       'V' vote, 'M' moved to a new address,
+ *                       'E' evicted, 'N' new poll, 'X' closed poll;
+ *                       0 past the last record
+ *     ubyte  option     option voted for, or 0
+ *     short  shard      responder shard, or for 'N' the number of
+ *                       shards
+ *     int    poll ID
+ *     int    slot       slot in the shard
+ *     int    generation generation of the slot
+ *     long   address    packed address (see ResponderStore.pack()), or
+ *                       1 if not IPv4
+ *     long   timestamp  time the vote was sent
+ * </PRE>
+ * The type byte is written last, so a reader stops at a record that was
+ * cut short, and the flusher counts a record as flushed only once its type
+ * byte is there.
+ * <P>
+ * Once written, a record survives the server process dying, since the
+ * mapped pages belong to the operating system. A flusher thread forces them
+ * to the disk as a group, after a time or after a number of bytes, so that
+ * they also survive the machine going down.
+ *
+ * @author  Paul Zenie
+ */
+public class VoteJournal
+{
+
+// Exported constants.
+
+    /**
+     * Length in bytes of a record.
+     */
+    public static final int RECORD_LENGTH = 32;
+
+    /**
+     * Length in bytes of a segment file.
+     */
+    public static final int SEGMENT_LENGTH = RECORD_LENGTH << 21;
+
+    /**
+     * Default most milliseconds between flushes.
+     */
+    public static final int DEFAULT_FLUSH_MILLIS = 100;
+
+    /**
+     * Default number of bytes written that forces a flush sooner.
+     */
+    public static final int DEFAULT_FLUSH_BYTES = 1 << 20;
+
+// Hidden data members.
+
+    private File dir;
+    private int firstSegment;
+    private ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+    private volatile Mapped current;
+    private AtomicLong position = new AtomicLong();
+    private volatile long flushed;
+    private Object flushLock = new Object();
+
+    // Stretches skipped by roll(), as {start, end}, that are past the
+    // flushed position; guarded by this journal.
+    private ArrayList<long[]> gaps = new ArrayList<>();
+    private int flushMillis;
+    private int flushBytes;
+    private LongAdder records = new LongAdder();
+    private LongAdder dropped = new LongAdder();
+    private LongAdder flushes = new LongAdder();
+    private volatile boolean closed;
+    private Thread flusher;
+
+// Exported constructors.
+
+    /**
+     * Construct a new vote journal appending to the given directory. New
+     * records go in new segment files after any already there.
+     *
+     * @param  dir          directory of the segment files
+     * @param  flushMillis  most milliseconds between a record being written
+     *                      and being forced to the disk
+     * @param  flushBytes   number of bytes written that forces a flush
+     *                      sooner
+     * @exception  IOException
+     *     Thrown if the directory could not be made or the first segment
+     *     could not be mapped.
+     */
+    public VoteJournal(File dir, int flushMillis, int flushBytes)
+        throws IOException
+    {
+        if (flushMillis < 1)
+            throw new IllegalArgumentException
+                ("VoteJournal(): flushMillis = " + flushMillis + " illegal");
+        if (flushBytes < RECORD_LENGTH)
+            throw new IllegalArgumentException
+                ("VoteJournal(): flushBytes = " + flushBytes + " illegal");
+        if (! dir.isDirectory() && ! dir.mkdirs())
+            throw new IOException
+                ("VoteJournal(): cannot make directory " + dir);
+        this.dir = dir;
+        this.flushMillis = flushMillis;
+        this.flushBytes = flushBytes;
+        File[] existing = segmentFiles (dir);
+        firstSegment = existing.length == 0 ? 0 :
+            segmentNumber (existing[existing.length - 1]) + 1;
+        segment (0);
+        flusher = new Thread()
+        {
+            public void run()
+            {
+                flushLoop();
+            }
+        };
+        flusher.setName ("VoteJournal-flush");
+        flusher.setDaemon (true);
+        flusher.start();
+    }
+
+// Exported operations.
+
+    /**
+     * Append a record.
+     *
+     * @param  type        'V', 'M', 'E', 'N' or 'X'
+     * @param  pollId      poll ID
+     * @param  shard       responder shard
+     * @param  slot        slot in the shard
+     * @param  generation  generation of the slot
+     * @param  address     packed address
+     * @param  option      option voted for, or 0
+     * @param  timestamp   time the vote was sent
+     */
+    public void append
+        (byte type,
+         int pollId,
+         int shard,
+         int slot,
+         int generation,
+         long address,
+         int option,
+         long timestamp)
+    {
+        if (closed) return;
+        long at;
+        MappedByteBuffer buf;
+        do
+        {
+            at = position.get();
+            try
+            {
+                buf = segment ((int) (at / SEGMENT_LENGTH));
+            }
+            catch (IOException exc)
+            {
+                // Out of disk; the votes are still counted, only not
+                // journaled
+                dropped.increment();
+                return;
+            }
+            if (buf == null) return;
+        }
+        while (! position.compareAndSet (at, at + RECORD_LENGTH));
+        int p = (int) (at % SEGMENT_LENGTH);
+        buf.put (p + 1, (byte) option);
+        buf.putShort (p + 2, (short) shard);
+        buf.putInt (p + 4, pollId);
+        buf.putInt (p + 8, slot);
+        buf.putInt (p + 12, generation);
+        buf.putLong (p + 16, address);
+        buf.putLong (p + 24, timestamp);
+        // The record must be whole before its type byte says it is there.
+        VarHandle.storeStoreFence();
+        buf.put (p, type);
+        records.increment();
+        if (at + RECORD_LENGTH - flushed >= flushBytes)
+            LockSupport.unpark (flusher);
+    }
+
+    /**
+     * Force everything written so far to the disk. Only records written
+     * in full, up to the first one still being written, count as flushed;
+     * the rest are flushed next time.
+     */
+    public void flush()
+    {
+        synchronized (flushLock)
+        {
+            long upTo = position.get();
+            long done = flushed;
+            ArrayList<MappedByteBuffer> dirty = new ArrayList<>();
+            synchronized (this)
+            {
+                while (done < upTo)
+                {
+                    int index = (int) (done / SEGMENT_LENGTH);
+                    if (index >= segments.size()) break;
+                    MappedByteBuffer buf = segments.get (index);
+                    if (buf == null)
+                    {
+                        // deleted; everything in it is in a snapshot
+                        done = (index + 1L) * SEGMENT_LENGTH;
+                        continue;
+                    }
+                    if (buf.get ((int) (done % SEGMENT_LENGTH)) == 0)
+                    {
+                        long end = gapEnd (done);
+                        if (end < 0L) break;
+                        done = end;
+                        continue;
+                    }
+                    if (dirty.isEmpty() || dirty.get (dirty.size() - 1) != buf)
+                        dirty.add (buf);
+                    done += RECORD_LENGTH;
+                }
+                for (int i = gaps.size() - 1; i >= 0; -- i)
+                    if (gaps.get (i)[1] <= done) gaps.remove (i);
+            }
+            for (MappedByteBuffer buf : dirty)
+                buf.force();
+            flushed = done;
+            flushes.increment();
+        }
+    }
+
+    /**
+     * Start a new segment file, so everything appended from now on can be
+     * replayed without the segments before it.
+     *
+     * @return the number of the new segment file
+     * @exception  IOException
+     *     Thrown if the new segment could not be mapped.
+     */
+    public int roll() throws IOException
+    {
+        long at, next;
+        do
+        {
+            at = position.get();
+            next = (at + SEGMENT_LENGTH - 1) / SEGMENT_LENGTH * SEGMENT_LENGTH;
+        }
+        while (next != at && ! position.compareAndSet (at, next));
+        if (next != at)
+            synchronized (this)
+            {
+                gaps.add (new long[] { at, next });
+            }
+        int index = (int) (next / SEGMENT_LENGTH);
+        segment (index);
+        return firstSegment + index;
+    }
+
+    /**
+     * Delete the segment files before a given one, once a snapshot holds
+     * everything in them. No appender may still be writing to them.
+     *
+     * @param  segment  number of the first segment file to keep
+     */
+    public void deleteBefore(int segment)
+    {
+        synchronized (this)
+        {
+            for (int i = 0; i < segment - firstSegment &&
+                     i < segments.size(); ++ i)
+                segments.set (i, null);
+        }
+        for (File file : segmentFiles (dir))
+            if (segmentNumber (file) < segment) file.delete();
+    }
+
+    /**
+     * Flush and stop the journal. Records appended after this are dropped.
+     */
+    public void close()
+    {
+        closed = true;
+        flush();
+        LockSupport.unpark (flusher);
+    }
+
+    /**
+     * @return the number of records appended
+     */
+    public long getRecords()
+    {
+        return records.sum();
+    }
+
+    /**
+     * @return the number of records dropped because their segment could
+     *         not be mapped
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of bytes appended, or skipped by roll(), that are
+     *         not yet forced to the disk
+     */
+    public long getUnflushed()
+    {
+        return position.get() - flushed;
+    }
+
+    /**
+     * @return the number of group flushes
+     */
+    public long getFlushes()
+    {
+        return flushes.sum();
+    }
+
+    /**
+     * List the segment files in a directory, oldest first.
+     *
+     * @param  dir  directory
+     * @return the segment files
+     */
+    public static File[] segmentFiles(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files == null) return new File [0];
+        ArrayList<File> list = new ArrayList<>();
+        for (File file : files)
+            if (segmentNumber (file) >= 0) list.add (file);
+        File[] result = list.toArray (new File [list.size()]);
+        Arrays.sort (result, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                return Integer.compare (segmentNumber (a), segmentNumber (b));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Read the records in a directory's segment files, oldest first,
+     * starting with a given segment file.
+     *
+     * @param  dir      directory of the segment files
+     * @param  segment  number of the first segment file to read
+     * @param  reader   told of each record
+     * @return the number of records read
+     * @exception  IOException
+     *     Thrown if a segment file could not be read.
+     */
+    public static long read(File dir, int segment, Reader reader)
+        throws IOException
+    {
+        long count = 0L;
+        for (File file : segmentFiles (dir))
+        {
+            if (segmentNumber (file) < segment) continue;
+            MappedByteBuffer buf;
+            try (RandomAccessFile raf = new RandomAccessFile (file, "r"))
+            {
+                FileChannel channel = raf.getChannel();
+                buf = channel.map
+                    (FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int limit = buf.capacity() - RECORD_LENGTH;
+            for (int p = 0; p <= limit; p += RECORD_LENGTH)
+            {
+                byte type = buf.get (p);
+                if (type == 0) break;
+                reader.record (type, buf.getInt (p + 4), buf.getShort (p + 2),
+                               buf.getInt (p + 8), buf.getInt (p + 12),
+                               buf.getLong (p + 16), buf.get (p + 1) & 0xFF,
+                               buf.getLong (p + 24));
+                ++ count;
+            }
+        }
+        return count;
+    }
+
+// Hidden operations.
+
+    /**
+     * @return the number of a segment file, or -1 if it is not one
+     */
+    private static int segmentNumber(File file)
+    {
+        String name = file.getName();
+        if (! name.startsWith ("votes-") || ! name.endsWith (".journal"))
+            return -1;
+        try
+        {
+            return Integer.parseInt
+                (name.substring (6, name.length() - 8));
+        }
+        catch (NumberFormatException exc)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a segment, mapping it if it is new.
+     *
+     * @param  index  segment index, counting from this journal's first
+     * @return the mapped segment
+     */
+    private MappedByteBuffer segment(int index) throws IOException
+    {
+        Mapped c = current;
+        if (c != null && c.index == index) return c.buf;
+        synchronized (this)
+        {
+            while (segments.size() <= index)
+            {
+                File file = new File (dir, String.format
+                    ("votes-%06d.journal", firstSegment + segments.size()));
+                try (RandomAccessFile raf = new RandomAccessFile (file, "rw"))
+                {
+                    segments.add (raf.getChannel().map
+                        (FileChannel.MapMode.READ_WRITE, 0, SEGMENT_LENGTH));
+                }
+            }
+            MappedByteBuffer buf = segments.get (index);
+            c = current;
+            if (c == null || index > c.index)
+                current = new Mapped (index, buf);
+            return buf;
+        }
+    }
+
+    /**
+     * Returns the end of the stretch skipped by roll() that starts at a
+     * position. Must be called while holding this journal's monitor.
+     *
+     * @return the end, or -1 if no stretch starts there
+     */
+    private long gapEnd(long start)
+    {
+        for (long[] gap : gaps)
+            if (gap[0] == start) return gap[1];
+        return -1L;
+    }
+
+    /**
+     * Flush every time the interval passes, or sooner when an appender has
+     * written enough.
+     */
+    private void flushLoop()
+    {
+        long interval = flushMillis * 1000000L;
+        while (! closed)
+        {
+            LockSupport.parkNanos (interval);
+            if (position.get() != flushed) flush();
+        }
+    }
+
+// Hidden helper classes.
+
+    /**
+     * Class Mapped is the segment being appended to, with its index, so
+     * appenders read both through one volatile field.
+     */
+    private static class Mapped
+    {
+        private int index;
+        private MappedByteBuffer buf;
+
+        public Mapped(int index, MappedByteBuffer buf)
+        {
+            this.index = index;
+            this.buf = buf;
+        }
+    }
+
+// Exported helper interfaces.
+
+    /**
+     * Interface Reader is implemented by the object that is told of the
+     * records read from a journal.
+     */
+    public interface Reader
+    {
+        /**
+         * Handle one record. The arguments are as given to {@link
+         * VoteJournal#append(byte,int,int,int,int,long,int,long) append()}.
+         */
+        void record
+            (byte type,
+             int pollId,
+             int shard,
+             int slot,
+             int generation,
+             long address,
+             int option,
+             long timestamp);
+    }
+
+}
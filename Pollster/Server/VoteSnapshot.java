@@ -0,0 +1,360 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class VoteSnapshot periodically writes the clients and votes of every
+ * poll to a compact binary snapshot, next to the {@link VoteJournal} it
+ * goes with, and rebuilds the polls from the latest snapshot and the
+ * journal records after it when the server restarts. A restarted server
+ * thus has its tallies back before its clients have to vote again, and
+ * the clients' session IDs stay good.
+ * <P>
+ * Taking a snapshot first starts a new journal segment, then writes each
+ * poll's shards a chunk at a time while votes keep coming in. Everything
+ * a snapshot might have missed is in the new segment and after, so once the
+ * snapshot is safely on disk the older segments and snapshots are deleted.
+ * Replaying a record the snapshot already holds changes nothing.
+ * <P>
+ * A snapshot file, <TT>snapshot-</TT><I>n</I><TT>.snap</TT> where <I>n</I>
+ * is the first journal segment to replay, holds:
+ * <PRE>
+ *     int      magic
+ *     int      first journal segment to replay
+ *     for each poll:
+ *         boolean  true
+ *         int      poll ID
+ *         int      number of shards
+ *         boolean  whether there is a question, then if so
+ *         UTF      question
+ *         int      number of options, then that many
+ *         UTF      option
+ *         for each shard: chunks (see PollsterModel.writeSnapshot())
+ *     boolean  false
+ *     int      magic
+ * </PRE>
+ * A poll made after the latest snapshot comes back without its question,
+ * which the journal does not hold; the question is sent again from the
+ * window.
+ *
+ * @author  Paul Zenie
+ */
+public class VoteSnapshot
+{
+
+// Exported constants.
+
+    /**
+     * Default milliseconds between snapshots.
+     */
+    public static final int DEFAULT_PERIOD_MILLIS = 60000;
+
+// Hidden constants.
+
+    private static final int MAGIC = 0x50534E31;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+// Hidden data members.
+
+    private File dir;
+    private PollRegistry registry;
+    private VoteJournal journal;
+    private ScheduledFuture<?> task;
+    private volatile int written;
+
+// Exported constructors.
+
+    /**
+     * Construct a new snapshot writer.
+     *
+     * @param  dir       directory of the journal and snapshots
+     * @param  registry  polls to write
+     * @param  journal   journal the polls record their votes in
+     */
+    public VoteSnapshot(File dir, PollRegistry registry, VoteJournal journal)
+    {
+        this.dir = dir;
+        this.registry = registry;
+        this.journal = journal;
+    }
+
+// Exported operations.
+
+    /**
+     * Write a snapshot now and then every period, on the polls' shared
+     * executor.
+     *
+     * @param  periodMillis  milliseconds between snapshots
+     */
+    public void start(int periodMillis)
+    {
+        if (periodMillis < 1)
+            throw new IllegalArgumentException
+                ("VoteSnapshot.start(): periodMillis = " + periodMillis +
+                 " illegal");
+        task = registry.getExecutor().scheduleWithFixedDelay (new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    write();
+                }
+                catch (IOException exc)
+                {
+                    // The journal keeps everything; try again next time
+                }
+            }
+        }, 0L, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop writing snapshots.
+     */
+    public void stop()
+    {
+        if (task != null) task.cancel (false);
+    }
+
+    /**
+     * Write a snapshot, then delete the journal segments and snapshots it
+     * makes unnecessary.
+     *
+     * @exception  IOException
+     *     Thrown if the snapshot could not be written.
+     */
+    public synchronized void write() throws IOException
+    {
+        int segment = journal.roll();
+        File tmp = new File (dir, "snapshot.tmp");
+        try (FileOutputStream file = new FileOutputStream (tmp))
+        {
+            DataOutputStream out = new DataOutputStream
+                (new BufferedOutputStream (file, BUFFER_SIZE));
+            out.writeInt (MAGIC);
+            out.writeInt (segment);
+            for (Integer pollId : registry.pollIds())
+            {
+                PollsterModel model = registry.get (pollId);
+                if (model == null) continue;
+                out.writeBoolean (true);
+                out.writeInt (pollId);
+                out.writeInt (model.getShardCount());
+                BroadcastScheduler.Announcement poll = model.getPoll();
+                out.writeBoolean (poll != null);
+                if (poll != null)
+                {
+                    out.writeUTF (poll.getQuestion());
+                    out.writeInt (poll.getOptions().length);
+                    for (String option : poll.getOptions())
+                        out.writeUTF (option);
+                }
+                model.writeSnapshot (out);
+            }
+            out.writeBoolean (false);
+            out.writeInt (MAGIC);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move (tmp.toPath(), snapshotFile (dir, segment).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        for (File old : snapshotFiles (dir))
+            if (snapshotNumber (old) < segment) old.delete();
+        journal.deleteBefore (segment);
+        ++ written;
+    }
+
+    /**
+     * @return the number of snapshots written
+     */
+    public int getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * Rebuild the polls from the latest snapshot in a directory and the
+     * journal records after it. Must be called before the polls get any
+     * messages and before a new journal is opened in the directory.
+     *
+     * @param  dir       directory of the journal and snapshots
+     * @param  registry  registry to make the polls in
+     * @return the number of journal records replayed
+     * @exception  IOException
+     *     Thrown if the snapshot or journal could not be read or is not
+     *     valid.
+     */
+    public static long recover(File dir, final PollRegistry registry)
+        throws IOException
+    {
+        File[] snapshots = snapshotFiles (dir);
+        int segment = 0;
+        ArrayList<BroadcastScheduler.Announcement> questions =
+            new ArrayList<>();
+        if (snapshots.length > 0)
+            segment = read (snapshots[snapshots.length - 1], registry,
+                            questions);
+        long records = VoteJournal.read (dir, segment, new VoteJournal.Reader()
+        {
+            private int lastId;
+            private PollsterModel last;
+
+            public void record
+                (byte type,
+                 int pollId,
+                 int shard,
+                 int slot,
+                 int generation,
+                 long address,
+                 int option,
+                 long timestamp)
+            {
+                if (type == 'N')
+                {
+                    if (registry.get (pollId) == null)
+                        registry.create (pollId, shard);
+                    last = null;
+                    return;
+                }
+                if (type == 'X')
+                {
+                    registry.remove (pollId);
+                    last = null;
+                    return;
+                }
+                if (last == null || lastId != pollId)
+                {
+                    last = registry.get (pollId);
+                    lastId = pollId;
+                }
+                if (last != null)
+                    last.replay (shard, type, slot, generation, address,
+                                 option, timestamp);
+            }
+        });
+        for (Integer pollId : registry.pollIds())
+        {
+            PollsterModel model = registry.get (pollId);
+            if (model != null) model.endRestore();
+        }
+        // Broadcasting the questions locks the shards, so it waits until
+        // they are rebuilt.
+        for (BroadcastScheduler.Announcement poll : questions)
+        {
+            PollsterModel model = registry.get (poll.getPollId());
+            if (model != null)
+                model.setPoll (poll.getQuestion(), poll.getOptions(),
+                               System.currentTimeMillis());
+        }
+        return records;
+    }
+
+// Hidden operations.
+
+    /**
+     * Read a snapshot into a registry.
+     *
+     * @param  questions  gets the question of each poll with one
+     * @return the first journal segment to replay after it
+     */
+    private static int read
+        (File snapshot,
+         PollRegistry registry,
+         ArrayList<BroadcastScheduler.Announcement> questions)
+        throws IOException
+    {
+        try (DataInputStream in = new DataInputStream
+                (new BufferedInputStream
+                    (new FileInputStream (snapshot), BUFFER_SIZE)))
+        {
+            if (in.readInt() != MAGIC)
+                throw new IOException ("VoteSnapshot: bad snapshot");
+            int segment = in.readInt();
+            while (in.readBoolean())
+            {
+                int pollId = in.readInt();
+                int shardCount = in.readInt();
+                PollsterModel model = registry.create (pollId, shardCount);
+                if (model.getShardCount() != shardCount)
+                    throw new IOException ("VoteSnapshot: bad shard count");
+                if (in.readBoolean())
+                {
+                    String question = in.readUTF();
+                    String[] options = new String [in.readInt()];
+                    for (int i = 0; i < options.length; ++ i)
+                        options[i] = in.readUTF();
+                    questions.add (new BroadcastScheduler.Announcement
+                        (pollId, 0, question, options));
+                }
+                model.readSnapshot (in);
+            }
+            if (in.readInt() != MAGIC)
+                throw new IOException ("VoteSnapshot: bad snapshot");
+            return segment;
+        }
+    }
+
+    /**
+     * @return the snapshot file starting at a journal segment
+     */
+    private static File snapshotFile(File dir, int segment)
+    {
+        return new File (dir, String.format ("snapshot-%06d.snap", segment));
+    }
+
+    /**
+     * @return the snapshot files in a directory, oldest first
+     */
+    private static File[] snapshotFiles(File dir)
+    {
+        ArrayList<File> list = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (snapshotNumber (file) >= 0) list.add (file);
+        File[] result = list.toArray (new File [list.size()]);
+        Arrays.sort (result, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                return Integer.compare
+                    (snapshotNumber (a), snapshotNumber (b));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the journal segment a snapshot file starts at, or -1 if it
+     *         is not one
+     */
+    private static int snapshotNumber(File file)
+    {
+        String name = file.getName();
+        if (! name.startsWith ("snapshot-") || ! name.endsWith (".snap"))
+            return -1;
+        try
+        {
+            return Integer.parseInt (name.substring (9, name.length() - 5));
+        }
+        catch (NumberFormatException exc)
+        {
+            return -1;
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Measures how many messages an idle client sends the server.
+ * <P>
+ * Usage: java IdleClientBench [-clients n] [-seconds n] [-keepalive ms]
+ *     [-resend]
+ * <P>
+ * Each client is a {@link ClientModel} with its own {@link ModelProxy} and
+ * mailbox, as in {@link Responder}, and a view that votes once and then
+ * sits still. With <TT>-resend</TT> the view instead sends its vote every
+ * second, as the responder's view did before votes were acknowledged. The
+ * server is a stand-in that counts what it receives, by message type, and
+ * acknowledges each client's latest vote with the given keepalive
+ * interval (default 10000 ms).
+ *
+ * @author  Paul Zenie
+ */
+public class IdleClientBench
+{
+
+    /**
+     * Run the measurement.
+     * @param args command line arguments
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int clients = 50;
+        int seconds = 60;
+        int keepAlive = 10000;
+        boolean resend = false;
+        for (int i = 0; i < args.length; ++ i)
+        {
+            if (args[i].equals("-clients") && i + 1 < args.length)
+                clients = Integer.parseInt(args[++ i]);
+            else if (args[i].equals("-seconds") && i + 1 < args.length)
+                seconds = Integer.parseInt(args[++ i]);
+            else if (args[i].equals("-keepalive") && i + 1 < args.length)
+                keepAlive = Integer.parseInt(args[++ i]);
+            else if (args[i].equals("-resend"))
+                resend = true;
+            else
+            {
+                System.err.println("Usage: java IdleClientBench " +
+                        "[-clients <n>] [-seconds <n>] [-keepalive <ms>] " +
+                        "[-resend]");
+                System.exit(1);
+            }
+        }
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        DatagramSocket server =
+                new DatagramSocket(new InetSocketAddress(loopback, 0));
+        InetSocketAddress serverAddress = new InetSocketAddress
+                (loopback, server.getLocalPort());
+        HashMap<Integer, Integer> byPort = new HashMap<>();
+        long[] voted = new long[clients];
+        ClientModel[] models = new ClientModel[clients];
+        for (int i = 0; i < clients; ++ i)
+        {
+            DatagramSocket mailbox =
+                    new DatagramSocket(new InetSocketAddress(loopback, 0));
+            byPort.put(mailbox.getLocalPort(), i);
+            models[i] = new ClientModel();
+            ModelProxy proxy = new ModelProxy(mailbox, serverAddress);
+            models[i].setListener(proxy);
+            models[i].setModelListener(new IdleView());
+            proxy.setListener(models[i]);
+        }
+        Counter counter = new Counter(server, byPort, voted, keepAlive);
+        counter.setDaemon(true);
+        counter.start();
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        boolean first = true;
+        while (System.currentTimeMillis() < end)
+        {
+            if (first || resend)
+            {
+                for (int i = 0; i < clients; ++ i)
+                {
+                    long now = System.currentTimeMillis();
+                    synchronized (voted)
+                    {
+                        voted[i] = now;
+                    }
+                    models[i].vote(1, null, now);
+                }
+                first = false;
+            }
+            Thread.sleep(1000);
+        }
+        long[] counts = counter.counts();
+        long total = 0;
+        for (long count : counts) total += count;
+        System.out.printf("%d clients, %d s, keepalive %d ms%s: " +
+                "V %d, K %d, other %d; %.2f messages per client per minute%n",
+                clients, seconds, keepAlive, resend ? ", resending" : "",
+                counts['V'], counts['K'],
+                total - counts['V'] - counts['K'],
+                total * 60.0 / seconds / clients);
+        // The models' own threads would keep the program running
+        System.exit(0);
+    }
+
+    /**
+     * Class IdleView is a view that shows nothing.
+     */
+    private static class IdleView implements ModelListener
+    {
+        public void setPoll
+        (String question, String[] options, long timestamp)
+        {
+        }
+
+        public void acknowledge(long timestamp, int keepAliveMillis)
+        {
+        }
+    }
+
+    /**
+     * Class Counter is the stand-in server. It counts the messages it
+     * receives and acknowledges every vote.
+     */
+    private static class Counter extends Thread
+    {
+        private DatagramSocket socket;
+        private HashMap<Integer, Integer> byPort;
+        private long[] voted;
+        private int keepAlive;
+        private long[] counts = new long[256];
+
+        public Counter
+        (DatagramSocket socket,
+         HashMap<Integer, Integer> byPort,
+         long[] voted,
+         int keepAlive)
+        {
+            this.socket = socket;
+            this.byPort = byPort;
+            this.voted = voted;
+            this.keepAlive = keepAlive;
+        }
+
+        public synchronized long[] counts()
+        {
+            return counts.clone();
+        }
+
+        public void run()
+        {
+            byte[] in = new byte[1024];
+            ByteBuffer out = ByteBuffer.allocate(13);
+            DatagramPacket packet = new DatagramPacket(in, in.length);
+            try
+            {
+                for (;;)
+                {
+                    socket.receive(packet);
+                    int type = in[0] & 0xFF;
+                    synchronized (this)
+                    {
+                        ++ counts[type];
+                    }
+                    if (type != 'V') continue;
+                    long timestamp;
+                    synchronized (voted)
+                    {
+                        timestamp = voted[byPort.get(packet.getPort())];
+                    }
+                    out.clear();
+                    out.put((byte) 'A');
+                    out.putLong(timestamp);
+                    out.putInt(keepAlive);
+                    socket.send(new DatagramPacket(out.array(), 13,
+                            packet.getSocketAddress()));
+                }
+            }
+            catch (IOException exc)
+            {
+                // socket closed
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Class AllChecks runs every check of the server. A check throws an
+ * AssertionError when it fails, naming its seed if it is randomized, so a
+ * failure can be rerun on its own with the check's main program.
+ * <P>
+ * Usage: java AllChecks [seed]
+ * <P>
+ * The checks are compiled against the compiled server classes:
+ * <PRE>
+ *     javac -d server Pollster/Server/*.java
+ *     javac -cp server -d checks Pollster/Test/Server/*.java
+ *     java -cp server:checks AllChecks
+ * </PRE>
+ *
+ * @author  Paul Zenie
+ */
+public class AllChecks
+{
+
+    /**
+     * Run the checks, exiting with status 1 if any fails.
+     *
+     * @param  args  command line arguments
+     *
+     * @exception  Exception
+     *     Thrown if a check could not be run.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        long seed = args.length > 0 ? Long.parseLong (args[0])
+            : System.nanoTime();
+        try
+        {
+            TallyCheck.run (seed, 1000000);
+            JournalCheck.run();
+        }
+        catch (AssertionError exc)
+        {
+            System.err.println (exc.getMessage());
+            System.exit (1);
+        }
+        System.out.println ("All checks passed, seed " + seed);
+        // The models' timer threads would keep the program running
+        System.exit (0);
+    }
+
+}
@@ -0,0 +1,141 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+/**
+ * Measures what it costs a poll to apply a message from a known client,
+ * one at a time and in batches of several sizes.
+ * <P>
+ * Usage: java BatchBench [-clients n] [-shards n] [-messages n]
+ *     [-runs n] [sizes]...
+ * <P>
+ * A poll with the given number of shards (default 16) first takes a vote
+ * from each of the clients (default 100000). Then, on one thread, it is
+ * given keepalives from those clients in random order: the given number of
+ * messages (default 2000000) one by one through {@link
+ * PollsterModel#keepAlive(ModelListener,long) keepAlive()}, then as many
+ * through {@link PollsterModel#applyBatch(VoteBatch,int,ViewProxy)
+ * applyBatch()} in batches of each size (default 1 4 16 64 256 1024).
+ * Filling the batch is part of the cost. Each is run several times
+ * (default 8) and the best run is reported, with the time a whole batch
+ * takes, which is the most a message waits for the rest of its batch.
+ *
+ * @author  Paul Zenie
+ */
+public class BatchBench
+{
+
+// Exported operations.
+
+    /**
+     * Run the measurement.
+     *
+     * @param  args  command line arguments
+     *
+     * @exception  Exception
+     *     Thrown if the measurement could not be run.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int clients = 100000;
+        int shards = 16;
+        int messages = 2000000;
+        int runs = 8;
+        int[] sizes = new int [args.length];
+        int n = 0;
+        for (int i = 0; i < args.length; ++ i)
+        {
+            if (args[i].equals ("-clients") && i + 1 < args.length)
+                clients = Integer.parseInt (args[++ i]);
+            else if (args[i].equals ("-shards") && i + 1 < args.length)
+                shards = Integer.parseInt (args[++ i]);
+            else if (args[i].equals ("-messages") && i + 1 < args.length)
+                messages = Integer.parseInt (args[++ i]);
+            else if (args[i].equals ("-runs") && i + 1 < args.length)
+                runs = Integer.parseInt (args[++ i]);
+            else
+                sizes[n ++] = Integer.parseInt (args[i]);
+        }
+        if (n == 0)
+        {
+            sizes = new int[] { 1, 4, 16, 64, 256, 1024 };
+            n = sizes.length;
+        }
+
+        // Acknowledgements of the first votes go to loopback addresses
+        // nobody listens on.
+        DatagramChannel mailbox = DatagramChannel.open().bind
+            (new InetSocketAddress (InetAddress.getLoopbackAddress(), 0));
+        PollRegistry registry = new PollRegistry (1, 10, 10);
+        registry.setMailbox (mailbox.socket());
+        PollsterModel model = registry.create (0, shards);
+        model.setPoll ("Which?", new String[] { "a", "b" },
+                       System.currentTimeMillis());
+        InetSocketAddress[] addresses = new InetSocketAddress [clients];
+        for (int i = 0; i < clients; ++ i)
+            addresses[i] = new InetSocketAddress
+                (InetAddress.getByAddress (new byte[]
+                    { 127, 1, (byte) (i >>> 8), (byte) i }),
+                 1024 + (i >>> 16));
+        ViewProxy client = new ViewProxy (mailbox.socket(), null);
+        VoteBatch batch = new VoteBatch (256);
+        for (int i = 0; i < clients; ++ i)
+        {
+            batch.add ((byte) 'V', 0, 1 + (i & 1), 1L, 0, addresses[i]);
+            if (batch.size() == batch.capacity() || i == clients - 1)
+            {
+                model.applyBatch (batch, 0, client);
+                batch.clear();
+            }
+        }
+        int[] order = new int [messages];
+        Random random = new Random (1);
+        for (int i = 0; i < messages; ++ i)
+            order[i] = random.nextInt (clients);
+
+        System.out.println (clients + " clients in " + shards + " shards, " +
+                            messages + " keepalives, best of " + runs);
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < runs; ++ run)
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; ++ i)
+            {
+                client.setClientAddress (addresses[order[i]]);
+                client.setSession (0);
+                model.keepAlive (client, 2L);
+            }
+            best = Math.min (best,
+                             (double) (System.nanoTime() - start) / messages);
+        }
+        System.out.printf ("unbatched   %6.1f ns/msg%n", best);
+        for (int s = 0; s < n; ++ s)
+        {
+            batch = new VoteBatch (sizes[s]);
+            best = Double.MAX_VALUE;
+            for (int run = 0; run < runs; ++ run)
+            {
+                long start = System.nanoTime();
+                for (int i = 0; i < messages; ++ i)
+                {
+                    batch.add ((byte) 'K', 0, 0, 2L, 0,
+                               addresses[order[i]]);
+                    if (batch.size() == batch.capacity() ||
+                            i == messages - 1)
+                    {
+                        model.applyBatch (batch, 0, client);
+                        batch.clear();
+                    }
+                }
+                best = Math.min
+                    (best, (double) (System.nanoTime() - start) / messages);
+            }
+            System.out.printf ("batch %5d %6.1f ns/msg, whole batch " +
+                               "%7.1f us%n",
+                               sizes[s], best, best * sizes[s] / 1000.0);
+        }
+        System.exit (0);
+    }
+
+}
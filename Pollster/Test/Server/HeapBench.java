@@ -0,0 +1,89 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Measures the heap a pollster's clients take, by filling the shards of
+ * one poll with simulated IPv4 clients that have each voted.
+ * <P>
+ * Usage: java HeapBench [-clients n] [-shards n]
+ * <P>
+ * The clients (default 1000000) are spread over the shards (default 16)
+ * the way a poll spreads them, each a {@link ResponderStore}. Each client
+ * is added from an address made the way a receiver thread gets one, and
+ * votes once. The heap in use after a full collection, before and after,
+ * is divided by the number of clients.
+ *
+ * @author  Paul Zenie
+ */
+public class HeapBench
+{
+
+// Exported operations.
+
+    /**
+     * Run the measurement.
+     *
+     * @param  args  command line arguments
+     *
+     * @exception  Exception
+     *     Thrown if the measurement could not be run.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int clients = 1000000;
+        int shards = 16;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if (args[i].equals ("-clients"))
+                clients = Integer.parseInt (args[i + 1]);
+            else if (args[i].equals ("-shards"))
+                shards = Integer.parseInt (args[i + 1]);
+        }
+        long before = usedHeap();
+        ResponderStore[] stores = new ResponderStore [shards];
+        for (int s = 0; s < shards; ++ s)
+            stores[s] = new ResponderStore (clients / shards + 1, 2);
+        byte[] ip = new byte [4];
+        for (int i = 0; i < clients; ++ i)
+        {
+            ip[0] = 10;
+            ip[1] = (byte) (i >>> 16);
+            ip[2] = (byte) (i >>> 8);
+            ip[3] = (byte) i;
+            InetSocketAddress address = new InetSocketAddress
+                (InetAddress.getByAddress (ip), 1024 + (i & 0x3FFF));
+            long key = ResponderStore.pack (address);
+            ResponderStore store = stores[i % shards];
+            int slot = store.add (key, address, 0);
+            store.vote (slot, 1 + (i & 1), 1L, 0);
+        }
+        long after = usedHeap();
+        int total = 0;
+        for (ResponderStore store : stores) total += store.size();
+        System.out.printf ("%d clients in %d shards: %.1f MB, " +
+                           "%.1f bytes per client%n",
+                           total, shards, (after - before) / 1e6,
+                           (double) (after - before) / total);
+    }
+
+// Hidden operations.
+
+    /**
+     * Returns the heap in use after a full collection.
+     */
+    private static long usedHeap() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // settle, since one System.gc() may not collect everything
+        for (int i = 0; i < 5; ++ i)
+        {
+            System.gc();
+            Thread.sleep (100L);
+            used = Math.min (used,
+                             runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+}
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many votes a pollster takes in per second with the single
+ * {@link ServerReaderThread} and with an {@link IngestEngine} of a number
+ * of receiver threads.
+ * <P>
+ * Usage: java IngestBench [-seconds n] [-clients n] [-senders n]
+ *     [readers]...
+ * <P>
+ * Each <TT>readers</TT> argument is one run: 0 for the single reader
+ * thread, n for an engine of n receiver threads (default 0 1 2 4). Each
+ * run starts a pollster with one poll on a loopback port of its own. The
+ * clients (default 2000), spread over the sender threads (default 2),
+ * each keep one vote outstanding: a client votes again as soon as its
+ * last vote is acknowledged, or after 200 ms if it is not. A vote counts
+ * once its acknowledgement arrives, so the rate is votes decoded, applied
+ * to the poll and answered. The first 2 seconds of each run are not
+ * counted.
+ * <P>
+ * Senders and receivers share the CPUs, so more receiver threads than the
+ * machine has spare cores only shows their overhead.
+ *
+ * @author  Paul Zenie
+ */
+public class IngestBench
+{
+
+// Hidden constants.
+
+    private static final int WARMUP_SECONDS = 2;
+    private static final long RESEND_NANOS = 200000000L;
+
+// Exported operations.
+
+    /**
+     * Run the measurement.
+     *
+     * @param  args  command line arguments
+     *
+     * @exception  Exception
+     *     Thrown if the measurement could not be run.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int seconds = 10;
+        int clients = 2000;
+        int senders = 2;
+        int[] runs = new int [args.length];
+        int n = 0;
+        for (int i = 0; i < args.length; ++ i)
+        {
+            if (args[i].equals ("-seconds") && i + 1 < args.length)
+                seconds = Integer.parseInt (args[++ i]);
+            else if (args[i].equals ("-clients") && i + 1 < args.length)
+                clients = Integer.parseInt (args[++ i]);
+            else if (args[i].equals ("-senders") && i + 1 < args.length)
+                senders = Integer.parseInt (args[++ i]);
+            else
+                runs[n ++] = Integer.parseInt (args[i]);
+        }
+        if (n == 0)
+        {
+            runs = new int[] { 0, 1, 2, 4 };
+            n = runs.length;
+        }
+        System.out.println (Runtime.getRuntime().availableProcessors() +
+                            " CPUs, " + clients + " clients, " + senders +
+                            " sender threads, " + seconds + " s per run");
+        for (int i = 0; i < n; ++ i)
+            run (runs[i], seconds, clients, senders);
+        System.exit (0);
+    }
+
+// Hidden operations.
+
+    /**
+     * Start a pollster, load it and report the rate.
+     */
+    private static void run(int readers, int seconds, int clients,
+                            int senders)
+        throws Exception
+    {
+        InetSocketAddress address =
+            new InetSocketAddress (InetAddress.getLoopbackAddress(), 0);
+        PollRegistry registry = new PollRegistry (1, 10, 10);
+        registry.setAdmissionLimit (1000000);
+        IngestEngine engine = null;
+        ServerReaderThread reader = null;
+        DatagramChannel channel = null;
+        if (readers == 0)
+        {
+            channel = DatagramChannel.open().bind (address);
+            address = (InetSocketAddress) channel.getLocalAddress();
+            registry.setMailbox (channel.socket());
+            reader = new ServerReaderThread (channel.socket(), registry);
+            reader.setSourceLimit (1000000, 1000000);
+        }
+        else
+        {
+            // an engine needs to know its port before it binds
+            DatagramChannel probe = DatagramChannel.open().bind (address);
+            address = (InetSocketAddress) probe.getLocalAddress();
+            probe.close();
+            engine = new IngestEngine (address, readers, registry);
+            engine.setSourceLimit (1000000, 1000000);
+            registry.setMailbox (engine.getMailbox());
+        }
+        PollsterModel model = registry.create (0, 4);
+        model.setPoll ("Which?", new String[] { "a", "b" },
+                       System.currentTimeMillis());
+        if (engine != null) engine.start();
+        else reader.start();
+
+        AtomicBoolean running = new AtomicBoolean (true);
+        LongAdder acked = new LongAdder();
+        LongAdder sent = new LongAdder();
+        Sender[] threads = new Sender [senders];
+        for (int i = 0; i < senders; ++ i)
+        {
+            threads[i] = new Sender (address, clients / senders, running,
+                                     sent, acked);
+            threads[i].start();
+        }
+        Thread.sleep (WARMUP_SECONDS * 1000L);
+        long sent0 = sent.sum();
+        long acked0 = acked.sum();
+        long start = System.nanoTime();
+        Thread.sleep (seconds * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long s = sent.sum() - sent0;
+        long a = acked.sum() - acked0;
+        running.set (false);
+        for (Sender thread : threads) thread.join();
+        System.out.printf ("%-16s %9.0f votes/s acknowledged, %9.0f sent/s" +
+                           "%n",
+                           readers == 0 ? "single reader" :
+                           readers + " readers", a / elapsed, s / elapsed);
+        if (engine != null) engine.close();
+        else channel.close();
+        registry.getExecutor().shutdownNow();
+    }
+
+// Hidden helper classes.
+
+    /**
+     * Class Sender is a thread that plays a number of clients.
+     */
+    private static class Sender extends Thread
+    {
+        private InetSocketAddress server;
+        private DatagramChannel[] channels;
+        private long[] outstanding;
+        private AtomicBoolean running;
+        private LongAdder sent;
+        private LongAdder acked;
+
+        public Sender
+            (InetSocketAddress server,
+             int clients,
+             AtomicBoolean running,
+             LongAdder sent,
+             LongAdder acked)
+            throws IOException
+        {
+            this.server = server;
+            this.running = running;
+            this.sent = sent;
+            this.acked = acked;
+            channels = new DatagramChannel [clients];
+            outstanding = new long [clients];
+            for (int i = 0; i < clients; ++ i)
+            {
+                channels[i] = DatagramChannel.open().bind
+                    (new InetSocketAddress
+                        (InetAddress.getLoopbackAddress(), 0));
+                channels[i].configureBlocking (false);
+            }
+            setDaemon (true);
+        }
+
+        public void run()
+        {
+            ByteBuffer out = ByteBuffer.allocate (VoteDecoder.VOTE_LENGTH + 4);
+            ByteBuffer in = ByteBuffer.allocate (64);
+            long timestamp = System.currentTimeMillis();
+            try
+            {
+                while (running.get())
+                {
+                    long now = System.nanoTime();
+                    for (int i = 0; i < channels.length; ++ i)
+                    {
+                        in.clear();
+                        while (channels[i].receive (in) != null)
+                        {
+                            if (in.get (0) == 'A')
+                            {
+                                acked.increment();
+                                outstanding[i] = 0L;
+                            }
+                            in.clear();
+                        }
+                        if (outstanding[i] != 0L &&
+                                now - outstanding[i] < RESEND_NANOS)
+                            continue;
+                        ++ timestamp;
+                        out.clear();
+                        out.put ((byte) 'V');
+                        out.putInt (0);
+                        out.put ((byte) (1 + (int) (timestamp & 1)));
+                        out.putLong (timestamp);
+                        out.putInt (0);
+                        out.flip();
+                        channels[i].send (out, server);
+                        sent.increment();
+                        outstanding[i] = now;
+                    }
+                }
+                for (DatagramChannel channel : channels) channel.close();
+            }
+            catch (IOException exc)
+            {
+                exc.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Measures what the {@link VoteJournal} adds to the cost of a vote.
+ * <P>
+ * Usage: java JournalBench [-clients n] [-votes n] [-runs n] [-dir d]
+ * <P>
+ * A poll of 16 shards first takes a vote from each of the clients
+ * (default 100000). Then, on one thread, it is given votes from those
+ * clients in random order, in batches of 256 through {@link
+ * PollsterModel#applyBatch(VoteBatch,int,ViewProxy) applyBatch()}, each
+ * acknowledged over UDP to a loopback address nobody listens on: the
+ * given number of votes (default 1000000) with the journal off, then as
+ * many with it on, several times each (default 4), and the best run of
+ * each is reported. Last, the same number of records are appended to the
+ * journal straight, to show the cost of a record alone. The journal is
+ * written in a new directory in the given one (default the temporary
+ * directory), which is deleted afterwards.
+ *
+ * @author  Paul Zenie
+ */
+public class JournalBench
+{
+
+// Hidden constants.
+
+    private static final int SHARDS = 16;
+    private static final int BATCH = 256;
+
+// Exported operations.
+
+    /**
+     * Run the measurement.
+     *
+     * @param  args  command line arguments
+     *
+     * @exception  Exception
+     *     Thrown if the measurement could not be run.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int clients = 100000;
+        int votes = 1000000;
+        int runs = 4;
+        File parent = new File (System.getProperty ("java.io.tmpdir"));
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if (args[i].equals ("-clients"))
+                clients = Integer.parseInt (args[i + 1]);
+            else if (args[i].equals ("-votes"))
+                votes = Integer.parseInt (args[i + 1]);
+            else if (args[i].equals ("-runs"))
+                runs = Integer.parseInt (args[i + 1]);
+            else if (args[i].equals ("-dir"))
+                parent = new File (args[i + 1]);
+        }
+        File dir = Files.createTempDirectory
+            (parent.toPath(), "JournalBench").toFile();
+
+        DatagramChannel mailbox = DatagramChannel.open().bind
+            (new InetSocketAddress (InetAddress.getLoopbackAddress(), 0));
+        PollRegistry registry = new PollRegistry (1, 10, 10);
+        registry.setMailbox (mailbox.socket());
+        PollsterModel model = registry.create (0, SHARDS);
+        model.setPoll ("Which?", new String[] { "a", "b" },
+                       System.currentTimeMillis());
+        InetSocketAddress[] addresses = new InetSocketAddress [clients];
+        for (int i = 0; i < clients; ++ i)
+            addresses[i] = new InetSocketAddress
+                (InetAddress.getByAddress (new byte[]
+                    { 127, 1, (byte) (i >>> 8), (byte) i }),
+                 1024 + (i >>> 16));
+        int[] order = new int [votes];
+        Random random = new Random (1);
+        for (int i = 0; i < votes; ++ i)
+            order[i] = random.nextInt (clients);
+        ViewProxy client = new ViewProxy (mailbox.socket(), null);
+        VoteBatch batch = new VoteBatch (BATCH);
+        long timestamp = 1L;
+        for (int i = 0; i < clients; ++ i)
+            timestamp = vote (model, batch, client, addresses[i], timestamp,
+                              i == clients - 1);
+
+        System.out.println (clients + " clients in " + SHARDS + " shards, " +
+                            votes + " votes in batches of " + BATCH +
+                            ", best of " + runs);
+        VoteJournal journal = null;
+        for (int on = 0; on < 2; ++ on)
+        {
+            if (on == 1)
+            {
+                journal = new VoteJournal
+                    (dir, VoteJournal.DEFAULT_FLUSH_MILLIS,
+                     VoteJournal.DEFAULT_FLUSH_BYTES);
+                model.setJournal (journal, 0);
+            }
+            double best = Double.MAX_VALUE;
+            for (int run = 0; run < runs; ++ run)
+            {
+                long start = System.nanoTime();
+                for (int i = 0; i < votes; ++ i)
+                    timestamp = vote (model, batch, client,
+                                      addresses[order[i]], timestamp,
+                                      i == votes - 1);
+                best = Math.min
+                    (best, (double) (System.nanoTime() - start) / votes);
+            }
+            System.out.printf ("journal %-3s %8.1f ns/vote%n",
+                               on == 0 ? "off" : "on", best);
+        }
+        model.setJournal (null, 0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < votes; ++ i)
+            journal.append ((byte) 'V', 0, 0, i, 0, 1L, 1, i);
+        System.out.printf ("append      %8.1f ns/record, %d flushes%n",
+                           (double) (System.nanoTime() - start) / votes,
+                           journal.getFlushes());
+        journal.close();
+        for (File file : dir.listFiles()) file.delete();
+        dir.delete();
+        System.exit (0);
+    }
+
+// Hidden operations.
+
+    /**
+     * Add a vote to the batch, and apply the batch once it is full or it
+     * is the last.
+     *
+     * @return the next timestamp
+     */
+    private static long vote
+        (PollsterModel model,
+         VoteBatch batch,
+         ViewProxy client,
+         InetSocketAddress address,
+         long timestamp,
+         boolean last)
+    {
+        batch.add ((byte) 'V', 0, 1 + (int) (timestamp & 1), timestamp, 0,
+                   address);
+        if (batch.size() == batch.capacity() || last)
+        {
+            model.applyBatch (batch, 0, client);
+            batch.clear();
+        }
+        return timestamp + 1;
+    }
+
+}
@@ -0,0 +1,144 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Check that a {@link VoteJournal} that once fails to map a segment goes on
+ * flushing and replaying the records appended after the failure.
+ * <P>
+ * The check journals some records, then puts a directory where the next
+ * segment file goes, so mapping it fails, and rolls the journal onto that
+ * segment. The records appended while the segment cannot be mapped are
+ * dropped. Once the directory is gone the records appended after it must
+ * be flushed, and the journal must replay every record that was not
+ * dropped, in order.
+ *
+ * @author  Paul Zenie
+ */
+public class JournalCheck
+{
+
+// Hidden constants.
+
+    private static final int BEFORE = 1000;
+    private static final int DURING = 100;
+    private static final int AFTER = 1000;
+
+// Exported operations.
+
+    /**
+     * Run the check.
+     *
+     * @exception  AssertionError
+     *     Thrown if a record is not flushed or not replayed.
+     * @exception  IOException
+     *     Thrown if the journal's directory could not be made.
+     */
+    public static void run() throws IOException
+    {
+        File dir = Files.createTempDirectory ("JournalCheck").toFile();
+        try
+        {
+            check (dir);
+        }
+        finally
+        {
+            for (File file : dir.listFiles()) file.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Run the check from the command line.
+     * <P>
+     * Usage: java JournalCheck
+     *
+     * @param  args  command line arguments
+     *
+     * @exception  IOException
+     *     Thrown if the journal's directory could not be made.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        run();
+        System.out.println ("JournalCheck passed");
+    }
+
+// Hidden operations.
+
+    /**
+     * Journal, fail, journal again and replay, in the given directory.
+     */
+    private static void check(File dir) throws IOException
+    {
+        VoteJournal journal = new VoteJournal
+            (dir, 60000, VoteJournal.SEGMENT_LENGTH);
+        int n = 0;
+        for (int i = 0; i < BEFORE; ++ i) append (journal, n ++);
+
+        File blocker = new File (dir, "votes-000001.journal");
+        if (! blocker.mkdir())
+            throw new IOException ("JournalCheck: cannot make " + blocker);
+        try
+        {
+            journal.roll();
+            fail ("roll() mapped a segment that cannot be mapped");
+        }
+        catch (IOException exc)
+        {
+            // expected
+        }
+        for (int i = 0; i < DURING; ++ i) append (journal, n ++);
+        if (journal.getDropped() != DURING)
+            fail (journal.getDropped() + " records dropped, expected " +
+                  DURING);
+
+        blocker.delete();
+        for (int i = 0; i < AFTER; ++ i) append (journal, n ++);
+        journal.flush();
+        if (journal.getUnflushed() != 0L)
+            fail (journal.getUnflushed() + " bytes left unflushed");
+        journal.close();
+
+        final int[] next = new int[] { 0 };
+        long read = VoteJournal.read (dir, 0, new VoteJournal.Reader()
+        {
+            public void record
+                (byte type,
+                 int pollId,
+                 int shard,
+                 int slot,
+                 int generation,
+                 long address,
+                 int option,
+                 long timestamp)
+            {
+                // the dropped records are the only ones missing
+                int expected = next[0] == BEFORE ? BEFORE + DURING : next[0];
+                if (slot != expected || timestamp != expected)
+                    fail ("record " + slot + " read where record " +
+                          expected + " belongs");
+                next[0] = expected + 1;
+            }
+        });
+        if (read != BEFORE + AFTER)
+            fail (read + " records replayed, expected " + (BEFORE + AFTER));
+    }
+
+    /**
+     * Append the given record number as a vote.
+     */
+    private static void append(VoteJournal journal, int n)
+    {
+        journal.append ((byte) 'V', 0, 0, n, 0, 1L, 1, n);
+    }
+
+    /**
+     * Report a failure.
+     */
+    private static void fail(String message)
+    {
+        throw new AssertionError ("JournalCheck: " + message);
+    }
+
+}
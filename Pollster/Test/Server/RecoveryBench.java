@@ -0,0 +1,190 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Measures how long a restarted pollster takes to rebuild its polls from
+ * the latest {@link VoteSnapshot} and the journal records after it.
+ * <P>
+ * Usage: java RecoveryBench [-clients n] [-dir d] [tail]...
+ * <P>
+ * For each tail length (default 0 100000 1000000 4000000) a poll of 16
+ * shards takes a vote from each of the clients (default 1000000), with the
+ * journal on, and a snapshot is written. Then the poll takes that many
+ * more votes from the same clients, which are only in the journal. A new
+ * JVM then recovers the poll, as a restarted server does, and reports how
+ * long {@link VoteSnapshot#recover(File,PollRegistry) recover()} took.
+ * The journal and snapshot are written in a new directory in the given
+ * one (default the temporary directory), which is deleted afterwards.
+ *
+ * @author  Paul Zenie
+ */
+public class RecoveryBench
+{
+
+// Hidden constants.
+
+    private static final int SHARDS = 16;
+    private static final int BATCH = 256;
+
+// Exported operations.
+
+    /**
+     * Run the measurement. With <TT>-recover</TT> <I>dir</I>, recover the
+     * polls in the directory and print the time it took; the measurement
+     * runs this in a new JVM.
+     *
+     * @param  args  command line arguments
+     *
+     * @exception  Exception
+     *     Thrown if the measurement could not be run.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 2 && args[0].equals ("-recover"))
+        {
+            recover (new File (args[1]));
+            return;
+        }
+        int clients = 1000000;
+        File parent = new File (System.getProperty ("java.io.tmpdir"));
+        int[] tails = new int [args.length];
+        int n = 0;
+        for (int i = 0; i < args.length; ++ i)
+        {
+            if (args[i].equals ("-clients") && i + 1 < args.length)
+                clients = Integer.parseInt (args[++ i]);
+            else if (args[i].equals ("-dir") && i + 1 < args.length)
+                parent = new File (args[++ i]);
+            else
+                tails[n ++] = Integer.parseInt (args[i]);
+        }
+        if (n == 0)
+        {
+            tails = new int[] { 0, 100000, 1000000, 4000000 };
+            n = tails.length;
+        }
+        System.out.println (clients + " clients in " + SHARDS + " shards");
+        for (int t = 0; t < n; ++ t)
+        {
+            File dir = Files.createTempDirectory
+                (parent.toPath(), "RecoveryBench").toFile();
+            long snapshotBytes = prepare (dir, clients, tails[t]);
+            Process child = new ProcessBuilder
+                (new File (System.getProperty ("java.home"),
+                           "bin/java").getPath(),
+                 "-cp", System.getProperty ("java.class.path"),
+                 "RecoveryBench", "-recover", dir.getPath())
+                .redirectErrorStream (true)
+                .start();
+            BufferedReader in = new BufferedReader
+                (new InputStreamReader (child.getInputStream()));
+            String line;
+            while ((line = in.readLine()) != null)
+                System.out.printf ("tail %8d, snapshot %5.1f MB: %s%n",
+                                   tails[t], snapshotBytes / 1e6, line);
+            child.waitFor();
+            for (File file : dir.listFiles()) file.delete();
+            dir.delete();
+        }
+        System.exit (0);
+    }
+
+// Hidden operations.
+
+    /**
+     * Fill a poll, write a snapshot, then add a journal tail.
+     *
+     * @return the size of the snapshot in bytes
+     */
+    private static long prepare(File dir, int clients, int tail)
+        throws Exception
+    {
+        DatagramChannel mailbox = DatagramChannel.open().bind
+            (new InetSocketAddress (InetAddress.getLoopbackAddress(), 0));
+        PollRegistry registry = new PollRegistry (1, 10, 10);
+        registry.setMailbox (mailbox.socket());
+        // no client may time out while the tail is written
+        registry.setIdleTtl (24 * 60 * 60 * 1000);
+        VoteJournal journal = new VoteJournal
+            (dir, VoteJournal.DEFAULT_FLUSH_MILLIS,
+             VoteJournal.DEFAULT_FLUSH_BYTES);
+        registry.setJournal (journal);
+        PollsterModel model = registry.create (0, SHARDS);
+        model.setPoll ("Which?", new String[] { "a", "b" },
+                       System.currentTimeMillis());
+        InetSocketAddress[] addresses = new InetSocketAddress [clients];
+        for (int i = 0; i < clients; ++ i)
+            addresses[i] = new InetSocketAddress
+                (InetAddress.getByAddress (new byte[]
+                    { 127, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i }),
+                 1024);
+        ViewProxy client = new ViewProxy (mailbox.socket(), null);
+        VoteBatch batch = new VoteBatch (BATCH);
+        long timestamp = 1L;
+        for (int i = 0; i < clients; ++ i)
+            timestamp = vote (model, batch, client, addresses[i], timestamp,
+                              i == clients - 1);
+        VoteSnapshot snapshot = new VoteSnapshot (dir, registry, journal);
+        snapshot.write();
+        long bytes = 0L;
+        for (File file : dir.listFiles())
+            if (file.getName().endsWith (".snap")) bytes += file.length();
+        Random random = new Random (1);
+        for (int i = 0; i < tail; ++ i)
+            timestamp = vote (model, batch, client,
+                              addresses[random.nextInt (clients)],
+                              timestamp, i == tail - 1);
+        journal.close();
+        registry.getExecutor().shutdownNow();
+        mailbox.close();
+        return bytes;
+    }
+
+    /**
+     * Recover the polls in a directory and print the time it took.
+     */
+    private static void recover(File dir) throws Exception
+    {
+        PollRegistry registry = new PollRegistry (1, 10, 10);
+        long start = System.nanoTime();
+        long records = VoteSnapshot.recover (dir, registry);
+        long elapsed = System.nanoTime() - start;
+        int responders = 0;
+        for (Integer pollId : registry.pollIds())
+            responders += registry.get (pollId).getResponders();
+        System.out.printf ("%d responders, %d records replayed in %d ms%n",
+                           responders, records, elapsed / 1000000L);
+        System.exit (0);
+    }
+
+    /**
+     * Add a vote to the batch, and apply the batch once it is full or it
+     * is the last.
+     *
+     * @return the next timestamp
+     */
+    private static long vote
+        (PollsterModel model,
+         VoteBatch batch,
+         ViewProxy client,
+         InetSocketAddress address,
+         long timestamp,
+         boolean last)
+    {
+        batch.add ((byte) 'V', 0, 1 + (int) (timestamp & 1), timestamp, 0,
+                   address);
+        if (batch.size() == batch.capacity() || last)
+        {
+            model.applyBatch (batch, 0, client);
+            batch.clear();
+        }
+        return timestamp + 1;
+    }
+
+}
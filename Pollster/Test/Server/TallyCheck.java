@@ -0,0 +1,220 @@
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Randomized check that the tally a {@link ResponderStore} keeps as it goes
+ * always matches a full recount of its clients' votes.
+ * <P>
+ * Clients are added, vote, change their votes, move to new addresses,
+ * send keepalives and are evicted for staying silent, in random order, now
+ * and then with out-of-date timestamps, which must be ignored. The check
+ * keeps its own copy of every client's state. After every few operations
+ * it recounts the votes from that copy and compares the recount with the
+ * store's counters, checks that the store finds every client, and only
+ * those, at its address, and that a broadcast would reach every client's
+ * address once.
+ *
+ * @author  Paul Zenie
+ */
+public class TallyCheck
+{
+
+// Hidden constants.
+
+    private static final int OPTIONS = 5;
+    private static final int ADDRESSES = 4000;
+    private static final int TIMEOUT = 20;
+
+// Exported operations.
+
+    /**
+     * Run the check.
+     *
+     * @param  seed        seed of the random operations
+     * @param  operations  number of operations
+     *
+     * @exception  AssertionError
+     *     Thrown if the tally does not match the recount.
+     */
+    public static void run(long seed, int operations)
+    {
+        Random random = new Random (seed);
+        ResponderStore store = new ResponderStore (ADDRESSES, OPTIONS);
+        InetSocketAddress[] addresses = new InetSocketAddress [ADDRESSES];
+        for (int i = 0; i < ADDRESSES; ++ i)
+        {
+            // every tenth client is IPv6, which the store keeps apart
+            addresses[i] = i % 10 == 0
+                ? new InetSocketAddress ("::1", 1024 + i)
+                : new InetSocketAddress ("10.0." + (i >> 8) + "." +
+                                         (i & 0xFF), 1024 + i);
+        }
+
+        // The check's own copy, by slot, and each address's slot or -1.
+        int[] at = new int [ADDRESSES];
+        int[] votes = new int [ADDRESSES];
+        long[] timestamps = new long [ADDRESSES];
+        int[] lastSeen = new int [ADDRESSES];
+        int[] addressOf = new int [ADDRESSES];
+        Arrays.fill (at, -1);
+        Arrays.fill (addressOf, -1);
+
+        int now = 0;
+        long timestamp = 0L;
+        for (int op = 1; op <= operations; ++ op)
+        {
+            int a = random.nextInt (ADDRESSES);
+            InetSocketAddress address = addresses[a];
+            long key = ResponderStore.pack (address);
+            int slot = at[a];
+            int what = random.nextInt (100);
+            if (slot < 0)
+            {
+                slot = store.add (key, address, now);
+                if (slot < 0)
+                    fail (seed, op, "store full with " + store.size() +
+                          " clients");
+                at[a] = slot;
+                addressOf[slot] = a;
+                votes[slot] = 0;
+                timestamps[slot] = 0L;
+                lastSeen[slot] = now;
+            }
+            else if (what < 60)
+            {
+                int option = random.nextInt (OPTIONS + 1);
+                // older timestamps now and then, which must be ignored
+                long ts = random.nextInt (10) == 0
+                    ? timestamp - random.nextInt (5) : ++ timestamp;
+                store.vote (slot, option, ts, now);
+                lastSeen[slot] = now;
+                if (ts > timestamps[slot])
+                {
+                    timestamps[slot] = ts;
+                    votes[slot] = option;
+                }
+            }
+            else if (what < 70)
+            {
+                int b = random.nextInt (ADDRESSES);
+                if (at[b] < 0)
+                {
+                    store.move (slot, ResponderStore.pack (addresses[b]),
+                                addresses[b]);
+                    at[a] = -1;
+                    at[b] = slot;
+                    addressOf[slot] = b;
+                }
+            }
+            else if (what < 95)
+            {
+                store.touch (slot, now);
+                lastSeen[slot] = now;
+            }
+            else
+            {
+                now += random.nextInt (3);
+                for (int chunk = 0; chunk < store.chunks(); ++ chunk)
+                    store.sweep (chunk, now, TIMEOUT);
+                for (int s = 0; s < ADDRESSES; ++ s)
+                {
+                    if (addressOf[s] >= 0 && now - lastSeen[s] > TIMEOUT)
+                    {
+                        at[addressOf[s]] = -1;
+                        addressOf[s] = -1;
+                    }
+                }
+            }
+            if (op % 1000 == 0 || op == operations)
+                check (store, seed, op, addresses, at, votes, addressOf);
+        }
+    }
+
+    /**
+     * Run the check from the command line.
+     * <P>
+     * Usage: java TallyCheck [seed [operations]]
+     *
+     * @param  args  command line arguments
+     */
+    public static void main(String[] args)
+    {
+        long seed = args.length > 0 ? Long.parseLong (args[0])
+            : System.nanoTime();
+        int operations = args.length > 1 ? Integer.parseInt (args[1])
+            : 1000000;
+        run (seed, operations);
+        System.out.println ("TallyCheck passed, seed " + seed);
+    }
+
+// Hidden operations.
+
+    /**
+     * Recount the votes and compare them with the store's counters, look
+     * every address up in the store, and copy the addresses a broadcast
+     * would send to.
+     */
+    private static void check
+        (ResponderStore store,
+         long seed,
+         int op,
+         InetSocketAddress[] addresses,
+         int[] at,
+         int[] votes,
+         int[] addressOf)
+    {
+        int[] recount = new int [OPTIONS + 1];
+        int clients = 0;
+        for (int slot = 0; slot < addressOf.length; ++ slot)
+        {
+            if (addressOf[slot] < 0) continue;
+            ++ recount[votes[slot]];
+            ++ clients;
+        }
+        if (store.size() != clients)
+            fail (seed, op, "store has " + store.size() +
+                  " clients, recount " + clients);
+        for (int option = 1; option <= OPTIONS; ++ option)
+            if (store.count (option) != recount[option])
+                fail (seed, op, "option " + option + " counted " +
+                      store.count (option) + ", recount " + recount[option]);
+        for (int a = 0; a < addresses.length; ++ a)
+        {
+            int slot = store.find
+                (ResponderStore.pack (addresses[a]), addresses[a]);
+            if (slot != at[a])
+                fail (seed, op, addresses[a] + " found in slot " + slot +
+                      ", expected " + at[a]);
+        }
+        long[] keys = new long [store.partLength (0, 1)];
+        InetSocketAddress[] others = new InetSocketAddress [keys.length];
+        int n = store.copyPart (0, 1, keys, others);
+        HashSet<InetSocketAddress> expected = new HashSet<>();
+        for (int a = 0; a < addresses.length; ++ a)
+            if (at[a] >= 0) expected.add (addresses[a]);
+        for (int i = 0; i < n; ++ i)
+        {
+            InetSocketAddress address = keys[i] != 0L
+                ? ResponderStore.unpack (keys[i]) : others[i];
+            if (! expected.remove (address))
+                fail (seed, op, "broadcast to " + address + ", which is " +
+                      "not a client or was sent to twice");
+        }
+        if (! expected.isEmpty())
+            fail (seed, op, "broadcast missed " + expected.size() +
+                  " clients");
+    }
+
+    /**
+     * Report a mismatch.
+     */
+    private static void fail(long seed, int op, String message)
+    {
+        throw new AssertionError
+            ("TallyCheck seed " + seed + " after operation " + op + ": " +
+             message);
+    }
+
+}